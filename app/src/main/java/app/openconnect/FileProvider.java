@@ -43,6 +43,7 @@ import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.provider.OpenableColumns;
 import android.util.Log;
+import app.openconnect.core.LogExporter;
 
 /**
  * A very simple content provider that can serve arbitrary asset files from
@@ -103,6 +104,9 @@ implements PipeDataWriter<InputStream> {
 
 	@Override
 	public String getType(Uri uri) {
+		if (uri.getPath().endsWith(LogExporter.SUFFIX)) {
+			return LogExporter.MIME_TYPE;
+		}
 		// For this sample, assume all files are .apks.
 		return "application/octet-stream";
 	}
@@ -129,9 +133,10 @@ implements PipeDataWriter<InputStream> {
 		if(path.startsWith("/"))
 			path = path.replaceFirst("/", "");       
 
-		// I think this already random enough, no need for magic secure cookies
-		// 1f9563a4-a1f5-2165-255f2219-111823ef.dmp
-		if (!path.matches("^[0-9a-z-.]*(dmp|dmp.log)$"))
+		// 1f9563a4-a1f5-2165-255f2219-111823ef.dmp, or
+		// openconnect-0f8fad5b-d9cb-469f-a165-70867728950e.log.gz; on API 16+ the
+		// caller also needs the read grant from the share intent
+		if (!path.matches("^[0-9a-z-.]*(dmp|dmp.log|log.gz)$"))
 			throw new FileNotFoundException("url not in expect format " + uri);
 		File cachedir = getContext().getCacheDir();
         return new File(cachedir,path);
@@ -25,23 +25,28 @@
 package app.openconnect.core;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.util.Log;
 
 public class AssetExtractor {
@@ -53,6 +58,9 @@ public class AssetExtractor {
 
 	private static final int BUFLEN = 65536;
 
+	private static final String MANIFEST_NAME = ".asset_manifest";
+	private static final String MANIFEST_VERSION = "v1";
+
     private static long crc32(File f)
     		throws FileNotFoundException, IOException {
         FileInputStream in = new FileInputStream(f);
@@ -100,6 +108,11 @@ public class AssetExtractor {
     }
 
 	public static boolean extractAll(Context ctx, int flags, String path) {
+		return extractAll(ctx, flags, path, null);
+	}
+
+	/* if non-null, "files" collects every file that was written or verified */
+	public static boolean extractAll(Context ctx, int flags, String path, ArrayList<File> files) {
 		String patterns[] = { "assets/raw/noarch", "assets/raw/" + getArch() };
 
 		if (path == null) {
@@ -125,6 +138,9 @@ public class AssetExtractor {
 					fname = path + fname.substring(prefix.length());
 
 					File file = new File(fname);
+					if (files != null) {
+						files.add(file);
+					}
 					if ((flags & FL_FORCE) == 0 && file.exists() && crc32(file) == ze.getCrc()) {
 						Log.d(TAG, "AssetExtractor: skipping " + fname);
 						continue;
@@ -148,6 +164,86 @@ public class AssetExtractor {
 		return extractAll(ctx, 0, null);
 	}
 
+	/*
+	 * The manifest lets warm connects skip the APK scan: it records the package
+	 * version/install time plus the size and mtime of every file we produced.  If
+	 * any of those change (upgrade, tampering, cleared data) the caller has to do a
+	 * full extractAll() and write a new manifest.
+	 */
+	private static File getManifestFile(Context ctx) {
+		return new File(ctx.getFilesDir(), MANIFEST_NAME);
+	}
+
+	private static String getManifestKey(Context ctx) {
+		try {
+			PackageInfo pi = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+			return MANIFEST_VERSION + " " + pi.versionCode + " " + pi.lastUpdateTime + " " + getArch();
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		}
+	}
+
+	public static boolean checkManifest(Context ctx) {
+		String key = getManifestKey(ctx);
+		String manifest = readStringFromFile(getManifestFile(ctx).getPath());
+		if (key == null || manifest == null) {
+			return false;
+		}
+
+		String lines[] = manifest.split("\n");
+		if (!lines[0].equals(key)) {
+			Log.i(TAG, "AssetExtractor: package changed, manifest is stale");
+			return false;
+		}
+		for (int i = 1; i < lines.length; i++) {
+			String ss[] = lines[i].split(" ", 3);
+			if (ss.length != 3) {
+				return false;
+			}
+			File f = new File(ss[2]);
+			try {
+				if (f.length() != Long.parseLong(ss[0]) || f.lastModified() != Long.parseLong(ss[1])) {
+					Log.w(TAG, "AssetExtractor: " + ss[2] + " was modified");
+					return false;
+				}
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static void invalidateManifest(Context ctx) {
+		getManifestFile(ctx).delete();
+	}
+
+	public static boolean writeManifest(Context ctx, ArrayList<File> files) {
+		String key = getManifestKey(ctx);
+		if (key == null) {
+			return false;
+		}
+
+		File tmp = new File(ctx.getFilesDir(), MANIFEST_NAME + ".tmp");
+		try {
+			BufferedWriter w = new BufferedWriter(new FileWriter(tmp));
+			w.write(key + "\n");
+			for (File f : files) {
+				if (!f.exists()) {
+					w.close();
+					tmp.delete();
+					return false;
+				}
+				w.write(f.length() + " " + f.lastModified() + " " + f.getAbsolutePath() + "\n");
+			}
+			w.close();
+		} catch (IOException e) {
+			Log.w(TAG, "AssetExtractor: error writing manifest", e);
+			tmp.delete();
+			return false;
+		}
+		return tmp.renameTo(getManifestFile(ctx));
+	}
+
 	private static String readAndClose(Reader reader)
 			throws UnsupportedEncodingException, IOException {
 		StringWriter sw = new StringWriter();
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.util.Random;
+
+import org.infradead.libopenconnect.LibOpenConnect;
+
+/*
+ * Exponential backoff with "decorrelated jitter": each delay is drawn
+ * uniformly from [base, 3 * previous delay] and capped.  Clients that lost the
+ * same gateway at the same moment drift apart after the first attempt instead
+ * of retrying in lockstep.
+ */
+public class BackoffReconnectPolicy implements ReconnectPolicy {
+
+	public static final long DEFAULT_BASE_MS = 2000;
+	public static final long DEFAULT_CAP_MS = 5 * 60 * 1000;
+	public static final int DEFAULT_MAX_ATTEMPTS = 12;
+
+	private final long mBase;
+	private final long mCap;
+	private final int mMaxAttempts;
+	private final Random mRandom;
+
+	private long mPrev;
+	private int mAttempts;
+
+	public BackoffReconnectPolicy(long base, long cap, int maxAttempts, Random random) {
+		mBase = base;
+		mCap = cap;
+		mMaxAttempts = maxAttempts;
+		mRandom = random;
+		mPrev = base;
+	}
+
+	public BackoffReconnectPolicy() {
+		this(DEFAULT_BASE_MS, DEFAULT_CAP_MS, DEFAULT_MAX_ATTEMPTS, new Random());
+	}
+
+	private long uniform(long lo, long hi) {
+		if (hi <= lo) {
+			return lo;
+		}
+		return lo + (long)(mRandom.nextDouble() * (hi - lo + 1));
+	}
+
+	@Override
+	public int getRetryInterval() {
+		// the library's own retries start at this interval and grow linearly from there
+		int min = LibOpenConnect.RECONNECT_INTERVAL_MIN;
+		return (int)uniform(min, 2 * min);
+	}
+
+	@Override
+	public long nextDelay() {
+		if (mAttempts >= mMaxAttempts) {
+			return -1;
+		}
+		mAttempts++;
+		mPrev = Math.min(mCap, uniform(mBase, mPrev * 3));
+		return mPrev;
+	}
+
+	@Override
+	public void onSuccess() {
+		mAttempts = 0;
+		mPrev = mBase;
+	}
+
+	@Override
+	public void onNetworkChange() {
+		mAttempts = 0;
+		mPrev = mBase;
+	}
+
+	@Override
+	public int getAttempts() {
+		return mAttempts;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/*
+ * Timestamps each phase of runVPN() with the monotonic clock and folds the
+ * results into per-profile latency histograms.  Time spent waiting on the user
+ * (auth forms, cert warnings) is subtracted from the phase it interrupted and
+ * tracked separately, so slow typists don't skew the server numbers.
+ */
+public class ConnectTracer {
+
+	public static final String TAG = "OpenConnect";
+
+	public static final int PHASE_PRECONNECT = 0;
+	public static final int PHASE_PREFS = 1;
+	public static final int PHASE_PARSE_URL = 2;
+	public static final int PHASE_AUTH = 3;
+	public static final int PHASE_CSTP = 4;
+	public static final int PHASE_ESTABLISH = 5;
+	public static final int PHASE_TUN_FD = 6;
+	public static final int PHASE_DTLS = 7;
+	public static final int PHASE_PROMPT = 8;
+	public static final int PHASE_TOTAL = 9;
+
+	private static final String PHASE_NAMES[] = {
+		"preconnect", "prefs", "parse_url", "auth", "cstp",
+		"establish", "tun_fd", "dtls", "prompt", "total"
+	};
+	public static final int NUM_PHASES = PHASE_NAMES.length;
+
+	private static final String PREFS_PFX = "latency-";
+
+	private SharedPreferences mStore;
+	private LatencyHistogram mHist[] = new LatencyHistogram[NUM_PHASES];
+	private long mLast[] = new long[NUM_PHASES];
+
+	private int mPhase = -1;
+	private long mSessionStart;
+	private long mPhaseStart;
+	private long mPromptStart;
+	private long mPromptInPhase;
+	private long mPromptTotal;
+
+	public ConnectTracer(Context context, String uuid) {
+		mStore = context.getSharedPreferences(getPrefsName(uuid), Activity.MODE_PRIVATE);
+		for (int i = 0; i < NUM_PHASES; i++) {
+			mHist[i] = new LatencyHistogram();
+			mHist[i].decode(mStore.getString("hist_" + PHASE_NAMES[i], null));
+			mLast[i] = -1;
+		}
+	}
+
+	public static String getPrefsName(String uuid) {
+		return PREFS_PFX + uuid;
+	}
+
+	public static String getPhaseName(int phase) {
+		return PHASE_NAMES[phase];
+	}
+
+	private static long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	public synchronized void start() {
+		for (int i = 0; i < NUM_PHASES; i++) {
+			mLast[i] = -1;
+		}
+		mPhase = -1;
+		mPromptStart = 0;
+		mPromptTotal = 0;
+		mSessionStart = now();
+	}
+
+	public synchronized void beginPhase(int phase) {
+		endPhase();
+		mPhase = phase;
+		mPromptInPhase = 0;
+		mPhaseStart = now();
+	}
+
+	public synchronized void endPhase() {
+		if (mPhase < 0) {
+			return;
+		}
+		mLast[mPhase] = now() - mPhaseStart - mPromptInPhase;
+		mPhase = -1;
+	}
+
+	public synchronized void promptStarted() {
+		mPromptStart = now();
+	}
+
+	public synchronized void promptFinished() {
+		if (mPromptStart == 0) {
+			return;
+		}
+		long delta = now() - mPromptStart;
+		mPromptInPhase += delta;
+		mPromptTotal += delta;
+		mPromptStart = 0;
+	}
+
+	/* called once the tunnel is up; failed attempts are not recorded */
+	public synchronized void commit() {
+		endPhase();
+		mLast[PHASE_PROMPT] = mPromptTotal;
+		mLast[PHASE_TOTAL] = now() - mSessionStart - mPromptTotal;
+
+		SharedPreferences.Editor ed = mStore.edit();
+		for (int i = 0; i < NUM_PHASES; i++) {
+			if (mLast[i] >= 0) {
+				mHist[i].add(mLast[i]);
+				ed.putString("hist_" + PHASE_NAMES[i], mHist[i].encode());
+			}
+		}
+		ed.apply();
+	}
+
+	/* the phase in progress, or -1 */
+	public synchronized int getPhase() {
+		return mPhase;
+	}
+
+	public synchronized long getLast(int phase) {
+		return mLast[phase];
+	}
+
+	public LatencyHistogram getHistogram(int phase) {
+		return mHist[phase];
+	}
+
+	public synchronized String formatLast() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < NUM_PHASES; i++) {
+			if (mLast[i] < 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(PHASE_NAMES[i]).append('=').append(mLast[i]).append("ms");
+		}
+		return sb.toString();
+	}
+
+	public synchronized String dump() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("LATENCY: last connect: ").append(formatLast()).append("\n");
+		for (int i = 0; i < NUM_PHASES; i++) {
+			sb.append("LATENCY: ").append(PHASE_NAMES[i]).append(' ')
+				.append(mHist[i].summarize()).append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Random;
+
+import android.util.Log;
+
+/*
+ * Sends a DNS "A" query straight to a server and waits for the matching
+ * reply.  Bypassing the resolver means we never get a cached result, contact
+ * the wrong server, use an incorrect timeout, etc.
+ *
+ * One non-blocking DatagramChannel is kept open between probes, and the query
+ * and reply live in direct buffers allocated up front, so a probe only patches
+ * the transaction ID and sends; TunnelHealth does the waiting.  After an I/O
+ * error (e.g. the network went away) the channel is closed and reopened on
+ * the next probe.
+ */
+public class DNSProbe implements HealthProbe {
+
+	public static final String TAG = "OpenConnect";
+
+	private static final int DNS_PORT = 53;
+	private static final int MAX_REPLY = 1024;
+
+	private final String mServer;
+	private final int mPort;
+	private final ByteBuffer mQuery;
+	private final ByteBuffer mReply = ByteBuffer.allocateDirect(MAX_REPLY);
+	private int mSeed = new Random().nextInt();
+
+	private DatagramChannel mChannel;
+	private int mID;
+
+	public DNSProbe(String server, String hostname) {
+		this(server, DNS_PORT, hostname);
+	}
+
+	DNSProbe(String server, int port, String hostname) {
+		mServer = server;
+		mPort = port;
+		mQuery = buildQuery(hostname);
+	}
+
+	private static ByteBuffer buildQuery(String hostname) {
+		byte header[] = {
+				0x00, 0x00,				// Transaction ID: filled in per probe
+				0x01, 0x00,				// Flags: standard query, recursion desired
+				0x00, 0x01,				// Questions: 1
+				0x00, 0x00,				// Answer RRs: 0
+				0x00, 0x00,				// Authority RRs: 0
+				0x00, 0x00,				// Additional RRs: 0
+		};
+		byte suffix[] = {
+				0x00, 0x01,				// Type: A
+				0x00, 0x01,				// Class: IN
+		};
+
+		ByteBuffer q = ByteBuffer.allocateDirect(header.length + hostname.length() + 2 + suffix.length);
+		q.put(header);
+		for (String s : hostname.split("\\.")) {
+			q.put((byte)s.length());
+			for (int j = 0; j < s.length(); j++) {
+				q.put((byte)s.charAt(j));
+			}
+		}
+		q.put((byte)0);
+		q.put(suffix);
+		q.flip();
+		return q;
+	}
+
+	@Override
+	public String getName() {
+		return "dns/" + mServer;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (mChannel != null) {
+				mChannel.close();
+			}
+		} catch (IOException e) {
+		}
+		mChannel = null;
+	}
+
+	/* 16-bit LCG step; doesn't need to be unpredictable, just different each time */
+	private int nextID() {
+		mSeed = mSeed * 1103515245 + 12345;
+		return (mSeed >>> 16) & 0xffff;
+	}
+
+	@Override
+	public boolean start(Selector sel) {
+		try {
+			if (mChannel == null) {
+				mChannel = DatagramChannel.open();
+				mChannel.configureBlocking(false);
+				mChannel.connect(new InetSocketAddress(InetAddress.getByName(mServer), mPort));
+			}
+			if (mChannel.keyFor(sel) == null) {
+				mChannel.register(sel, SelectionKey.OP_READ, this);
+			}
+
+			// a late reply to an earlier probe that timed out would otherwise look like a bad ID
+			mReply.clear();
+			while (mChannel.read(mReply) > 0) {
+				mReply.clear();
+			}
+
+			mID = nextID();
+			mQuery.put(0, (byte)(mID >> 8));
+			mQuery.put(1, (byte)mID);
+			mQuery.rewind();
+
+			if (mChannel.write(mQuery) == 0) {
+				Log.w(TAG, "KeepAlive: DNS request to " + mServer + " was not sent");
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "KeepAlive: DNS probe to " + mServer + " failed", e);
+			close();
+			return false;
+		}
+	}
+
+	@Override
+	public int onReady() {
+		boolean gotReply = false;
+		try {
+			while (true) {
+				mReply.clear();
+				if (mChannel.read(mReply) <= 0) {
+					break;
+				}
+				gotReply = true;
+				if (mReply.position() >= 2 &&
+						(mReply.get(0) & 0xff) == (mID >> 8) && (mReply.get(1) & 0xff) == (mID & 0xff)) {
+					return RESULT_OK;
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "KeepAlive: DNS probe to " + mServer + " failed", e);
+			close();
+			return RESULT_ERROR;
+		}
+		return gotReply ? RESULT_BAD_REPLY : RESULT_PENDING;
+	}
+}
@@ -31,9 +31,12 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
-public class DeviceStateReceiver extends BroadcastReceiver {
+public class DeviceStateReceiver extends BroadcastReceiver
+		implements NetworkStateMachine.Listener {
 
 	public static final String TAG = "OpenConnect";
 
@@ -47,14 +50,41 @@ public class DeviceStateReceiver extends BroadcastReceiver {
 
     private boolean mScreenOff;
     private boolean mNetworkOff;
-    private int mNetworkType = -1;
     private boolean mKeepaliveActive;
     private boolean mPaused;
 
+    /* connectivity broadcasts only reach mManagement once they settle */
+    private NetworkStateMachine mNetworkState;
+
+    private static class HandlerClock implements NetworkStateMachine.Clock {
+    	private final Handler mHandler = new Handler();
+
+    	@Override
+    	public long now() {
+    		return SystemClock.uptimeMillis();
+    	}
+
+    	@Override
+    	public void postDelayed(Runnable r, long delayMs) {
+    		mHandler.postDelayed(r, delayMs);
+    	}
+
+    	@Override
+    	public void cancel(Runnable r) {
+    		mHandler.removeCallbacks(r);
+    	}
+    }
+
     public DeviceStateReceiver(OpenVPNManagement management, SharedPreferences prefs) {
+        this(management, prefs, new HandlerClock());
+    }
+
+    DeviceStateReceiver(OpenVPNManagement management, SharedPreferences prefs,
+    		NetworkStateMachine.Clock clock) {
         super();
         mManagement = management;
         mPrefs = prefs;
+        mNetworkState = new NetworkStateMachine(clock, this);
         readPrefs();
     }
 
@@ -105,20 +135,37 @@ public class DeviceStateReceiver extends BroadcastReceiver {
         NetworkInfo networkInfo = conn.getActiveNetworkInfo();
 
         if (networkInfo == null || networkInfo.getState() != State.CONNECTED) {
-        	mNetworkOff = true;
+        	onNetworkEvent(false, NetworkStateMachine.TYPE_NONE);
         } else {
-        	int networkType = networkInfo.getType();
-        	if (mNetworkType != -1 && mNetworkType != networkType) {
-        		if (!mPaused && mNetchangeReconnect) {
-        			Log.i(TAG, "reconnecting due to network type change");
-        			mManagement.reconnect();
-        		}
-        	}
-        	mNetworkType = networkType;
-        	mNetworkOff = false;
+        	onNetworkEvent(true, networkInfo.getType());
         }
     }
 
+    /* one CONNECTIVITY_ACTION, already decoded */
+    void onNetworkEvent(boolean connected, int type) {
+    	mNetworkState.onEvent(connected, type);
+    }
+
+    @Override
+    public void onNetworkSettled(boolean connected, boolean typeChanged) {
+    	if (typeChanged && !mPaused && mNetchangeReconnect) {
+    		Log.i(TAG, "reconnecting due to network type change");
+    		mManagement.reconnect();
+    	}
+    	mNetworkOff = !connected;
+    	updatePauseState();
+    }
+
+    /* call after unregistering, so a pending transition can't fire later */
+    public void stop() {
+    	mNetworkState.stop();
+    	Log.i(TAG, mNetworkState.dump().trim());
+    }
+
+    public String dump() {
+    	return mNetworkState.dump();
+    }
+
     public void setKeepalive(boolean active) {
     	mKeepaliveActive = active;
     	updatePauseState();
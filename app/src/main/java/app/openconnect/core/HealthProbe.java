@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.nio.channels.Selector;
+
+/*
+ * One target for TunnelHealth.  A probe is split into a non-blocking send
+ * (start) and a readiness callback (onReady), so every target can share a
+ * single Selector and be probed at the same time.  The SelectionKey
+ * attachment must be the probe itself.
+ *
+ * Implementations are only used from the KeepAlive worker thread.
+ */
+public interface HealthProbe {
+
+	static final int RESULT_OK = 0;
+	static final int RESULT_TIMEOUT = 1;
+	static final int RESULT_BAD_REPLY = 2;
+	static final int RESULT_ERROR = 3;
+
+	/* returned by onReady when the probe is still waiting for its answer */
+	static final int RESULT_PENDING = -1;
+
+	/* short description for the log, e.g. "dns/10.1.1.1" */
+	String getName();
+
+	/* sends the probe and registers interest with sel; returns false on error */
+	boolean start(Selector sel);
+
+	/* called when our key was selected; returns one of RESULT_* */
+	int onReady();
+
+	void close();
+}
@@ -33,20 +33,17 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.util.Random;
-
 public class KeepAlive extends BroadcastReceiver {
 
 	public static final String TAG = "OpenConnect";
 
 	public static final String ACTION_KEEPALIVE_ALARM = "app.openconnect.KEEPALIVE_ALARM";
 
+	private static final int PROBE_TIMEOUT_MS = 10000;
+
 	private boolean mConnectionActive;
 
 	private PendingIntent mPendingIntent;
@@ -56,143 +53,72 @@ public class KeepAlive extends BroadcastReceiver {
 	private Handler mWorkerHandler;
 	private Handler mMainHandler;
 
-	private String mDNSServer;
-	private int mBaseDelayMs;
+	private TunnelHealth mHealth;
+	private int mMaxDelay;
+	private KeepAliveTuner mTuner;
 	private DeviceStateReceiver mDeviceStateReceiver;
 
-	private String mDNSHost = "www.google.com";
+	/* how long each keepalive kept the CPU awake */
+	private LatencyHistogram mWakeTime = new LatencyHistogram();
 
-	public KeepAlive(int seconds, String DNSServer, DeviceStateReceiver deviceStateReceiver) {
-		mBaseDelayMs = seconds * 1000;
-		mDNSServer = DNSServer;
+	/* maxSeconds caps the learned interval; see KeepAliveTuner */
+	public KeepAlive(int maxSeconds, TunnelHealth health, DeviceStateReceiver deviceStateReceiver) {
+		mMaxDelay = maxSeconds;
+		mHealth = health;
 		mDeviceStateReceiver = deviceStateReceiver;
 	}
 
-	// Bypass the resolver so we know we're never getting a cached result, contacting
-	// the wrong server, using an incorrect timeout, etc.
-	private byte[] buildDNSQuery(byte transID[], String hostname) {
-		byte prefix[] = {
-				0x01, 0x00,				// Flags: standard query, recursion desired
-				0x00, 0x01,				// Questions: 1
-				0x00, 0x00,				// Answer RRs: 0
-				0x00, 0x00,				// Authority RRs: 0
-				0x00, 0x00,				// Additional RRs: 0
-		};
-		byte suffix[] = {
-				0x00, 0x01,				// Type: A
-				0x00, 0x01,				// Class: IN
-		};
-
-		byte name[] = new byte[hostname.length() + 2];
-		int i = 0;
-		for (String s : hostname.split("\\.")) {
-			name[i++] = (byte)s.length();
-			for (int j = 0; j < s.length(); j++) {
-				name[i++] = (byte)s.charAt(j);
-			}
-		}
-
-		byte q[] = new byte[transID.length + prefix.length + name.length + suffix.length];
-
-		System.arraycopy(transID, 0, q, 0, transID.length);
-		System.arraycopy(prefix, 0, q, transID.length, prefix.length);
-		System.arraycopy(name, 0, q, transID.length + prefix.length, name.length);
-		System.arraycopy(suffix, 0, q, transID.length + prefix.length + name.length, suffix.length);
-
-		return q;
+	/* no alarms, threads or wakelock: only probe() may be called */
+	KeepAlive(TunnelHealth health, KeepAliveTuner tuner) {
+		this(0, health, null);
+		mTuner = tuner;
 	}
 
-	private DatagramSocket openSocket() {
-		DatagramSocket sock;
-		try {
-			sock = new DatagramSocket();
-			sock.connect(InetAddress.getByName(mDNSServer), 53);
-		} catch (Exception e) {
-			Log.e(TAG, "KeepAlive: unexpected socket exception", e);
-			return null;
-		}
-		return sock;
-	}
-
-	private byte[] receiveDNSResponse(DatagramSocket sock, int timeoutMs) {
-		byte data[] = new byte[1024];
-		DatagramPacket p = new DatagramPacket(data, 1024);
-		try {
-			sock.setSoTimeout(timeoutMs);
-			sock.receive(p);
-		} catch (IOException e) {
-			return null;
+	/*
+	 * Worker thread, with the wakelock held: one round of probes.  Returns
+	 * the number of seconds until the next one.
+	 */
+	int probe() {
+		// one live path is enough to keep the NAT entry
+		boolean ok = mHealth.probeAll(PROBE_TIMEOUT_MS);
+		if (!ok) {
+			Log.i(TAG, "KeepAlive: no reply was received");
 		}
-		return data;
+		mTuner.onResult(ok);
+		return mTuner.nextInterval();
 	}
 
-	private boolean sendDNSQuery(DatagramSocket sock) {
-		byte transID[] = new byte[2];
-		Random r = new Random();
-		transID[0] = (byte)r.nextInt(256);
-		transID[1] = (byte)r.nextInt(256);
-
-		byte q[] = buildDNSQuery(transID, mDNSHost);
-		try {
-			sock.send(new DatagramPacket(q, q.length));
-		} catch (IOException e) {
-			Log.w(TAG, "KeepAlive: error sending DNS request", e);
-			return false;
-		}
-
-		int timeoutMs = 10000;
-		boolean gotResponse = false;
-
-		while (true) {
-			byte data[] = receiveDNSResponse(sock, timeoutMs);
-			if (data == null) {
-				break;
-			}
-			gotResponse = true;
-			if (data[0] == transID[0] && data[1] == transID[1]) {
-				Log.d(TAG, "KeepAlive: good reply from server");
-				return true;
+	private void handleKeepAlive(final Context context) {
+		synchronized (this) {
+			mPendingIntent = null;
+			if (!mConnectionActive) {
+				return;
 			}
-			// lower timeout and see if there are any more packets waiting
-			timeoutMs = 100;
 		}
 
-		if (gotResponse) {
-			Log.w(TAG, "KeepAlive: got reply with bad transaction ID");
-		} else {
-			Log.i(TAG, "KeepAlive: no reply was received");
-		}
-		return false;
-	}
+		mWakeLock.acquire();
+		final long wakeStart = SystemClock.elapsedRealtime();
 
-	private void handleKeepAlive(final Context context) {
-		mPendingIntent = null;
-		if (!mConnectionActive) {
-			return;
+		// a probe on a different network than the interval was chosen for teaches us nothing
+		String network = KeepAliveTuner.getNetworkId(context);
+		if (network == null || !network.equals(mTuner.getNetwork())) {
+			mTuner.setNetwork(network);
 		}
 
-		mWakeLock.acquire();
 		mDeviceStateReceiver.setKeepalive(true);
 		mWorkerHandler.post(new Runnable() {
 			@Override
 			public void run() {
-				// DNS query runs on worker thread
-				DatagramSocket sock = openSocket();
-				final boolean result;
-				if (sock != null) {
-					result = sendDNSQuery(sock);
-					sock.close();
-				} else {
-					result = false;
-				}
+				// rearm the alarm from here, so the wakelock can go as soon as the probe is done
+				scheduleNext(context, probe() * 1000);
+				mWakeTime.add(SystemClock.elapsedRealtime() - wakeStart);
+				mWakeLock.release();
 
 				mMainHandler.post(new Runnable() {
 					@Override
 					public void run() {
 						// this runs back on the main thread
-						scheduleNext(context, result ? mBaseDelayMs : (mBaseDelayMs / 2));
 						mDeviceStateReceiver.setKeepalive(false);
-						mWakeLock.release();
 					}
 				});
 			}
@@ -208,7 +134,10 @@ public class KeepAlive extends BroadcastReceiver {
 		}
 	}
 
-	private void scheduleNext(Context context, int delayMs) {
+	private synchronized void scheduleNext(Context context, int delayMs) {
+		if (!mConnectionActive) {
+			return;
+		}
 		Intent intent = new Intent("app.openconnect.KEEPALIVE_ALARM");
 		mPendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
 
@@ -217,7 +146,7 @@ public class KeepAlive extends BroadcastReceiver {
 	}
 
 	public void start(Context context) {
-		if (mBaseDelayMs == 0) {
+		if (mMaxDelay == 0) {
 			return;
 		}
 
@@ -225,25 +154,36 @@ public class KeepAlive extends BroadcastReceiver {
 		t.start();
 		mWorkerHandler = new Handler(t.getLooper());
 		mMainHandler = new Handler();
+		mTuner = new KeepAliveTuner(context, mMaxDelay);
+		mTuner.setNetwork(KeepAliveTuner.getNetworkId(context));
 
 		PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
 		mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "KeepAlive");
 
-		mConnectionActive = true;
-		scheduleNext(context, mBaseDelayMs);
+		synchronized (this) {
+			mConnectionActive = true;
+		}
+		scheduleNext(context, mTuner.nextInterval() * 1000);
 	}
 
 	public void stop(Context context) {
-		mConnectionActive = false;
-		if (mPendingIntent != null) {
-			AlarmManager am = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
-			am.cancel(mPendingIntent);
-			mPendingIntent = null;
+		synchronized (this) {
+			mConnectionActive = false;
+			if (mPendingIntent != null) {
+				AlarmManager am = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+				am.cancel(mPendingIntent);
+				mPendingIntent = null;
+			}
 		}
 		if (mWorkerHandler != null) {
 			mWorkerHandler.post(new Runnable() {
 				@Override
 				public void run() {
+					mHealth.close();
+					if (mWakeTime.getCount() > 0) {
+						Log.i(TAG, "KeepAlive: wakelock held " + mWakeTime.summarize());
+					}
+					Log.i(TAG, "KeepAlive: " + mTuner);
 					Looper.myLooper().quit();
 				}
 			});
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.security.MessageDigest;
+import java.util.Locale;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/*
+ * Learns the longest keepalive interval each network tolerates.  For every
+ * network (type plus a hash of the SSID or carrier) we keep a bracket:
+ * "lo" has been seen to work and "hi" has been seen to fail (or is just past
+ * the cap derived from the server's idle timeout).  Each keepalive tries the
+ * midpoint; a success raises lo, and after any failure the next keepalive
+ * falls back to lo.  A single lost probe may just be a dropped packet, so hi
+ * only comes down once the same interval (or a shorter one) has failed
+ * FAIL_LIMIT times.  Once the bracket is within RESOLUTION (or 1/8 of lo) we
+ * stay at lo, so an unknown network converges in about log2(max / 15s)
+ * probes and a known one starts out converged.
+ *
+ * If lo itself fails FAIL_LIMIT times in a row (the NAT or carrier changed),
+ * it is halved and the search starts over from there.  Networks can get more
+ * lenient too, so after REPROBE_AFTER good keepalives in a row at a converged
+ * lo, hi is raised again and the search resumes upward.  That search is
+ * speculative, so one failure ends it, and each fruitless one doubles the
+ * wait before the next (up to MAX_REPROBE_AFTER).
+ */
+public class KeepAliveTuner {
+
+	public static final String TAG = "OpenConnect";
+
+	private static final String PREFS_NAME = "keepalive-intervals";
+
+	/* seconds */
+	public static final int MIN_INTERVAL = 30;
+	private static final int RESOLUTION = 15;
+
+	/* consecutive failures needed to move the bracket down */
+	private static final int FAIL_LIMIT = 2;
+
+	/* consecutive successes at a converged lo before probing above it again */
+	private static final int REPROBE_AFTER = 32;
+	private static final int MAX_REPROBE_AFTER = REPROBE_AFTER * 16;
+
+	private SharedPreferences mStore;
+	private int mMax;
+
+	private String mNetwork;
+	private int mLo;
+	private int mHi;
+	private boolean mFallBack;
+
+	/* shortest interval above lo that has failed once, unconfirmed; 0 if none */
+	private int mSuspect;
+	private int mLoFailures;
+	private int mSuccesses;
+	private int mReprobeAfter = REPROBE_AFTER;
+	private boolean mReprobing;
+
+	/* interval of the keepalive in flight, or -1 if its result shouldn't count */
+	private int mCurrent = -1;
+
+	public KeepAliveTuner(Context context, int maxSeconds) {
+		mStore = context.getSharedPreferences(PREFS_NAME, Activity.MODE_PRIVATE);
+		mMax = Math.max(maxSeconds, MIN_INTERVAL);
+		setNetwork(null);
+	}
+
+	/* hashed, so the prefs file doesn't keep a list of every SSID we've used; null if offline */
+	@SuppressWarnings("deprecation")
+	public static String getNetworkId(Context context) {
+		ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = cm.getActiveNetworkInfo();
+		if (info == null || !info.isConnected()) {
+			return null;
+		}
+
+		// getExtraInfo() is the SSID on Wi-Fi and the APN on mobile, and needs no extra permissions
+		String id = info.getTypeName() + ":" + info.getExtraInfo();
+		if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+			TelephonyManager tm = (TelephonyManager)context.getSystemService(Context.TELEPHONY_SERVICE);
+			id += ":" + tm.getNetworkOperator();
+		}
+
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte digest[] = md.digest(id.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(info.getTypeName().toLowerCase(Locale.US)).append('-');
+			for (int i = 0; i < 8; i++) {
+				sb.append(String.format(Locale.US, "%02x", digest[i] & 0xff));
+			}
+			return sb.toString();
+		} catch (Exception e) {
+			return info.getTypeName().toLowerCase(Locale.US);
+		}
+	}
+
+	/* switching networks discards the result of the keepalive in flight */
+	public synchronized void setNetwork(String network) {
+		mNetwork = network;
+		mLo = MIN_INTERVAL;
+		mHi = mMax + 1;
+		mFallBack = false;
+		mCurrent = -1;
+		mSuspect = 0;
+		mLoFailures = 0;
+		mSuccesses = 0;
+		mReprobeAfter = REPROBE_AFTER;
+		mReprobing = false;
+
+		if (network != null) {
+			String s = mStore.getString(network, null);
+			if (s != null) {
+				String v[] = s.split(",");
+				try {
+					mLo = Math.max(MIN_INTERVAL, Math.min(Integer.parseInt(v[0]), mMax));
+					mHi = Math.max(mLo + 1, Math.min(Integer.parseInt(v[1]), mMax + 1));
+				} catch (RuntimeException e) {
+					Log.w(TAG, "KeepAlive: ignoring bad saved interval for " + network);
+				}
+			}
+		}
+	}
+
+	public synchronized String getNetwork() {
+		return mNetwork;
+	}
+
+	public synchronized boolean isConverged() {
+		return mHi - mLo <= Math.max(RESOLUTION, mLo / 8);
+	}
+
+	/* seconds until the next keepalive */
+	public synchronized int nextInterval() {
+		if (mFallBack || isConverged()) {
+			mFallBack = false;
+			mCurrent = mLo;
+		} else {
+			mCurrent = Math.min((mLo + mHi) / 2, mMax);
+		}
+		return mCurrent;
+	}
+
+	public synchronized void onResult(boolean ok) {
+		int tried = mCurrent;
+		mCurrent = -1;
+		if (tried < 0) {
+			return;
+		}
+		int lo = mLo, hi = mHi;
+
+		if (ok) {
+			mLoFailures = 0;
+			if (tried >= mSuspect) {
+				mSuspect = 0;
+			}
+			if (mReprobing && tried > mLo) {
+				mReprobeAfter = REPROBE_AFTER;
+			}
+			mLo = Math.max(mLo, tried);
+
+			if (isConverged()) {
+				mReprobing = false;
+				if (mHi <= mMax && ++mSuccesses >= mReprobeAfter) {
+					// widen the bracket so the next keepalive tries a little above lo
+					mHi = Math.min(mMax + 1, mHi + 2 * Math.max(RESOLUTION, mLo / 8));
+					mSuccesses = 0;
+					mReprobing = true;
+				}
+			}
+		} else {
+			mSuccesses = 0;
+			mFallBack = true;
+
+			if (mReprobing && tried > mLo) {
+				mHi = Math.max(mLo + 1, Math.min(mHi, tried));
+				mReprobeAfter = Math.min(mReprobeAfter * 2, MAX_REPROBE_AFTER);
+				mReprobing = false;
+			} else if (tried <= mLo) {
+				if (++mLoFailures >= FAIL_LIMIT) {
+					// the "safe" interval keeps failing: something changed, search again from lower down
+					mLo = Math.max(MIN_INTERVAL, tried / 2);
+					mHi = Math.max(mLo + 1, Math.min(mHi, tried));
+					mLoFailures = 0;
+				}
+			} else if (mSuspect > 0 && tried >= mSuspect) {
+				mHi = Math.max(mLo + 1, Math.min(mHi, tried));
+				mSuspect = 0;
+			} else {
+				// first strike: the bracket stays, so the midpoint is tried again after lo
+				mSuspect = tried;
+			}
+		}
+
+		// a converged network doesn't need a prefs write every keepalive
+		if (mNetwork != null && (mLo != lo || mHi != hi)) {
+			mStore.edit().putString(mNetwork, mLo + "," + mHi).apply();
+		}
+	}
+
+	public synchronized String toString() {
+		return "network=" + mNetwork + " lo=" + mLo + "s hi=" + mHi + "s" +
+				(isConverged() ? " (converged)" : "");
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+/*
+ * Fixed-size histogram of millisecond latencies.  Bucket boundaries grow by
+ * sqrt(2) so we get ~20% resolution from 1ms up to ~17 minutes in 40 longs,
+ * which is small enough to persist as a single comma-separated pref string.
+ */
+public class LatencyHistogram {
+
+	private static final int NUM_BUCKETS = 40;
+	private static final long BOUNDS[] = new long[NUM_BUCKETS];
+
+	static {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			BOUNDS[i] = Math.round(Math.pow(2.0, (i + 1) / 2.0));
+		}
+	}
+
+	private long mBuckets[] = new long[NUM_BUCKETS];
+	private long mCount;
+	private long mMax;
+
+	private static int bucketFor(long ms) {
+		for (int i = 0; i < NUM_BUCKETS - 1; i++) {
+			if (ms <= BOUNDS[i]) {
+				return i;
+			}
+		}
+		return NUM_BUCKETS - 1;
+	}
+
+	public synchronized void add(long ms) {
+		if (ms < 0) {
+			ms = 0;
+		}
+		mBuckets[bucketFor(ms)]++;
+		mCount++;
+		if (ms > mMax) {
+			mMax = ms;
+		}
+	}
+
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	public synchronized long getMax() {
+		return mMax;
+	}
+
+	/* returns the upper bound of the bucket holding the requested percentile, or -1 if empty */
+	public synchronized long getPercentile(double pct) {
+		if (mCount == 0) {
+			return -1;
+		}
+		long rank = (long)Math.ceil(mCount * pct / 100.0);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += mBuckets[i];
+			if (seen >= rank) {
+				return Math.min(BOUNDS[i], mMax);
+			}
+		}
+		return mMax;
+	}
+
+	public synchronized void clear() {
+		mBuckets = new long[NUM_BUCKETS];
+		mCount = 0;
+		mMax = 0;
+	}
+
+	/* "max,b0,b1,...,b39" */
+	public synchronized String encode() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(mMax);
+		for (long b : mBuckets) {
+			sb.append(',').append(b);
+		}
+		return sb.toString();
+	}
+
+	public synchronized boolean decode(String s) {
+		clear();
+		if (s == null || s.equals("")) {
+			return false;
+		}
+
+		String ss[] = s.split(",");
+		if (ss.length != NUM_BUCKETS + 1) {
+			return false;
+		}
+		try {
+			long buckets[] = new long[NUM_BUCKETS];
+			long count = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				buckets[i] = Long.parseLong(ss[i + 1]);
+				count += buckets[i];
+			}
+			mMax = Long.parseLong(ss[0]);
+			mBuckets = buckets;
+			mCount = count;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	public synchronized String summarize() {
+		if (mCount == 0) {
+			return "n=0";
+		}
+		return "n=" + mCount +
+				" p50=" + getPercentile(50) + "ms" +
+				" p90=" + getPercentile(90) + "ms" +
+				" p99=" + getPercentile(99) + "ms" +
+				" max=" + mMax + "ms";
+	}
+}
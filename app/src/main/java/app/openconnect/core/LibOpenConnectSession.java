@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import org.infradead.libopenconnect.LibOpenConnect;
+
+/* VPNSession backed by the native library; callbacks are forwarded as-is */
+public class LibOpenConnectSession extends LibOpenConnect implements VPNSession {
+
+	public static final VPNSession.Factory FACTORY = new VPNSession.Factory() {
+		@Override
+		public VPNSession create(String userAgent, VPNSession.Callbacks callbacks) {
+			if (userAgent != null) {
+				return new LibOpenConnectSession(userAgent, callbacks);
+			}
+			return new LibOpenConnectSession(callbacks);
+		}
+	};
+
+	private VPNSession.Callbacks mCallbacks;
+
+	public LibOpenConnectSession(String userAgent, VPNSession.Callbacks callbacks) {
+		super(userAgent);
+		mCallbacks = callbacks;
+	}
+
+	public LibOpenConnectSession(VPNSession.Callbacks callbacks) {
+		super();
+		mCallbacks = callbacks;
+	}
+
+	@Override
+	public int onValidatePeerCert(String reason) {
+		return mCallbacks.onValidatePeerCert(reason);
+	}
+
+	@Override
+	public int onWriteNewConfig(byte[] buf) {
+		return mCallbacks.onWriteNewConfig(buf);
+	}
+
+	@Override
+	public int onProcessAuthForm(LibOpenConnect.AuthForm authForm) {
+		return mCallbacks.onProcessAuthForm(authForm);
+	}
+
+	@Override
+	public void onProgress(int level, String msg) {
+		mCallbacks.onProgress(level, msg);
+	}
+
+	@Override
+	public void onProtectSocket(int fd) {
+		mCallbacks.onProtectSocket(fd);
+	}
+
+	@Override
+	public void onStatsUpdate(LibOpenConnect.VPNStats stats) {
+		mCallbacks.onStatsUpdate(stats);
+	}
+}
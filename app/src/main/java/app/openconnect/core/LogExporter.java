@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import android.content.Context;
+import android.net.Uri;
+
+/*
+ * Streams the connection log to a file or socket instead of building it up
+ * as one String.  Exports meant for sharing are gzipped into the cache dir,
+ * where FileProvider hands them out.  The file name is random, and on
+ * API 16+ the provider is not exported, so the only way in is the read
+ * grant that goes with the share intent.
+ *
+ * A share target may read its URI long after the chooser returns (a mail
+ * outbox, a background upload), so exports are only swept once they are
+ * older than MAX_EXPORT_AGE_MS.
+ */
+public class LogExporter {
+
+	public static final String SUFFIX = ".log.gz";
+	public static final String MIME_TYPE = "application/x-gzip";
+	private static final int BUF_SIZE = 8192;
+	private static final long MAX_EXPORT_AGE_MS = 24 * 60 * 60 * 1000L;
+
+	/* writes the log, then "trailer" (may be null); closes nothing */
+	public static void write(VPNLog log, String trailer, OutputStream os, boolean gzip)
+			throws IOException {
+		GZIPOutputStream zos = gzip ? new GZIPOutputStream(os, BUF_SIZE) : null;
+		Writer w = new BufferedWriter(new OutputStreamWriter(gzip ? zos : os, "UTF-8"), BUF_SIZE);
+
+		log.writeTo(w);
+		if (trailer != null) {
+			w.write(trailer);
+		}
+		w.flush();
+		if (zos != null) {
+			zos.finish();
+		}
+	}
+
+	/* deletes exports left in the cache dir that no share target should still need */
+	public static void deleteStaleExports(Context context) {
+		long cutoff = System.currentTimeMillis() - MAX_EXPORT_AGE_MS;
+		File old[] = context.getCacheDir().listFiles();
+		if (old != null) {
+			for (File f : old) {
+				if (f.getName().endsWith(SUFFIX) && f.lastModified() < cutoff) {
+					f.delete();
+				}
+			}
+		}
+	}
+
+	/* not on the UI thread */
+	public static Uri exportToCache(Context context, OpenVpnService service) throws IOException {
+		deleteStaleExports(context);
+
+		File out = new File(context.getCacheDir(), "openconnect-" + UUID.randomUUID() + SUFFIX);
+		FileOutputStream fos = new FileOutputStream(out);
+		boolean ok = false;
+		try {
+			service.writeLog(fos, true);
+			ok = true;
+		} finally {
+			fos.close();
+			if (!ok) {
+				out.delete();
+			}
+		}
+		return Uri.parse("content://app.openconnect.FileProvider/" + out.getName());
+	}
+}
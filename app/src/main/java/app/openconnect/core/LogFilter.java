@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.regex.Pattern;
+
+/*
+ * Which log entries to show: an exact level, a tag (the "AUTH:", "ROUTE:"...
+ * prefix most of our messages start with) and/or text, either as a
+ * case-insensitive substring or a regular expression.  Immutable, so the
+ * background scan in VPNLog can use it without locking.
+ */
+public class LogFilter {
+
+	public static final int TAG_NONE = 0;
+	public static final int TAG_LIB = 1;
+	public static final int TAG_AUTH = 2;
+	public static final int TAG_ROUTE = 3;
+	public static final int TAG_DNS = 4;
+	public static final int TAG_STAT = 5;
+	public static final int NUM_TAGS = 6;
+
+	/* indexed by TAG_*; TAG_LIB is detected by VPNLogItem itself */
+	private static final String TAG_PREFIXES[] = { null, "LIB: ", "AUTH:", "ROUTE:", "DNS:", "STAT:" };
+
+	private final int mLevel;
+	private final int mTag;
+	private final String mText;
+	private final Pattern mPattern;
+
+	/* level/tag < 0 match anything; throws PatternSyntaxException on a bad regex */
+	public LogFilter(int level, int tag, String text, boolean regex) {
+		mLevel = level;
+		mTag = tag;
+		if (text == null || text.length() == 0) {
+			mText = null;
+			mPattern = null;
+		} else if (regex) {
+			mText = null;
+			mPattern = Pattern.compile(text, Pattern.CASE_INSENSITIVE);
+		} else {
+			mText = text;
+			mPattern = null;
+		}
+	}
+
+	public static int classify(String msg) {
+		for (int i = TAG_AUTH; i < NUM_TAGS; i++) {
+			if (msg.startsWith(TAG_PREFIXES[i])) {
+				return i;
+			}
+		}
+		return TAG_NONE;
+	}
+
+	public int getLevel() {
+		return mLevel;
+	}
+
+	public int getTag() {
+		return mTag;
+	}
+
+	public boolean hasText() {
+		return mText != null || mPattern != null;
+	}
+
+	/* true if this filter lets everything through */
+	public boolean isEmpty() {
+		return mLevel < 0 && mTag < 0 && !hasText();
+	}
+
+	public boolean matches(VPNLogItem li) {
+		if (mLevel >= 0 && li.getLevel() != mLevel) {
+			return false;
+		}
+		if (mTag >= 0 && li.getTag() != mTag) {
+			return false;
+		}
+		if (mPattern != null) {
+			return mPattern.matcher(li.getMessage()).find();
+		}
+		if (mText != null) {
+			return containsIgnoreCase(li.getMessage(), mText);
+		}
+		return true;
+	}
+
+	private static boolean containsIgnoreCase(String haystack, String needle) {
+		int n = needle.length();
+		for (int i = 0; i + n <= haystack.length(); i++) {
+			if (haystack.regionMatches(true, i, needle, 0, n)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
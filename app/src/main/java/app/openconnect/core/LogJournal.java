@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.util.Log;
+
+/*
+ * Append-only on-disk copy of the VPN log, so it survives the process being
+ * killed.  Records are:
+ *
+ *   varint length | varint timestamp (ms) | header byte (level | flags) | UTF-8 message
+ *
+ * where "length" covers the header byte and message, i.e. VPNLogItem's
+ * packed form is written as-is.  New records are buffered on the UI thread
+ * and handed to a writer thread every FLUSH_INTERVAL ms (or sooner, if the
+ * buffer fills).  Files are rotated at SEGMENT_SIZE and only the newest
+ * MAX_SEGMENTS are kept.  After a torn write (e.g. the process was killed
+ * mid-flush) appending moves on to a new segment, so a damaged record can
+ * only ever be the last one in its file.
+ *
+ * Replay happens on the writer thread and reads the newest segments first,
+ * stopping as soon as the ring is full, so service start doesn't wait on
+ * up to MAX_SEGMENTS * SEGMENT_SIZE of old log.
+ */
+public class LogJournal {
+
+	public static final String TAG = "OpenConnect";
+
+	private static final String SEGMENT_PREFIX = "seg-";
+	private static final String SEGMENT_SUFFIX = ".bin";
+
+	public static final int SEGMENT_SIZE = 1024 * 1024;
+	public static final int MAX_SEGMENTS = 8;
+
+	private static final long FLUSH_INTERVAL = 2000;
+	private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+	private final File mDir;
+	private final Handler mHandler;
+	private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+	/* UI thread */
+	private byte mBuf[] = new byte[8192];
+	private int mLen;
+	private boolean mFlushScheduled;
+	private boolean mCleared;
+
+	/* writer thread */
+	private FileOutputStream mOut;
+	private long mSegment;
+	private long mSegmentBytes;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public LogJournal(File dir, Handler handler) {
+		mDir = dir;
+		mHandler = handler;
+	}
+
+	private static long segmentNumber(File f) {
+		String name = f.getName();
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/* existing segments, oldest first */
+	private File[] listSegments() {
+		File files[] = mDir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		ArrayList<File> segs = new ArrayList<File>();
+		for (File f : files) {
+			if (segmentNumber(f) >= 0) {
+				segs.add(f);
+			}
+		}
+		File ret[] = segs.toArray(new File[segs.size()]);
+		Arrays.sort(ret, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long na = segmentNumber(a), nb = segmentNumber(b);
+				return na < nb ? -1 : (na == nb ? 0 : 1);
+			}
+		});
+		return ret;
+	}
+
+	private static int putVarint(byte buf[], int off, long val) {
+		while ((val & ~0x7fL) != 0) {
+			buf[off++] = (byte)((val & 0x7f) | 0x80);
+			val >>>= 7;
+		}
+		buf[off++] = (byte)val;
+		return off;
+	}
+
+	/* returns -1 on a truncated or corrupt varint */
+	private static long getVarint(MappedByteBuffer b) {
+		long val = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!b.hasRemaining()) {
+				return -1;
+			}
+			int c = b.get();
+			val |= (long)(c & 0x7f) << shift;
+			if ((c & 0x80) == 0) {
+				return val;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Appends the newest "max" complete records in f to out, oldest first.
+	 * Returns false if the segment ends in a partial record.
+	 */
+	private static boolean readSegment(File f, int max, ArrayList<VPNLogItem> out) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel ch = in.getChannel();
+			MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+			// the first pass only skips over the records to find where each one starts
+			int starts[] = new int[256];
+			int n = 0;
+			boolean clean = true;
+			while (b.hasRemaining()) {
+				int start = b.position();
+				long len = getVarint(b);
+				long time = getVarint(b);
+				if (len <= 0 || time < 0 || len > b.remaining()) {
+					clean = false;
+					break;
+				}
+				b.position(b.position() + (int)len);
+				if (n == starts.length) {
+					starts = Arrays.copyOf(starts, n * 2);
+				}
+				starts[n++] = start;
+			}
+
+			// older records would just fall off the end of the ring, so don't decode them
+			for (int i = Math.max(n - max, 0); i < n; i++) {
+				b.position(starts[i]);
+				int len = (int)getVarint(b);
+				long time = getVarint(b);
+				byte data[] = new byte[len];
+				b.get(data);
+				out.add(new VPNLogItem(time, data));
+			}
+			return clean;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Writer thread.  Reads segments newest first until it has "max" records,
+	 * and returns them oldest first.  Also decides where new records go: the
+	 * end of the last segment if it is intact and has room, otherwise a new
+	 * one.
+	 */
+	ArrayList<VPNLogItem> readTail(int max) {
+		ArrayList<ArrayList<VPNLogItem>> chunks = new ArrayList<ArrayList<VPNLogItem>>();
+		int total = 0;
+
+		mDir.mkdirs();
+		File segs[] = listSegments();
+		mSegment = 0;
+		for (int i = segs.length - 1; i >= 0 && (total < max || i == segs.length - 1); i--) {
+			ArrayList<VPNLogItem> chunk = new ArrayList<VPNLogItem>();
+			boolean clean;
+			try {
+				clean = readSegment(segs[i], max - total, chunk);
+			} catch (IOException e) {
+				Log.w(TAG, "error replaying " + segs[i], e);
+				clean = false;
+			}
+			if (i == segs.length - 1) {
+				long last = segmentNumber(segs[i]);
+				mSegment = clean && segs[i].length() < SEGMENT_SIZE ? last : last + 1;
+			}
+			chunks.add(chunk);
+			total += chunk.size();
+		}
+
+		ArrayList<VPNLogItem> ret = new ArrayList<VPNLogItem>(total);
+		for (int i = chunks.size() - 1; i >= 0; i--) {
+			ret.addAll(chunks.get(i));
+		}
+		return ret;
+	}
+
+	/*
+	 * UI thread.  Loads the newest entries into the log in the background;
+	 * they show up in front of anything logged in the meantime.  Call once,
+	 * before append().  Records appended before the replay is done are queued
+	 * behind it on the writer thread, so they never race the choice of
+	 * segment.
+	 */
+	public void replay(final VPNLog log) {
+		final int max = log.getCapacity();
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				final ArrayList<VPNLogItem> items = readTail(max);
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						// clear() got there first
+						if (!mCleared) {
+							log.restore(items);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/* UI thread */
+	public void append(VPNLogItem li) {
+		byte data[] = li.getData();
+		int need = mLen + data.length + 20;
+		if (need > mBuf.length) {
+			mBuf = Arrays.copyOf(mBuf, Math.max(need, mBuf.length * 2));
+		}
+		mLen = putVarint(mBuf, mLen, data.length);
+		mLen = putVarint(mBuf, mLen, li.getTime());
+		System.arraycopy(data, 0, mBuf, mLen, data.length);
+		mLen += data.length;
+
+		if (mLen >= FLUSH_THRESHOLD) {
+			flush();
+		} else if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL);
+		}
+	}
+
+	/* UI thread: hands the buffered records to the writer thread */
+	public void flush() {
+		mHandler.removeCallbacks(mFlushRunnable);
+		mFlushScheduled = false;
+		if (mLen == 0) {
+			return;
+		}
+		final byte chunk[] = Arrays.copyOf(mBuf, mLen);
+		mLen = 0;
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				write(chunk);
+			}
+		});
+	}
+
+	/* UI thread: drops everything, buffered and on disk */
+	public void clear() {
+		mHandler.removeCallbacks(mFlushRunnable);
+		mFlushScheduled = false;
+		mLen = 0;
+		mCleared = true;
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeSegment();
+				for (File f : listSegments()) {
+					f.delete();
+				}
+				mSegment++;
+			}
+		});
+	}
+
+	/* UI thread: flushes and waits briefly for the writer to finish */
+	public void close() {
+		flush();
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeSegment();
+			}
+		});
+		mWriter.shutdown();
+		try {
+			mWriter.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void closeSegment() {
+		if (mOut != null) {
+			try {
+				mOut.close();
+			} catch (IOException e) {
+			}
+			mOut = null;
+		}
+	}
+
+	private void write(byte chunk[]) {
+		try {
+			if (mOut == null) {
+				mDir.mkdirs();
+				File f = new File(mDir, SEGMENT_PREFIX + mSegment + SEGMENT_SUFFIX);
+				mSegmentBytes = f.length();
+				mOut = new FileOutputStream(f, true);
+			}
+			mOut.write(chunk);
+			mSegmentBytes += chunk.length;
+		} catch (IOException e) {
+			Log.w(TAG, "error writing log journal", e);
+			closeSegment();
+			mSegment++;
+			return;
+		}
+
+		if (mSegmentBytes >= SEGMENT_SIZE) {
+			closeSegment();
+			mSegment++;
+			File segs[] = listSegments();
+			for (int i = 0; i < segs.length - MAX_SEGMENTS; i++) {
+				segs[i].delete();
+			}
+		}
+	}
+}
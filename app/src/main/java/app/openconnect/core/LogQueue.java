@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+
+/*
+ * Hands log messages from the VPN/keepalive threads to VPNLog on the UI
+ * thread.  Producers append to a lock-free queue and only the first message
+ * after a drain posts anything to the Handler; the drain then moves the whole
+ * backlog into VPNLog in one batch, at most once per frame.
+ *
+ * The queue is bounded: once CAPACITY messages are waiting, new ones are
+ * counted and dropped, and the count shows up in the log on the next drain.
+ */
+public class LogQueue {
+
+	public static final int CAPACITY = 4096;
+	private static final long DRAIN_DELAY = 16;
+
+	private final ConcurrentLinkedQueue<VPNLogItem> mQueue = new ConcurrentLinkedQueue<VPNLogItem>();
+	private final AtomicInteger mSize = new AtomicInteger();
+	private final AtomicInteger mDropped = new AtomicInteger();
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+	private final Handler mHandler;
+	private final VPNLog mLog;
+	private final ArrayList<VPNLogItem> mBatch = new ArrayList<VPNLogItem>();
+	private long mTotalDropped;
+
+	private final Runnable mDrainRunnable = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public LogQueue(Handler handler, VPNLog log) {
+		mHandler = handler;
+		mLog = log;
+	}
+
+	/* any thread; returns false if the message was dropped */
+	public boolean add(int level, String msg) {
+		if (mSize.incrementAndGet() > CAPACITY) {
+			mSize.decrementAndGet();
+			mDropped.incrementAndGet();
+			return false;
+		}
+		// timestamp is taken here, not when the UI thread gets around to it
+		mQueue.add(new VPNLogItem(level, msg));
+		if (mScheduled.compareAndSet(false, true)) {
+			mHandler.postDelayed(mDrainRunnable, DRAIN_DELAY);
+		}
+		return true;
+	}
+
+	/* UI thread only */
+	public void drain() {
+		// clear the flag first, so anything added after this point schedules another drain
+		mScheduled.set(false);
+
+		VPNLogItem item;
+		while ((item = mQueue.poll()) != null) {
+			mBatch.add(item);
+		}
+		mSize.addAndGet(-mBatch.size());
+
+		int dropped = mDropped.getAndSet(0);
+		if (dropped > 0) {
+			mTotalDropped += dropped;
+			mBatch.add(new VPNLogItem(VPNLog.LEVEL_ERR, "LOG: dropped " + dropped +
+					" messages (" + mTotalDropped + " total)"));
+		}
+		if (!mBatch.isEmpty()) {
+			mLog.addAll(mBatch);
+			mBatch.clear();
+		}
+	}
+
+	/* UI thread only */
+	public long getTotalDropped() {
+		return mTotalDropped;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/*
+ * Formats log timestamps for one of the "timestamp_format" settings.  The
+ * SimpleDateFormat and Date are created once, and since log lines only show
+ * whole seconds the last formatted prefix is reused until the second changes.
+ * Not thread safe.
+ */
+public class LogTimeFormatter {
+
+	private final SimpleDateFormat mFormat;
+	private final Date mDate = new Date();
+	private long mLastSecond = Long.MIN_VALUE;
+	private String mLastPrefix = "";
+
+	public LogTimeFormatter(String timeFormat) {
+		if (timeFormat.equals("none")) {
+			mFormat = null;
+		} else if (timeFormat.equals("long")) {
+			mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+		} else {
+			mFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+		}
+	}
+
+	/* "HH:mm:ss " or similar, or "" if timestamps are turned off */
+	public String prefix(long ms) {
+		if (mFormat == null) {
+			return "";
+		}
+		long sec = ms / 1000;
+		if (sec != mLastSecond) {
+			mDate.setTime(ms);
+			mLastPrefix = mFormat.format(mDate) + " ";
+			mLastSecond = sec;
+		}
+		return mLastPrefix;
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+/*
+ * Turns the raw stream of connectivity broadcasts into settled network
+ * states.  A Wi-Fi/LTE handover can produce several CONNECTIVITY_ACTIONs
+ * within a second, and reacting to each one would pause, resume and
+ * reconnect the tunnel repeatedly.
+ *
+ * Every event restarts a debounce timer for the state it reports, and only
+ * the state still current when the timer fires reaches the Listener.  The
+ * windows differ per transition (hysteresis): a drop has to last a little
+ * while before we pause, and a handover longer still, since acting on it
+ * tears down the CSTP/DTLS session.  A burst that never goes quiet is
+ * committed after MAX_SETTLE_MS anyway, and handover reconnects are spaced
+ * at least MIN_RECONNECT_INTERVAL_MS apart.
+ *
+ * Time comes from a Clock, so the machine can be driven by a Handler in the
+ * app or by a virtual clock elsewhere.  All calls must come from the thread
+ * the Clock runs its callbacks on; the counters may be read from anywhere.
+ */
+public class NetworkStateMachine {
+
+	public interface Clock {
+		/* monotonic milliseconds */
+		long now();
+
+		void postDelayed(Runnable r, long delayMs);
+
+		void cancel(Runnable r);
+	}
+
+	public interface Listener {
+		/*
+		 * The network settled into a new state.  typeChanged is set when it came
+		 * up on a different network type than the last one we were connected to.
+		 */
+		void onNetworkSettled(boolean connected, boolean typeChanged);
+	}
+
+	public static final int TYPE_NONE = -1;
+
+	/* a drop has to last this long before we pause */
+	static final long DOWN_DELAY_MS = 2000;
+
+	/* the same network coming back */
+	static final long UP_DELAY_MS = 1000;
+
+	/* a different network; acting on it costs a reconnect */
+	static final long TYPE_CHANGE_DELAY_MS = 3000;
+
+	/* a burst that keeps restarting the timer is committed after this long */
+	static final long MAX_SETTLE_MS = 15000;
+
+	static final long MIN_RECONNECT_INTERVAL_MS = 10000;
+
+	private final Clock mClock;
+	private final Listener mListener;
+
+	/* settled state */
+	private boolean mKnown;
+	private boolean mConnected;
+	private int mType = TYPE_NONE;
+	private long mLastHandover;
+	private boolean mHadHandover;
+
+	/* candidate state waiting for its timer */
+	private boolean mPending;
+	private boolean mPendingConnected;
+	private int mPendingType;
+	private long mPendingSince;
+	private int mPendingEvents;
+	private boolean mPendingCapped;
+
+	private volatile long mEvents;
+	private volatile long mSuppressed;
+	private volatile long mUps;
+	private volatile long mDowns;
+	private volatile long mHandovers;
+	private volatile long mForced;
+
+	private final Runnable mSettleRunnable = new Runnable() {
+		@Override
+		public void run() {
+			settle();
+		}
+	};
+
+	public NetworkStateMachine(Clock clock, Listener listener) {
+		mClock = clock;
+		mListener = listener;
+	}
+
+	private boolean isSettledState(boolean connected, int type) {
+		return connected == mConnected && (!connected || type == mType);
+	}
+
+	/* one raw observation; type is only meaningful if connected */
+	public void onEvent(boolean connected, int type) {
+		mEvents++;
+
+		// nothing to debounce against yet: the first (sticky) broadcast is taken as is
+		if (!mKnown) {
+			mKnown = true;
+			mConnected = connected;
+			if (connected) {
+				mType = type;
+			}
+			mListener.onNetworkSettled(connected, false);
+			return;
+		}
+
+		if (isSettledState(connected, type)) {
+			if (mPending) {
+				// flapped back before the timer fired; the whole burst was noise
+				mClock.cancel(mSettleRunnable);
+				mPending = false;
+				mSuppressed += mPendingEvents + 1;
+			} else {
+				mSuppressed++;
+			}
+			return;
+		}
+
+		long now = mClock.now();
+		if (!mPending) {
+			mPending = true;
+			mPendingSince = now;
+			mPendingEvents = 0;
+		}
+		mPendingEvents++;
+		mPendingConnected = connected;
+		mPendingType = type;
+
+		long delay;
+		boolean handover = false;
+		if (!connected) {
+			delay = DOWN_DELAY_MS;
+		} else if (mType == TYPE_NONE || type == mType) {
+			delay = UP_DELAY_MS;
+		} else {
+			delay = TYPE_CHANGE_DELAY_MS;
+			handover = true;
+		}
+
+		long due = now + delay;
+		mPendingCapped = due >= mPendingSince + MAX_SETTLE_MS;
+		if (mPendingCapped) {
+			due = mPendingSince + MAX_SETTLE_MS;
+		}
+		if (handover && mHadHandover) {
+			due = Math.max(due, mLastHandover + MIN_RECONNECT_INTERVAL_MS);
+		}
+
+		mClock.cancel(mSettleRunnable);
+		mClock.postDelayed(mSettleRunnable, Math.max(0, due - now));
+	}
+
+	private void settle() {
+		if (!mPending) {
+			return;
+		}
+		mPending = false;
+		mSuppressed += mPendingEvents - 1;
+		if (mPendingCapped) {
+			mForced++;
+		}
+
+		boolean typeChanged = mPendingConnected && mType != TYPE_NONE && mPendingType != mType;
+		if (!mPendingConnected) {
+			mDowns++;
+		} else if (typeChanged) {
+			mHandovers++;
+			mHadHandover = true;
+			mLastHandover = mClock.now();
+		} else {
+			mUps++;
+		}
+
+		mConnected = mPendingConnected;
+		if (mConnected) {
+			mType = mPendingType;
+		}
+		mListener.onNetworkSettled(mConnected, typeChanged);
+	}
+
+	/* drops any pending transition */
+	public void stop() {
+		mClock.cancel(mSettleRunnable);
+		mPending = false;
+	}
+
+	public boolean isConnected() {
+		return mConnected;
+	}
+
+	public long getEvents() {
+		return mEvents;
+	}
+
+	public long getSuppressed() {
+		return mSuppressed;
+	}
+
+	public long getTransitions() {
+		return mUps + mDowns + mHandovers;
+	}
+
+	public String dump() {
+		return "NETSTATE: " + mEvents + " events, " + mSuppressed + " suppressed, " +
+				mUps + " up, " + mDowns + " down, " + mHandovers + " handovers, " +
+				mForced + " forced by bursts\n";
+	}
+}
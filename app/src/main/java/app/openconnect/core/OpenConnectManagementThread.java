@@ -30,12 +30,25 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
 import java.security.MessageDigest;
-import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +57,7 @@ import android.content.SharedPreferences;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 
@@ -67,6 +81,7 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 	public static final int STATE_CONNECTING = 4;
 	public static final int STATE_CONNECTED = 5;
 	public static final int STATE_DISCONNECTED = 6;
+	public static final int STATE_RECONNECTING = 7;
 
 	private Context mContext;
 	private VpnProfile mProfile;
@@ -76,24 +91,80 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 	private String mFilesDir;
 	private String mCacheDir;
 	private String mServerAddr;
+	private HashMap<String,String> mTempFiles = new HashMap<String,String>();
 
-	private LibOpenConnect mOC;
+	private VPNSession.Factory mSessionFactory;
+	private volatile VPNSession mOC;
 	private boolean mAuthgroupSet = false;
 	private String mLastFormDigest;
 	private HashMap<String,Boolean> mAcceptedCerts = new HashMap<String,Boolean>();
 	private HashMap<String,Boolean> mRejectedCerts = new HashMap<String,Boolean>();
 	private boolean mAuthDone = false;
+	private ConnectTracer mTracer;
+	private SessionCache mSessionCache;
+	private TempFileCache mTempFileCache;
+	private boolean mSessionResume;
 
-	private boolean mRequestPause;
-	private boolean mRequestDisconnect;
-	private Object mMainloopLock = new Object();
+	/* VPN thread only */
+	private SessionHistory mHistory;
+	private SessionHistory.Record mRecord;
+	private LibOpenConnect.VPNStats mLastStats;
+
+	/* pause/resume/stop/reconnect/requestStats from other threads */
+	private SessionControl mControl = new SessionControl();
+
+	private volatile boolean mDetach;
+	private volatile boolean mTunnelUp;
+
+	/* how long the library retries on its own before the ReconnectPolicy takes over */
+	private static final int LIB_RECONNECT_TIMEOUT = 60;
+
+	private static final int DTLS_ATTEMPT_PERIOD = 60;
+
+	/* mainloop() and makeCSTPConnection() return -errno; see openconnect.h */
+	private static final int EPERM = 1;
+	private static final int EINTR = 4;
+	private static final int EPIPE = 32;
+
+	static final int ERROR_LINK = 0;
+	static final int ERROR_CANCELLED = 1;
+	static final int ERROR_AUTH = 2;
+	static final int ERROR_TERMINATED = 3;
+
+	private static final long PRECONNECT_TIMEOUT_MS = 30000;
+	private static final long PRECONNECT_POLL_MS = 250;
+	private static final long PRECONNECT_IDLE_SEC = 30;
+
+	private ReconnectPolicy mReconnectPolicy;
+	private ReconnectMetrics mReconnectMetrics = new ReconnectMetrics();
+
+	/* VPN thread only: what the initial connection used, so reconnects match it */
+	private int mDTLSAttemptPeriod;
 
     public OpenConnectManagementThread(Context context, VpnProfile profile, OpenVpnService openVpnService) {
+    	this(context, profile, openVpnService, LibOpenConnectSession.FACTORY);
+    }
+
+    public OpenConnectManagementThread(Context context, VpnProfile profile, OpenVpnService openVpnService,
+    		VPNSession.Factory sessionFactory) {
+    	this(context, profile, openVpnService, sessionFactory,
+    			PreferenceManager.getDefaultSharedPreferences(context), new BackoffReconnectPolicy());
+    }
+
+    /* for tests: everything the thread would otherwise look up for itself */
+    OpenConnectManagementThread(Context context, VpnProfile profile, OpenVpnService openVpnService,
+    		VPNSession.Factory sessionFactory, SharedPreferences appPrefs, ReconnectPolicy reconnectPolicy) {
     	mContext = context;
+    	mSessionFactory = sessionFactory;
 		mProfile = profile;
 		mOpenVPNService = openVpnService;
 		mPrefs = mProfile.mPrefs;
-		mAppPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+		mAppPrefs = appPrefs;
+		mReconnectPolicy = reconnectPolicy;
+		mTracer = new ConnectTracer(mContext, mProfile.getUUIDString());
+		mSessionCache = new SessionCache(mContext);
+		mTempFileCache = new TempFileCache(mContext);
+		mHistory = new SessionHistory(mContext);
 	}
 
     private String getStringPref(final String key) {
@@ -108,44 +179,73 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
     	mPrefs.edit().putString(key, value).commit();
     }
 
-    private String formatTime(long in) {
-    	if (in <= 0) {
-    		return "NEVER";
-    	}
-    	DateFormat df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, Locale.US);
-    	return df.format(in);
+    private void markCancelled() {
+    	mRecord.outcome = SessionHistory.OUTCOME_CANCELLED;
     }
 
-    private void updateStatPref(final String key) {
-    	long count = mPrefs.getLong(key, 0) + 1;
-    	long now = System.currentTimeMillis();
-    	long first = mPrefs.getLong(key + "_first", now);
+    /* fills in whatever runVPN() didn't, and appends the record to the history */
+    private void finishRecord() {
+    	SessionHistory.Record r = mRecord;
+    	r.end = System.currentTimeMillis();
+    	r.tunnelDown(SystemClock.elapsedRealtime());
 
-    	SharedPreferences.Editor ed = mPrefs.edit();
-    	ed.putLong(key, count);
-    	ed.putLong(key + "_first", first);
-    	ed.putLong(key + "_prev", now);
-    	ed.apply();
+    	if (r.outcome == SessionHistory.OUTCOME_FAILED && isStopping()) {
+    		r.outcome = SessionHistory.OUTCOME_CANCELLED;
+    	}
+    	if (r.outcome != SessionHistory.OUTCOME_CONNECTED && r.reason.length() == 0) {
+    		int phase = mTracer.getPhase();
+    		r.reason = phase < 0 ? "unknown" : ConnectTracer.getPhaseName(phase);
+    	}
+    	for (int i = 0; i < ConnectTracer.NUM_PHASES; i++) {
+    		r.phases[i] = mTracer.getLast(i);
+    	}
+    	LibOpenConnect.VPNStats stats = mLastStats;
+    	if (stats != null) {
+    		r.rxBytes = stats.rxBytes;
+    		r.txBytes = stats.txBytes;
+    	}
+    	mHistory.append(r);
     }
 
-    private void logOneStat(final String key) {
-    	long count = mPrefs.getLong(key, 0);
-    	long first = mPrefs.getLong(key + "_first", 0);
-    	long prev = mPrefs.getLong(key + "_prev", 0);
-
-    	log("STAT: " + key + "=" + count + "; first=" + formatTime(first) + "; prev=" + formatTime(prev));
+    /* VPN thread; Record.dtlsUp()/dtlsDown() ignore calls that don't change anything */
+    private void updateDTLSState() {
+    	if (mOC == null || mRecord == null) {
+    		return;
+    	}
+    	if (mOC.getDTLSCipher() != null) {
+    		mRecord.dtlsUp(SystemClock.elapsedRealtime());
+    	} else {
+    		mRecord.dtlsDown(SystemClock.elapsedRealtime());
+    	}
     }
 
-    private void logStats() {
-    	logOneStat("attempt");
-    	logOneStat("connect");
-    	logOneStat("cancel");
+    private void logHistory() {
+    	SessionHistory.Summary s = mHistory.summarize(mProfile.getUUIDString());
+    	StringBuilder sb = new StringBuilder("STAT: sessions=" + s.attempts +
+    			"; connected=" + s.connected + "; failed=" + s.failed + "; cancelled=" + s.cancelled);
+    	if (s.getSuccessPercent() >= 0) {
+    		sb.append("; success=" + s.getSuccessPercent() + "%");
+    	}
+    	if (s.medianConnectMs >= 0) {
+    		sb.append("; median_connect=" + s.medianConnectMs + "ms");
+    	}
+    	log(sb.toString());
     }
 
     private void log(String msg) {
     	mOpenVPNService.log(VPNLog.LEVEL_INFO, msg);
     }
 
+    /* user think-time is excluded from the connect phase timings */
+    private Object promptUser(UserDialog dialog) {
+    	mTracer.promptStarted();
+    	try {
+    		return mOpenVPNService.promptUser(dialog);
+    	} finally {
+    		mTracer.promptFinished();
+    	}
+    }
+
     private boolean isCertAccepted(String hash) {
     	if (mAcceptedCerts.containsKey(hash) ||
     			getStringPref("ACCEPTED-CERT-" + hash).equals("true")) {
@@ -161,15 +261,7 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		}
     }
 
-	private class AndroidOC extends LibOpenConnect {
-		AndroidOC() {
-			super();
-		}
-
-		AndroidOC(String userAgent) {
-			super(userAgent);
-		}
-
+	private class SessionCallbacks implements VPNSession.Callbacks {
 		private String getPeerCertSHA1() {
 			MessageDigest md;
 			try {
@@ -181,7 +273,7 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			}
 
 			md.reset();
-			md.update(getPeerCertDER());
+			md.update(mOC.getPeerCertDER());
 
 			Formatter f = new Formatter();
 			for (byte b : md.digest()) {
@@ -209,8 +301,8 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 				return -1;
 			}
 
-			Integer response = (Integer)mOpenVPNService.promptUser(
-					new CertWarningDialog(mPrefs, getHostname(), hash, reason));
+			Integer response = (Integer)promptUser(
+					new CertWarningDialog(mPrefs, mOC.getHostname(), hash, reason));
 
 			if (response != CertWarningDialog.RESULT_NO) {
 				acceptCert(hash, response == CertWarningDialog.RESULT_ALWAYS);
@@ -243,11 +335,11 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			setState(STATE_USER_PROMPT);
 			AuthFormHandler h = new AuthFormHandler(mPrefs, authForm, mAuthgroupSet, mLastFormDigest);
 
-			Integer response = (Integer)mOpenVPNService.promptUser(h);
-			if (response == OC_FORM_RESULT_OK) {
+			Integer response = (Integer)promptUser(h);
+			if (response == LibOpenConnect.OC_FORM_RESULT_OK) {
 				setState(STATE_AUTHENTICATING);
 				mLastFormDigest = h.getFormDigest();
-			} else if (response == OC_FORM_RESULT_NEWGROUP) {
+			} else if (response == LibOpenConnect.OC_FORM_RESULT_NEWGROUP) {
 				log("AUTH: requesting authgroup change " +
 						(mAuthgroupSet ? "(interactive)" : "(non-interactive)"));
 				mAuthgroupSet = true;
@@ -258,7 +350,11 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		}
 
 		public void onProgress(int level, String msg) {
-			mOpenVPNService.log(level, "LIB: " + msg.trim());
+			msg = msg.trim();
+			mOpenVPNService.log(level, "LIB: " + msg);
+
+			// the library has no DTLS state callback, but every change comes with a progress message
+			updateDTLSState();
 		}
 
 		public void onProtectSocket(int fd) {
@@ -268,13 +364,20 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		}
 
 		public void onStatsUpdate(LibOpenConnect.VPNStats stats) {
+			updateDTLSState();
+			mControl.statsDelivered();
+			if (stats != null) {
+				mLastStats = stats;
+			}
 			mOpenVPNService.setStats(stats);
 		}
 	}
 
 	@Override
 	public void run() {
-		logStats();
+		mControl.setOwner(Thread.currentThread());
+		mRecord = new SessionHistory.Record(mProfile.getUUIDString());
+		mRecord.start = System.currentTimeMillis();
 
 		try {
 			if (mAppPrefs.getBoolean("loadTunModule", false)) {
@@ -292,10 +395,14 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		}
 		setState(STATE_DISCONNECTED);
 
-		synchronized (mMainloopLock) {
-			mOC.destroy();
-			mOC = null;
-		}
+		finishRecord();
+		logHistory();
+		logLatency();
+
+		// wait out any caller that is still poking the library
+		mControl.close();
+		mOC.destroy();
+		mOC = null;
 		UserDialog.clearDeferredPrefs();
 
 		mOpenVPNService.threadDone();
@@ -359,54 +466,58 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		return prefData.length();
 	}
 
-	private int inlineToTempFile(String path, String prefData, boolean isExecutable)
-			throws IOException {
-		byte data[] = null;
-		int bytes = 0;
-
+	/* Allow reuse of standard x86 Linux CSD scripts */
+	private byte[] fixShebang(byte data[], boolean isExecutable) {
 		try {
-			FileOutputStream fos = new FileOutputStream(path);
-			data = decodeBase64(prefData);
-			bytes = data.length;
-
-			try {
-				/* Allow reuse of standard x86 Linux CSD scripts */
-				if (isExecutable && rewriteShell(new String(data))) {
-					fos.write("#!/system/bin/sh\n".getBytes());
-				}
-			} catch (Exception e) {
-				/* in case we're trying to pattern-match a binary blob */
+			if (isExecutable && rewriteShell(new String(data, "UTF-8"))) {
+				byte hdr[] = "#!/system/bin/sh\n".getBytes("UTF-8");
+				byte out[] = new byte[hdr.length + data.length];
+				System.arraycopy(hdr, 0, out, 0, hdr.length);
+				System.arraycopy(data, 0, out, hdr.length, data.length);
+				return out;
 			}
-			fos.write(data);
-			fos.close();
+		} catch (Exception e) {
+			/* in case we're trying to pattern-match a binary blob */
+		}
+		return data;
+	}
 
-			if (isExecutable) {
-				setExecutable(path);
-			}
+	private byte[] inlineToBytes(String prefData, boolean isExecutable)
+			throws IOException {
+		byte data[];
+		try {
+			data = decodeBase64(prefData);
 		} catch (IllegalArgumentException e) {
 			/* legacy profiles didn't use base64 encoding */
-			bytes = writeCertOrScript(path, prefData, isExecutable);
-		} catch (IOException e) {
-			return -1;
+			data = prefData.getBytes("UTF-8");
 		}
-		return bytes;
+		return fixShebang(data, isExecutable);
 	}
 
 	private String prefToTempFile(String prefName, boolean isExecutable) throws IOException {
 		String prefData = getStringPref(prefName);
-		String path = mCacheDir + File.separator + prefName + ".tmp";
+		String uuid = mProfile.getUUIDString();
 
 		if (prefData.equals("")) {
 			return null;
 		}
 		if (prefData.startsWith(VpnProfile.INLINE_TAG)) {
-			int bytes = inlineToTempFile(path, prefData.substring(10), isExecutable);
-			if (bytes < 0) {
+			String digest = TempFileCache.digest(prefData, isExecutable ? "x" : "-");
+			String path = mTempFileCache.lookup(uuid, prefName, digest);
+			if (path != null) {
+				log("PREF: reusing " + path);
+				return path;
+			}
+
+			byte data[] = inlineToBytes(prefData.substring(10), isExecutable);
+			try {
+				path = mTempFileCache.store(uuid, prefName, digest, data, isExecutable);
+			} catch (IOException e) {
 				log("PREF: I/O exception writing " + prefName);
 				return null;
-			} else {
-				log("PREF: wrote out " + path + " (" + bytes + ")");
 			}
+			log("PREF: wrote out " + path + " (" + data.length + ")");
+			return path;
 		} else {
 			String srcPath;
 
@@ -417,24 +528,197 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 				srcPath = ProfileManager.getCertPath() + prefData;
 			}
 
-			if (isExecutable) {
-				/* Make sure that "#!/system/bin/sh" gets prepended to CSD scripts, if needed */
-				String contents = AssetExtractor.readStringFromFile(srcPath);
-				if (contents == null) {
-					return null;
-				}
-				int bytes = writeCertOrScript(path, contents, true);
-				if (bytes < 0) {
-					log("PREF: I/O exception writing " + prefName);
-					return null;
-				} else {
-					log("PREF: wrote out " + path + " (" + bytes + ")");
-				}
-			} else {
-				path = srcPath;
+			if (!isExecutable) {
+				return srcPath;
+			}
+
+			/* Make sure that "#!/system/bin/sh" gets prepended to CSD scripts, if needed */
+			File src = new File(srcPath);
+			String digest = TempFileCache.digest(srcPath, Long.toString(src.length()),
+					Long.toString(src.lastModified()));
+			String path = mTempFileCache.lookup(uuid, prefName, digest);
+			if (path != null) {
+				log("PREF: reusing " + path);
+				return path;
+			}
+
+			String contents = AssetExtractor.readStringFromFile(srcPath);
+			if (contents == null) {
+				return null;
+			}
+			byte data[] = fixShebang(contents.getBytes("UTF-8"), true);
+			try {
+				path = mTempFileCache.store(uuid, prefName, digest, data, true);
+			} catch (IOException e) {
+				log("PREF: I/O exception writing " + prefName);
+				return null;
+			}
+			log("PREF: wrote out " + path + " (" + data.length + ")");
+			return path;
+		}
+	}
+
+	private void materializeTempFiles() throws IOException {
+		for (String key : ProfileManager.fileSelectKeys) {
+			String path = prefToTempFile(key, key.equals("custom_csd_wrapper"));
+			synchronized (mTempFiles) {
+				mTempFiles.put(key, path);
 			}
 		}
-		return path;
+	}
+
+	private String getTempFile(String key) {
+		synchronized (mTempFiles) {
+			return mTempFiles.get(key);
+		}
+	}
+
+	private String getServerHost() {
+		String s = getStringPref("server_address").trim();
+		if (!s.contains("://")) {
+			s = "https://" + s;
+		}
+		try {
+			return new URI(s).getHost();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/* warm up the system resolver cache (A + AAAA) so the library's getaddrinfo() is instant */
+	private void preResolveServer() {
+		String host = getServerHost();
+		if (host == null || host.equals("")) {
+			return;
+		}
+		try {
+			// behind a proxy the proxy does the lookup, and ours might not even be answerable
+			if (ProxyDetection.getFirstProxy(new URL("https://" + host)) != null) {
+				log("DNS: proxy configured, not pre-resolving " + host);
+				return;
+			}
+		} catch (MalformedURLException e) {
+			return;
+		} catch (URISyntaxException e) {
+			return;
+		}
+		try {
+			InetAddress addrs[] = InetAddress.getAllByName(host);
+			log("DNS: pre-resolved " + host + " (" + addrs.length + " addresses)");
+		} catch (UnknownHostException e) {
+			log("DNS: unable to pre-resolve " + host);
+		}
+	}
+
+	private abstract class PreconnectTask implements Callable<Long> {
+		abstract void work() throws IOException;
+
+		@Override
+		public Long call() throws IOException {
+			long start = SystemClock.elapsedRealtime();
+			work();
+			return SystemClock.elapsedRealtime() - start;
+		}
+	}
+
+	/*
+	 * Shared by every connection attempt; the threads go away after
+	 * PRECONNECT_IDLE_SEC so an idle service doesn't keep them around.
+	 */
+	private static final ThreadPoolExecutor sPreconnectPool;
+	static {
+		sPreconnectPool = new ThreadPoolExecutor(3, 3, PRECONNECT_IDLE_SEC, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		sPreconnectPool.allowCoreThreadTimeOut(true);
+	}
+
+	/*
+	 * Waits for one preconnect step, checking for a stop request every
+	 * PRECONNECT_POLL_MS.  Returns the step's duration, or -1 if it failed,
+	 * missed the deadline, or we were asked to stop; the step itself is left to
+	 * finish on its own.
+	 */
+	private long awaitPreconnect(Future<Long> f, String name, long deadline) {
+		while (true) {
+			long left = deadline - SystemClock.elapsedRealtime();
+			if (isStopping()) {
+				return -1;
+			}
+			if (left <= 0) {
+				log("PRECONNECT: " + name + " timed out");
+				return -1;
+			}
+			try {
+				return f.get(Math.min(left, PRECONNECT_POLL_MS), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				/* check for stop and try again */
+			} catch (ExecutionException e) {
+				log("PRECONNECT: " + name + " failed: " + e.getCause());
+				return -1;
+			} catch (InterruptedException e) {
+				return -1;
+			}
+		}
+	}
+
+	/*
+	 * Asset verification, temp file creation and DNS lookup don't depend on each
+	 * other or on the library, so run them in parallel while this thread builds
+	 * the VPNSession instance.
+	 */
+	private boolean preconnect(String userAgent) {
+		long start = SystemClock.elapsedRealtime();
+		ThreadPoolExecutor pool = sPreconnectPool;
+
+		Future<Long> extract = pool.submit(new PreconnectTask() {
+			@Override
+			void work() {
+				extractBinaries();
+			}
+		});
+		Future<Long> tempFiles = pool.submit(new PreconnectTask() {
+			@Override
+			void work() throws IOException {
+				materializeTempFiles();
+			}
+		});
+		Future<Long> dns = pool.submit(new PreconnectTask() {
+			@Override
+			void work() {
+				preResolveServer();
+			}
+		});
+
+		mOC = mSessionFactory.create(userAgent, new SessionCallbacks());
+		mControl.setSession(mOC);
+		updateLogLevel();
+		long work = SystemClock.elapsedRealtime() - start;
+		long deadline = start + PRECONNECT_TIMEOUT_MS;
+
+		// extraction and DNS are only optimizations; the library copes without them
+		long t = awaitPreconnect(extract, "asset extraction", deadline);
+		work += Math.max(t, 0);
+		t = awaitPreconnect(dns, "DNS", deadline);
+		work += Math.max(t, 0);
+
+		boolean ok = true;
+		t = awaitPreconnect(tempFiles, "temporary files", deadline);
+		if (t < 0) {
+			if (!isStopping()) {
+				log("Error writing temporary file");
+			}
+			ok = false;
+		} else {
+			work += t;
+		}
+		if (isStopping()) {
+			return false;
+		}
+
+		long elapsed = SystemClock.elapsedRealtime() - start;
+		log("PRECONNECT: " + elapsed + "ms elapsed, " + work + "ms of work (saved " +
+				(work - elapsed) + "ms)");
+		return ok;
 	}
 
 	private boolean setPreferences() {
@@ -449,36 +733,32 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			return false;
 		}
 
-		try {
-			String PATH = System.getenv("PATH");
+		String PATH = System.getenv("PATH");
 
-			if (!PATH.startsWith(mFilesDir)) {
-				PATH = mFilesDir + ":" + PATH;
-			}
-			s = prefToTempFile("custom_csd_wrapper", true);
-			mOC.setCSDWrapper(s != null ? s : (mFilesDir + File.separator + "android_csd_" + mOC.getProtocol() + ".sh"), mCacheDir, PATH);
+		if (!PATH.startsWith(mFilesDir)) {
+			PATH = mFilesDir + ":" + PATH;
+		}
+		s = getTempFile("custom_csd_wrapper");
+		mOC.setCSDWrapper(s != null ? s : (mFilesDir + File.separator + "android_csd_" + mOC.getProtocol() + ".sh"), mCacheDir, PATH);
 
-			s = prefToTempFile("ca_certificate", false);
-			if (s != null) {
-				mOC.setCAFile(s);
-			}
+		s = getTempFile("ca_certificate");
+		if (s != null) {
+			mOC.setCAFile(s);
+		}
 
-			s = prefToTempFile("user_certificate", false);
-			String key = prefToTempFile("private_key", false);
-			if (s != null) {
-				if (key == null) {
-					// assume the file contains the cert + key
-					mOC.setClientCert(s, s);
-				} else {
-					mOC.setClientCert(s, key);
-				}
+		s = getTempFile("user_certificate");
+		String key = getTempFile("private_key");
+		if (s != null) {
+			if (key == null) {
+				// assume the file contains the cert + key
+				mOC.setClientCert(s, s);
+			} else {
+				mOC.setClientCert(s, key);
 			}
-		} catch (IOException e) {
-			log("Error writing temporary file");
-			return false;
 		}
 
 		mServerAddr = getStringPref("server_address");
+		mSessionResume = getBoolPref("session_resume");
 		mOC.setXMLPost(!getBoolPref("disable_xml_post"));
 		mOC.setPFS(getBoolPref("require_pfs"));
 
@@ -514,8 +794,6 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			return false;
 		}
 
-		prefChanged();
-
 		return true;
 	}
 
@@ -541,7 +819,47 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		return true;
 	}
 
-	private void addDefaultRoutes(VpnService.Builder b, LibOpenConnect.IPInfo ip, ArrayList<String> subnets) {
+	/* RFC 1918 private networks, plus IPv4/IPv6 link-local */
+	private static final String LAN_SUBNETS[] = {
+		"10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16", "169.254.0.0/16", "fe80::/10",
+	};
+
+	/*
+	 * LAN_SUBNETS minus anything that overlaps the tunnel's own address or a
+	 * pushed split-include: corporate networks often live in 10/8 too, and
+	 * bypassing those would cut off the internal hosts we connected for.
+	 */
+	private ArrayList<String> getLANBypassSubnets(LibOpenConnect.IPInfo ip) {
+		ArrayList<String> tunnel = new ArrayList<String>();
+		if (ip.addr != null) {
+			tunnel.add(ip.netmask != null ? ip.addr + "/" + ip.netmask : ip.addr);
+		}
+		if (ip.netmask6 != null) {
+			tunnel.add(ip.netmask6);
+		}
+		if (ip.splitIncludes != null) {
+			tunnel.addAll(ip.splitIncludes);
+		}
+
+		ArrayList<String> out = new ArrayList<String>();
+		for (String lan : LAN_SUBNETS) {
+			String conflict = null;
+			for (String s : tunnel) {
+				if (RouteTable.overlaps(lan, s)) {
+					conflict = s.trim();
+					break;
+				}
+			}
+			if (conflict != null) {
+				log("ROUTE: not bypassing " + lan + ", it overlaps " + conflict + " on the VPN");
+			} else {
+				out.add(lan);
+			}
+		}
+		return out;
+	}
+
+	private void addDefaultRoutes(RouteTable routes, LibOpenConnect.IPInfo ip, ArrayList<String> subnets) {
 		boolean ip4def = true, ip6def = true;
 
 		for (String s : subnets) {
@@ -553,42 +871,47 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		}
 
 		if (ip4def && ip.addr != null) {
-			b.addRoute("0.0.0.0", 0);
-			log("ROUTE: 0.0.0.0/0");
+			routes.add("0.0.0.0/0");
 		}
 
 		if (ip6def && ip.netmask6 != null) {
-			b.addRoute("::", 0);
-			log("ROUTE: ::/0");
+			routes.add("::/0");
 		}
 	}
 
-	private void addSubnetRoutes(VpnService.Builder b, LibOpenConnect.IPInfo ip, ArrayList<String> subnets) {
+	private void addSubnetRoutes(RouteTable routes, ArrayList<String> subnets) {
 		for (String s : subnets) {
-			s = s.trim();
+			if (!routes.add(s)) {
+				log("ROUTE: skipping invalid route '" + s.trim() + "'");
+			}
+		}
+	}
+
+	private void excludeSubnetRoutes(RouteTable routes, List<String> subnets) {
+		for (String s : subnets) {
+			if (!routes.exclude(s)) {
+				log("ROUTE: skipping invalid exclude '" + s.trim() + "'");
+			}
+		}
+	}
+
+	private void applyRoutes(VpnService.Builder b, RouteTable routes) {
+		int count = 0;
+		for (RouteTable.Route r : routes.getRoutes()) {
 			try {
-				if (s.contains(":")) {
-					String ss[] = s.split("/");
-					if (ss.length == 1) {
-						b.addRoute(ss[0], 128);
-					} else {
-						b.addRoute(ss[0], Integer.parseInt(ss[1]));
-					}
-					log("ROUTE: " + s);
-				} else {
-					CIDRIP cdr;
-					if (!s.contains("/")) {
-						cdr = new CIDRIP(s + "/32");
-					} else {
-						cdr = new CIDRIP(s);
-					}
-					b.addRoute(cdr.mIp, cdr.len);
-					log("ROUTE: " + cdr.mIp + "/" + cdr.len);
-				}
+				b.addRoute(r.addr, r.len);
+				log("ROUTE: " + r);
+				count++;
 			} catch (Exception e) {
-				log("ROUTE: skipping invalid route '" + s + "'");
+				log("ROUTE: rejected by VpnService: " + r);
 			}
 		}
+		if (routes.getExcludeCount() > 0) {
+			log("ROUTE: " + routes.getExcludeCount() + " excludes left " + count + " routes");
+		} else if (routes.getInputCount() > count) {
+			log("ROUTE: merged " + routes.getInputCount() + " entries into " + count +
+					" routes (saved " + (routes.getInputCount() - count) + ")");
+		}
 	}
 
 	private void setIPInfo(VpnService.Builder b) {
@@ -634,6 +957,7 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 
 		ArrayList<String> subnets = new ArrayList<String>(), dns = ip.DNS;
 		String domain = ip.domain;
+		RouteTable routes = new RouteTable();
 
 		if (getStringPref("split_tunnel_mode").equals("on_vpn_dns")) {
 			getSubnetPref(subnets);
@@ -643,9 +967,22 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			domain = null;
 		} else {
 			subnets = ip.splitIncludes;
-			addDefaultRoutes(b, ip, subnets);
+			addDefaultRoutes(routes, ip, subnets);
+
+			/*
+			 * Only the default route is trimmed here; subnets that the server
+			 * explicitly includes are added afterward and still use the tunnel.
+			 */
+			if (getStringPref("split_tunnel_mode").equals("auto_lan_bypass")) {
+				excludeSubnetRoutes(routes, getLANBypassSubnets(ip));
+			}
+		}
+		addSubnetRoutes(routes, subnets);
+
+		/* server-side excludes take precedence over everything except DNS */
+		if (ip.splitExcludes != null) {
+			excludeSubnetRoutes(routes, ip.splitExcludes);
 		}
-		addSubnetRoutes(b, ip, subnets);
 
 		/* DNS */
 
@@ -653,7 +990,7 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			s = s.trim();
 			try {
 				b.addDnsServer(s);
-				b.addRoute(s, s.contains(":") ? 128 : 32);
+				routes.add(s);
 				log("DNS: " + s);
 			} catch (Exception e) {
 				log("DNS: skipping invalid server '" + s + "'");
@@ -664,6 +1001,8 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			log("DOMAIN: " + domain);
 		}
 
+		applyRoutes(b, routes);
+
 		mOpenVPNService.setIPInfo(ip, mOC.getHostname(), mOC.getIdleTimeout());
 	}
 
@@ -679,7 +1018,15 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 	}
 
 	private void extractBinaries() {
-		if (!AssetExtractor.extractAll(mContext)) {
+		if (AssetExtractor.checkManifest(mContext)) {
+			return;
+		}
+
+		// don't leave a valid-looking manifest around if we get interrupted
+		AssetExtractor.invalidateManifest(mContext);
+		ArrayList<File> files = new ArrayList<File>();
+		boolean ok = AssetExtractor.extractAll(mContext, 0, null, files);
+		if (!ok) {
 			log("Error extracting assets");
 		}
 
@@ -695,66 +1042,144 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			}
 			writeCertOrScript(mFilesDir + "/curl",
 				"#!/system/bin/sh\nexec " + run_pie + curl_bin + " \"$@\"\n", true);
+			files.add(new File(mFilesDir + "/curl"));
 		} catch (IOException e) {
 			// mkdir won't throw an exception
 			log("Error writing curl wrapper scripts");
+			ok = false;
 		}
-	}
 
-	private boolean runVPN() {
-		updateStatPref("attempt");
+		if (ok && !AssetExtractor.writeManifest(mContext, files)) {
+			log("Error writing asset manifest");
+		}
+	}
 
-		mFilesDir = mContext.getFilesDir().getPath();
-		mCacheDir = mContext.getCacheDir().getPath();
-		extractBinaries();
+	private int parseLifetime(String s) {
+		try {
+			return s == null ? 0 : Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			// e.g. "none"
+			return 0;
+		}
+	}
 
-		String userAgent = getBoolPref("reported_user_agent_override")
-			? getStringPref("reported_user_agent") : null;
+	/* how long the gateway will honor our cookie, in seconds (0 if unknown) */
+	private int getSessionLifetime() {
+		LibOpenConnect.IPInfo ip = mOC.getIPInfo();
+		int lifetime = 0;
 
-		setState(STATE_CONNECTING);
-		synchronized (mMainloopLock) {
-			if (userAgent != null)
-				mOC = new AndroidOC(userAgent);
-			else
-				mOC = new AndroidOC();
+		if (ip != null && ip.CSTPOptions != null) {
+			lifetime = parseLifetime(ip.CSTPOptions.get("Session-Timeout"));
+			if (lifetime <= 0) {
+				lifetime = parseLifetime(ip.CSTPOptions.get("Lease-Duration"));
+			}
+		}
+		if (lifetime <= 0) {
+			lifetime = mOC.getIdleTimeout();
 		}
+		return lifetime;
+	}
 
-		if (setPreferences() == false) {
+	/* returns true if the CSTP connection came up using a cookie from a previous session */
+	private boolean resumeSession() {
+		if (!mSessionResume) {
 			return false;
 		}
 
-		if (mOC.parseURL(mServerAddr) != 0) {
-			log("Error parsing server address");
-			errorAlert(mContext.getString(R.string.error_invalid_hostname, mServerAddr));
+		String uuid = mProfile.getUUIDString();
+		String cookie = mSessionCache.load(uuid, mServerAddr);
+		if (cookie == null) {
 			return false;
 		}
+
+		log("AUTH: trying to resume previous session");
+		mTracer.beginPhase(ConnectTracer.PHASE_CSTP);
+		mOC.setCookie(cookie);
+		if (mOC.makeCSTPConnection() == 0) {
+			log("AUTH: resumed session without reauthenticating");
+			return true;
+		}
+
+		log("AUTH: cached session was rejected; falling back to full authentication");
+		mSessionCache.clear(uuid);
+		mOC.clearCookie();
+		mOC.resetSSL();
+		return false;
+	}
+
+	private boolean authenticate() {
+		mTracer.beginPhase(ConnectTracer.PHASE_AUTH);
 		int ret = mOC.obtainCookie();
 		if (ret < 0) {
 			// don't pop up an alert if the user rejected the server cert
-			if (mRejectedCerts.isEmpty() && !mRequestDisconnect) {
+			if (mRejectedCerts.isEmpty() && !isStopping()) {
 				log("Error obtaining cookie");
 				errorAlert();
 			} else {
-				updateStatPref("cancel");
+				markCancelled();
 			}
 			return false;
 		} else if (ret > 0) {
 			log("User canceled auth dialog");
-			updateStatPref("cancel");
+			markCancelled();
 			return false;
 		}
 
 		mAuthDone = true;
 		UserDialog.writeDeferredPrefs();
 		setState(STATE_AUTHENTICATED);
+		mTracer.beginPhase(ConnectTracer.PHASE_CSTP);
 		if (mOC.makeCSTPConnection() != 0) {
-			if (!mRequestDisconnect) {
+			if (!isStopping()) {
 				log("Error establishing CSTP connection");
 				errorAlert();
 			}
 			return false;
 		}
 
+		if (mSessionResume) {
+			mSessionCache.save(mProfile.getUUIDString(), mServerAddr, mOC.getCookie(),
+					getSessionLifetime());
+		}
+		return true;
+	}
+
+	private boolean runVPN() {
+		mFilesDir = mContext.getFilesDir().getPath();
+		mCacheDir = mContext.getCacheDir().getPath();
+
+		mTracer.start();
+		mOpenVPNService.setConnectTracer(mTracer);
+		mOpenVPNService.setReconnectMetrics(mReconnectMetrics);
+
+		String userAgent = getBoolPref("reported_user_agent_override")
+			? getStringPref("reported_user_agent") : null;
+
+		setState(STATE_CONNECTING);
+		mTracer.beginPhase(ConnectTracer.PHASE_PRECONNECT);
+		if (!preconnect(userAgent)) {
+			return false;
+		}
+
+		mTracer.beginPhase(ConnectTracer.PHASE_PREFS);
+		if (setPreferences() == false) {
+			return false;
+		}
+
+		mTracer.beginPhase(ConnectTracer.PHASE_PARSE_URL);
+		if (mOC.parseURL(mServerAddr) != 0) {
+			log("Error parsing server address");
+			errorAlert(mContext.getString(R.string.error_invalid_hostname, mServerAddr));
+			return false;
+		}
+		if (resumeSession()) {
+			mAuthDone = true;
+			setState(STATE_AUTHENTICATED);
+		} else if (isStopping() || !authenticate()) {
+			return false;
+		}
+
+		mTracer.beginPhase(ConnectTracer.PHASE_ESTABLISH);
 		VpnService.Builder b = mOpenVPNService.getVpnServiceBuilder();
 		setIPInfo(b);
 
@@ -766,32 +1191,49 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 			return false;
 		}
 
+		mTracer.beginPhase(ConnectTracer.PHASE_TUN_FD);
 		if (pfd == null || mOC.setupTunFD(pfd.getFd()) != 0) {
 			log("Error setting up tunnel fd");
 			errorAlert();
 			return false;
 		}
 		setState(STATE_CONNECTED);
-		updateStatPref("connect");
+		mRecord.outcome = SessionHistory.OUTCOME_CONNECTED;
+		mRecord.tunnelUp(SystemClock.elapsedRealtime());
 
-		mOC.setupDTLS(60);
+		mTracer.beginPhase(ConnectTracer.PHASE_DTLS);
+		mDTLSAttemptPeriod = DTLS_ATTEMPT_PERIOD;
+		mOC.setupDTLS(mDTLSAttemptPeriod);
+		updateDTLSState();
+		mTracer.commit();
+		log("STAT: connect phases: " + mTracer.formatLast());
+
+		mTunnelUp = true;
 
 		while (true) {
-			if (mOC.mainloop(300, LibOpenConnect.RECONNECT_INTERVAL_MIN) < 0) {
-				break;
-			}
-			synchronized (mMainloopLock) {
-				if (mRequestDisconnect) {
-					// let the library send the BYE packet and wrap up
-					continue;
-				}
-				while (mRequestPause) {
-					try {
-						mMainloopLock.wait();
-					} catch (InterruptedException e) {
-					}
+			int ret = mOC.mainloop(LIB_RECONNECT_TIMEOUT, mReconnectPolicy.getRetryInterval());
+			if (ret < 0) {
+				mControl.drain();
+				if (isStopping() || mDetach || !recoverTunnel(ret)) {
+					break;
 				}
+				continue;
+			}
+			mControl.drain();
+			mControl.parkWhilePaused();
+			if (mDetach) {
+				// paused without logging out; the session can be resumed later
+				break;
 			}
+			// if a stop was requested, let the library send the BYE packet and wrap up
+		}
+		mControl.drain();
+
+		if (mDetach) {
+			mSessionCache.setIdleExpiry(mProfile.getUUIDString(), mOC.getIdleTimeout());
+		} else {
+			// BYE was sent or the gateway dropped us; either way the cookie is dead
+			mSessionCache.clear(mProfile.getUUIDString());
 		}
 
 		try {
@@ -801,68 +1243,218 @@ public class OpenConnectManagementThread implements Runnable, OpenVPNManagement
 		return true;
 	}
 
+	/*
+	 * Sorts a negative return from mainloop() or makeCSTPConnection() into:
+	 * the link went away (worth retrying), we cancelled it, the gateway no
+	 * longer accepts our cookie (authenticate again), or the gateway ended
+	 * the session, e.g. logout or session timeout (give up).
+	 */
+	static int classifyError(int ret) {
+		switch (-ret) {
+		case EINTR:
+			return ERROR_CANCELLED;
+		case EPERM:
+			return ERROR_AUTH;
+		case EPIPE:
+			return ERROR_TERMINATED;
+		default:
+			return ERROR_LINK;
+		}
+	}
+
+	/* the cookie was rejected mid-session; get a new one without tearing down the tunnel */
+	private boolean reauthenticate() {
+		log("RECONNECT: gateway rejected the session cookie; authenticating again");
+		mSessionCache.clear(mProfile.getUUIDString());
+		mOC.clearCookie();
+		mOC.resetSSL();
+
+		int ret = mOC.obtainCookie();
+		if (ret != 0) {
+			log("RECONNECT: reauthentication " + (ret > 0 ? "was cancelled" : "failed"));
+			return false;
+		}
+		UserDialog.writeDeferredPrefs();
+		setState(STATE_RECONNECTING);
+
+		ret = mOC.makeCSTPConnection();
+		if (ret != 0) {
+			log("RECONNECT: CSTP connection failed after reauthentication (" + ret + ")");
+			return false;
+		}
+		if (mSessionResume) {
+			mSessionCache.save(mProfile.getUUIDString(), mServerAddr, mOC.getCookie(),
+					getSessionLifetime());
+		}
+		return true;
+	}
+
+	private void tunnelRestored(long lost) {
+		mOC.setupDTLS(mDTLSAttemptPeriod);
+		long elapsed = SystemClock.elapsedRealtime() - lost;
+		mReconnectMetrics.recovered(elapsed);
+		mRecord.reconnects++;
+		mRecord.tunnelUp(SystemClock.elapsedRealtime());
+		// DTLS may have come up before the tunnel counted as up again
+		updateDTLSState();
+		mReconnectPolicy.onSuccess();
+		setState(STATE_CONNECTED);
+		log("RECONNECT: tunnel restored after " + elapsed + "ms");
+	}
+
+	/* called after mainloop() failed with error ret; returns true if the tunnel is back */
+	private boolean recoverTunnel(int ret) {
+		long lost = SystemClock.elapsedRealtime();
+		mRecord.tunnelDown(lost);
+
+		int error = classifyError(ret);
+		if (error == ERROR_CANCELLED) {
+			return false;
+		}
+		mReconnectMetrics.outage();
+		setState(STATE_RECONNECTING);
+		if (error == ERROR_LINK) {
+			log("RECONNECT: lost connection to gateway (" + ret + ")");
+		}
+
+		while (!isStopping()) {
+			if (error == ERROR_TERMINATED) {
+				mReconnectMetrics.gaveUp();
+				mRecord.reason = "session_terminated";
+				log("RECONNECT: gateway ended the session; not reconnecting");
+				return false;
+			} else if (error == ERROR_AUTH) {
+				if (!reauthenticate()) {
+					mReconnectMetrics.gaveUp();
+					mRecord.reason = "reauth_failed";
+					return false;
+				}
+				tunnelRestored(lost);
+				return true;
+			}
+
+			long delay = mReconnectPolicy.nextDelay();
+			if (delay < 0) {
+				mReconnectMetrics.gaveUp();
+				mRecord.reason = "reconnect_gave_up";
+				log("RECONNECT: giving up after " + mReconnectPolicy.getAttempts() + " attempts");
+				return false;
+			}
+
+			log("RECONNECT: attempt " + mReconnectPolicy.getAttempts() + " in " + delay + "ms");
+			if (!mControl.sleep(delay)) {
+				if (!isStopping()) {
+					log("RECONNECT: network changed, restarting backoff");
+					mReconnectPolicy.onNetworkChange();
+				}
+				continue;
+			}
+
+			mReconnectMetrics.attempt();
+			ret = mOC.makeCSTPConnection();
+			if (ret == 0) {
+				tunnelRestored(lost);
+				return true;
+			}
+			error = classifyError(ret);
+		}
+		return false;
+	}
+
+	private boolean isStopping() {
+		return mControl.isStopping();
+	}
+
+	private void logLatency() {
+		for (int i = 0; i < SessionControl.CMD_NAMES.length; i++) {
+			LatencyHistogram h = mControl.getLatency(i);
+			if (h.getCount() > 0) {
+				log("STAT: " + SessionControl.CMD_NAMES[i] + " latency: " + h.summarize());
+			}
+		}
+	}
+
 	public void reconnect() {
 		log("RECONNECT");
-		// if mRequestPause is false, this will drop the connection and immediately
+		// if we aren't paused, this will drop the connection and immediately
 		// restart the mainloop
-		synchronized (mMainloopLock) {
-			if (mOC != null) {
-				mOC.pause();
-			}
+		VPNSession oc = mControl.acquire();
+		if (oc != null) {
+			mControl.post(SessionControl.CMD_RECONNECT);
+			oc.pause();
+			mControl.release();
 		}
 	}
 
 	@Override
 	public void pause () {
 		log("PAUSE");
-		synchronized (mMainloopLock) {
-			if (!mRequestPause && !mRequestDisconnect && mOC != null) {
-				mRequestPause = true;
-				mOC.pause();
-			}
+		VPNSession oc = mControl.acquire();
+		if (oc == null) {
+			return;
+		}
+		if (mControl.pause()) {
+			sampleStats(oc);
+			oc.pause();
 		}
+		mControl.release();
 	}
 
 	@Override
 	public void resume() {
 		log("RESUME");
-		synchronized (mMainloopLock) {
-			if (mRequestPause) {
-				mRequestPause = false;
-				mMainloopLock.notify();
-			}
-		}
+		mControl.resume();
 	}
 
 	@Override
 	public boolean stopVPN() {
 		log("STOP");
-		synchronized (mMainloopLock) {
-			if (mRequestDisconnect || mOC == null) {
-				return true;
+		VPNSession oc = mControl.acquire();
+		if (oc == null) {
+			return true;
+		}
+		boolean running = mControl.getState() == SessionControl.CTL_RUNNING;
+		if (mControl.stop()) {
+			if (running) {
+				sampleStats(oc);
+			}
+			if (mTunnelUp && mSessionResume) {
+				// skip the BYE so the cookie stays valid for the next connection
+				mDetach = true;
+				oc.pause();
+			} else {
+				oc.cancel();
 			}
-			mRequestDisconnect = true;
-			mRequestPause = false;
-			mOC.cancel();
-			mMainloopLock.notify();
+			mControl.post(SessionControl.CMD_STOP);
 		}
+		mControl.release();
 		return true;
 	}
 
+	/*
+	 * Nobody may be sampling stats (screen off, no subscribers), so ask for one
+	 * more callback before mainloop() returns; the library answers commands
+	 * in order, so it arrives first and the session record gets current byte
+	 * counts.  This isn't a UI request, so SessionControl doesn't track it.
+	 */
+	private void sampleStats(VPNSession oc) {
+		oc.requestStats();
+	}
+
 	public void requestStats() {
-		boolean noStats = false;
-		synchronized (mMainloopLock) {
-			if (mRequestPause || mRequestDisconnect || mOC == null) {
-				noStats = true;
-			} else {
-				mOC.requestStats();
-			}
+		VPNSession oc = null;
+		if (mControl.getState() == SessionControl.CTL_RUNNING) {
+			oc = mControl.acquire();
 		}
-		if (noStats) {
+		if (oc == null) {
 			// Generate fake callback to the activity that requested stats, so it
 			// isn't waiting forever for a nonexistent event
 			mOpenVPNService.setStats(null);
+			return;
 		}
+		mControl.statsRequested();
+		oc.requestStats();
+		mControl.release();
 	}
 
 	public void prefChanged() {
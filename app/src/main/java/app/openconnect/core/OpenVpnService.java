@@ -27,9 +27,11 @@
 package app.openconnect.core;
 
 import android.Manifest.permission;
+import android.app.KeyguardManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -46,8 +48,13 @@ import app.openconnect.api.GrantPermissionsActivity;
 import app.openconnect.core.VPNLog.LogArrayAdapter;
 import app.openconnect.fragments.FeedbackFragment;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
 
 import org.infradead.libopenconnect.LibOpenConnect;
@@ -70,6 +77,9 @@ public class OpenVpnService extends VpnService {
 	public LibOpenConnect.IPInfo ipInfo;
 	public String serverName;
 	public Date startTime;
+	public ConnectTracer connectTracer;
+	public ReconnectMetrics reconnectMetrics;
+	public TunnelHealth tunnelHealth;
 
 	private DeviceStateReceiver mDeviceStateReceiver;
 	private SharedPreferences mPrefs;
@@ -95,9 +105,85 @@ public class OpenVpnService extends VpnService {
 	private int mConnectionState = OpenConnectManagementThread.STATE_DISCONNECTED;
 	private String mConnectionStateNames[];
 	private VPNStats mStats = new VPNStats();
+	private StatsHistory mStatsHistory = new StatsHistory();
+	private VPNStats mDeltaStats = new VPNStats();
+	private boolean mDeltaValid;
+	private long mLastStatsTime;
+
+	/*
+	 * Stats sampling is shared by every bound VPNConnector: one Handler loop
+	 * asks the VPN thread for stats at the fastest subscribed interval, and
+	 * the reply is broadcast to everyone.  The loop only runs while a tunnel
+	 * is up, somebody is subscribed, and the screen is on.
+	 */
+	private HashMap<Object,Integer> mStatsSubscribers = new HashMap<Object,Integer>();
+	private int mStatsInterval;
+	private boolean mScreenOn = true;
+	private boolean mNotificationHidden;
+	private BroadcastReceiver mScreenReceiver;
+
+	private ThroughputNotification mThroughput;
+
+	private Runnable mStatsRunnable = new Runnable() {
+		@Override
+		public void run() {
+			requestStats();
+			mHandler.postDelayed(mStatsRunnable, mStatsInterval);
+		}
+	};
 
-	private VPNLog mVPNLog = new VPNLog();
+	private VPNLog mVPNLog;
 	private Handler mHandler = new Handler();
+	private LogQueue mLogQueue;
+	private LogJournal mLogJournal;
+
+	/*
+	 * In-app listeners are notified through mDispatcher.  The system-wide
+	 * ACTION_VPN_STATUS broadcast is only for other apps, so it goes out right
+	 * away on state changes and at most once per BROADCAST_INTERVAL otherwise.
+	 */
+	private static final long BROADCAST_INTERVAL = 1000;
+
+	/* tunnel health targets: pushed DNS servers are asked for this name, a configured host without a port gets this port */
+	private static final String HEALTH_CHECK_DNS_HOST = "www.google.com";
+	private static final int HEALTH_CHECK_PORT = 80;
+
+	private StatusDispatcher mDispatcher = new StatusDispatcher(mHandler);
+	private long mLastBroadcast;
+	private boolean mBroadcastPending;
+
+	private Runnable mBroadcastRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mBroadcastPending = false;
+			sendStatusBroadcast();
+		}
+	};
+
+	private StatusDispatcher.Listener mServiceListener = new StatusDispatcher.Listener() {
+		@Override
+		public void onStatusChanged(int dirty) {
+			updateNotification();
+			updateThroughputNotification();
+			updateStatsSchedule();
+
+			if (mConnectionState == OpenConnectManagementThread.STATE_CONNECTED &&
+					mKeepAlive == null) {
+				registerKeepAlive();
+				FeedbackFragment.recordUse(getApplicationContext(), true);
+			}
+
+			long wait = mLastBroadcast + BROADCAST_INTERVAL - SystemClock.uptimeMillis();
+			if ((dirty & StatusDispatcher.DIRTY_STATE) != 0 || wait <= 0) {
+				mHandler.removeCallbacks(mBroadcastRunnable);
+				mBroadcastPending = false;
+				sendStatusBroadcast();
+			} else if (!mBroadcastPending) {
+				mBroadcastPending = true;
+				mHandler.postDelayed(mBroadcastRunnable, wait);
+			}
+		}
+	};
 
 	public class LocalBinder extends Binder {
 		public OpenVpnService getService() {
@@ -128,17 +214,57 @@ public class OpenVpnService extends VpnService {
 		mPrefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
 		mUUID = mPrefs.getString("service_mUUID", "");
 
-		mVPNLog.restoreFromFile(getCacheDir().getAbsolutePath() + "/logdata.ser");
+		int capacity = VPNLog.DEFAULT_CAPACITY;
+		try {
+			capacity = Integer.parseInt(mPrefs.getString("log_capacity", "" + capacity));
+		} catch (NumberFormatException e) {
+		}
+		mVPNLog = new VPNLog(capacity);
+		mLogQueue = new LogQueue(mHandler, mVPNLog);
+
+		// the log used to be saved here as serialized objects
+		new File(getCacheDir(), "logdata.ser").delete();
+		LogExporter.deleteStaleExports(this);
+		mLogJournal = new LogJournal(new File(getCacheDir(), "logjournal"), mHandler);
+		// decoded off the main thread; the old entries show up in front of new ones when done
+		mLogJournal.replay(mVPNLog);
+		mVPNLog.setJournal(mLogJournal);
 		mConnectionStateNames = getResources().getStringArray(R.array.connection_states);
+		mThroughput = new ThroughputNotification(this);
+		mDispatcher.addListener(mServiceListener);
+
+		PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
+		mScreenOn = pm.isScreenOn();
+		mNotificationHidden = isNotificationHidden();
+		mScreenReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				mScreenOn = !Intent.ACTION_SCREEN_OFF.equals(intent.getAction());
+				mNotificationHidden = isNotificationHidden();
+				updateThroughputNotification();
+				updateStatsSchedule();
+			}
+		};
+		IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		filter.addAction(Intent.ACTION_USER_PRESENT);
+		registerReceiver(mScreenReceiver, filter);
 	}
 
 	@Override
 	public void onDestroy() {
 		killVPNThread(true);
+		unregisterReceiver(mScreenReceiver);
+		mThroughput.cancel();
+		mHandler.removeCallbacks(mStatsRunnable);
+		mHandler.removeCallbacks(mBroadcastRunnable);
+		mLogQueue.drain();
 		if (mDeviceStateReceiver != null) {
 			this.unregisterReceiver(mDeviceStateReceiver);
+			mDeviceStateReceiver.stop();
 		}
-		mVPNLog.saveToFile(getCacheDir().getAbsolutePath() + "/logdata.ser");
+		mLogJournal.close();
+		mVPNLog.close();
 	}
 
 	private synchronized boolean doStopVPN() {
@@ -181,37 +307,56 @@ public class OpenVpnService extends VpnService {
 		registerReceiver(mDeviceStateReceiver, filter);
 	}
 
-	private synchronized void registerKeepAlive() {
-		String DNSServer = "8.8.8.8";
-		try {
-			String dns = ipInfo.DNS.get(0);
-			if (InetAddress.getByName(dns) != null) {
-				DNSServer = dns;
+	private ArrayList<HealthProbe> getHealthProbes() {
+		ArrayList<HealthProbe> probes = new ArrayList<HealthProbe>();
+		for (String dns : ipInfo.DNS) {
+			try {
+				if (InetAddress.getByName(dns) != null) {
+					probes.add(new DNSProbe(dns, HEALTH_CHECK_DNS_HOST));
+				}
+			} catch (Exception e) {
+				Log.i(TAG, "server DNS IP " + dns + " is bogus, not using it for KeepAlive", e);
 			}
-		} catch (IndexOutOfBoundsException e) {
-			/* empty DNS server list */
-		} catch (Exception e) {
-			Log.i(TAG, "server DNS IP is bogus, falling back to " + DNSServer + " for KeepAlive", e);
 		}
+		if (probes.size() == 0) {
+			probes.add(new DNSProbe("8.8.8.8", HEALTH_CHECK_DNS_HOST));
+		}
+
+		String host = profile.mPrefs.getString("health_check_host", "").trim();
+		if (!host.equals("")) {
+			TCPProbe p = TCPProbe.parse(host, HEALTH_CHECK_PORT);
+			if (p != null) {
+				probes.add(p);
+			} else {
+				Log.w(TAG, "ignoring bad health check host " + host);
+			}
+		}
+		return probes;
+	}
 
-		// set to 40% of the server's idle timeout value, to buy a little margin in case
-		// the first 1-2 attempts fail
+	private synchronized void registerKeepAlive() {
+		TunnelHealth health = new TunnelHealth(getHealthProbes());
+
+		// the interval is learned per network, but never goes past 80% of the server's
+		// idle timeout; an unknown network starts out near the old fixed 40%
 		int idle = this.mIdleTimeout;
 		if (idle < 60 || idle > 7200)
 			idle = 1800;
-		idle = idle * 4 / 10;
-		Log.d(TAG, "calculated KeepAlive interval: " + idle + " seconds");
+		idle = idle * 8 / 10;
+		Log.d(TAG, "maximum KeepAlive interval: " + idle + " seconds");
 
 		IntentFilter filter = new IntentFilter(KeepAlive.ACTION_KEEPALIVE_ALARM);
-		mKeepAlive = new KeepAlive(idle, DNSServer, mDeviceStateReceiver);
+		mKeepAlive = new KeepAlive(idle, health, mDeviceStateReceiver);
 		registerReceiver(mKeepAlive, filter);
 		mKeepAlive.start(this);
+		tunnelHealth = health;
 	}
 
 	private void unregisterReceivers() {
 		try {
 			if (mDeviceStateReceiver != null) {
 				unregisterReceiver(mDeviceStateReceiver);
+				mDeviceStateReceiver.stop();
 			}
 			mDeviceStateReceiver = null;
 		} catch (IllegalArgumentException iae) {
@@ -362,24 +507,62 @@ public class OpenVpnService extends VpnService {
 		}
 	}
 
-	private void wakeUpActivity() {
-		mHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				Intent vpnstatus = new Intent(ACTION_VPN_STATUS);
-				vpnstatus.putExtra(EXTRA_CONNECTION_STATE, mConnectionState);
-				vpnstatus.putExtra(EXTRA_UUID, mUUID);
-				sendBroadcast(vpnstatus, permission.ACCESS_NETWORK_STATE);
+	/* true if the lock screen is up and doesn't show our notifications' text */
+	private boolean isNotificationHidden() {
+		KeyguardManager km = (KeyguardManager)getSystemService(Context.KEYGUARD_SERVICE);
+		if (!km.inKeyguardRestrictedInputMode()) {
+			return false;
+		}
+		// only Lollipop and later put notifications on the lock screen, and only in full if it's not secure
+		return Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || km.isKeyguardSecure();
+	}
+
+	/*
+	 * While connected, the throughput notification subscribes to stats like
+	 * any other consumer, but only while its text can actually be seen:
+	 * with the screen off or behind the lock screen it unsubscribes and just
+	 * keeps its last text.
+	 */
+	private void updateThroughputNotification() {
+		boolean connected = getConnectionState() == OpenConnectManagementThread.STATE_CONNECTED;
+		if (!connected || !mPrefs.getBoolean("throughput_notification", true)) {
+			unsubscribeStats(mThroughput);
+			mThroughput.cancel();
+			return;
+		}
+		if (!mScreenOn || mNotificationHidden) {
+			unsubscribeStats(mThroughput);
+			return;
+		}
+		if (!mStatsSubscribers.containsKey(mThroughput)) {
+			subscribeStats(mThroughput, ThroughputNotification.SAMPLE_INTERVAL);
+		}
+		if (isDeltaValid()) {
+			mThroughput.update(SystemClock.uptimeMillis(), serverName, getDeltaStats(),
+					mStatsHistory, getMainActivityIntent());
+		}
+	}
 
-				updateNotification();
+	private void sendStatusBroadcast() {
+		mLastBroadcast = SystemClock.uptimeMillis();
+		Intent vpnstatus = new Intent(ACTION_VPN_STATUS);
+		vpnstatus.putExtra(EXTRA_CONNECTION_STATE, mConnectionState);
+		vpnstatus.putExtra(EXTRA_UUID, mUUID);
+		sendBroadcast(vpnstatus, permission.ACCESS_NETWORK_STATE);
+	}
 
-				if (mConnectionState == OpenConnectManagementThread.STATE_CONNECTED &&
-						mKeepAlive == null) {
-					registerKeepAlive();
-					FeedbackFragment.recordUse(getApplicationContext(), true);
-				}
-			}
-		});
+	private void wakeUpActivity(int dirty) {
+		mDispatcher.post(dirty);
+	}
+
+	/* UI thread only */
+	public void addStatusListener(StatusDispatcher.Listener l) {
+		mDispatcher.addListener(l);
+	}
+
+	/* UI thread only */
+	public void removeStatusListener(StatusDispatcher.Listener l) {
+		mDispatcher.removeListener(l);
 	}
 
 	public void updateActivityRefcount(int num) {
@@ -397,7 +580,7 @@ public class OpenVpnService extends VpnService {
 		}
 
 		setDialog(null, dialog);
-		wakeUpActivity();
+		wakeUpActivity(StatusDispatcher.DIRTY_DIALOG);
 		ret = mDialog.waitForResponse();
 
 		setDialog(null, null);
@@ -423,12 +606,14 @@ public class OpenVpnService extends VpnService {
 	}
 
 	public synchronized void setConnectionState(int state) {
+		// a reconnect is still the same session, so it keeps its start time
 		if (state == OpenConnectManagementThread.STATE_CONNECTED &&
-				mConnectionState != OpenConnectManagementThread.STATE_CONNECTED) {
+				mConnectionState != OpenConnectManagementThread.STATE_CONNECTED &&
+				mConnectionState != OpenConnectManagementThread.STATE_RECONNECTING) {
 			startTime = new Date();
 		}
 		mConnectionState = state;
-		wakeUpActivity();
+		wakeUpActivity(StatusDispatcher.DIRTY_STATE);
 	}
 
 	public synchronized int getConnectionState() {
@@ -447,19 +632,103 @@ public class OpenVpnService extends VpnService {
 
 	public synchronized void setStats(VPNStats stats) {
 		if (stats != null) {
+			long now = SystemClock.elapsedRealtime();
+			updateDeltaStats(stats, now);
 			mStats = stats;
+			mStatsHistory.add(now, stats.rxBytes, stats.txBytes, stats.rxPkts, stats.txPkts);
+		}
+		wakeUpActivity(StatusDispatcher.DIRTY_STATS);
+	}
+
+	/* per-second rates between the last two samples; a new object is published for each sample */
+	private void updateDeltaStats(VPNStats stats, long now) {
+		long elapsed = now - mLastStatsTime;
+		boolean valid = mLastStatsTime != 0 && elapsed > 0 &&
+				stats.rxBytes >= mStats.rxBytes && stats.txBytes >= mStats.txBytes;
+		mLastStatsTime = now;
+
+		if (valid) {
+			VPNStats delta = new VPNStats();
+			delta.rxBytes = (stats.rxBytes - mStats.rxBytes) * 1000 / elapsed;
+			delta.txBytes = (stats.txBytes - mStats.txBytes) * 1000 / elapsed;
+			delta.rxPkts = (stats.rxPkts - mStats.rxPkts) * 1000 / elapsed;
+			delta.txPkts = (stats.txPkts - mStats.txPkts) * 1000 / elapsed;
+			mDeltaStats = delta;
 		}
-		wakeUpActivity();
+		mDeltaValid = valid;
 	}
 
 	public synchronized VPNStats getStats() {
 		return mStats;
 	}
 
+	public synchronized VPNStats getDeltaStats() {
+		return mDeltaStats;
+	}
+
+	/* false until two consecutive samples have been seen since sampling (re)started */
+	public synchronized boolean isDeltaValid() {
+		return mDeltaValid;
+	}
+
+	private synchronized void resetDeltaStats() {
+		mLastStatsTime = 0;
+		mDeltaValid = false;
+	}
+
+	/* UI thread only: sample stats at least every intervalMs until unsubscribeStats() */
+	public void subscribeStats(Object subscriber, int intervalMs) {
+		mStatsSubscribers.put(subscriber, intervalMs);
+		updateStatsSchedule();
+	}
+
+	public void unsubscribeStats(Object subscriber) {
+		if (mStatsSubscribers.remove(subscriber) != null) {
+			updateStatsSchedule();
+		}
+	}
+
+	private void updateStatsSchedule() {
+		int interval = 0;
+		if (mScreenOn && getConnectionState() == OpenConnectManagementThread.STATE_CONNECTED) {
+			for (int i : mStatsSubscribers.values()) {
+				if (interval == 0 || i < interval) {
+					interval = i;
+				}
+			}
+		}
+		if (interval == mStatsInterval) {
+			return;
+		}
+
+		mHandler.removeCallbacks(mStatsRunnable);
+		if (mStatsInterval == 0) {
+			// the first sample after a pause only primes the delta
+			resetDeltaStats();
+		}
+		mStatsInterval = interval;
+		if (interval > 0) {
+			mStatsRunnable.run();
+		}
+	}
+
+	public StatsHistory getStatsHistory() {
+		return mStatsHistory;
+	}
+
+	public synchronized void setConnectTracer(ConnectTracer tracer) {
+		connectTracer = tracer;
+	}
+
+	public synchronized void setReconnectMetrics(ReconnectMetrics metrics) {
+		reconnectMetrics = metrics;
+	}
+
 	public synchronized void setIPInfo(LibOpenConnect.IPInfo ipInfo, String serverName, int idleTimeout) {
 		this.ipInfo = ipInfo;
 		this.serverName = serverName;
 		this.mIdleTimeout = idleTimeout;
+		wakeUpActivity(StatusDispatcher.DIRTY_IPINFO);
 	}
 
 	public LogArrayAdapter getArrayAdapter(Context context) {
@@ -473,21 +742,34 @@ public class OpenVpnService extends VpnService {
 	}
 
 	public void log(final int level, final String msg) {
-		mHandler.post(new Runnable() {
-
-			@Override
-			public void run() {
-				mVPNLog.add(level, msg);
-			}
-		});
+		mLogQueue.add(level, msg);
 	}
 
 	public void clearLog() {
+		mLogQueue.drain();
 		mVPNLog.clear();
 	}
 
-	public String dumpLog() {
-		return mVPNLog.dump();
+	/* any thread: the log followed by the connect/reconnect statistics */
+	public void writeLog(OutputStream os, boolean gzip) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		ConnectTracer tracer = connectTracer;
+		if (tracer != null) {
+			sb.append(tracer.dump());
+		}
+		ReconnectMetrics metrics = reconnectMetrics;
+		if (metrics != null) {
+			sb.append(metrics.dump());
+		}
+		TunnelHealth health = tunnelHealth;
+		if (health != null) {
+			sb.append(health.dump());
+		}
+		DeviceStateReceiver receiver = mDeviceStateReceiver;
+		if (receiver != null) {
+			sb.append(receiver.dump());
+		}
+		LogExporter.write(mVPNLog, sb.toString(), os, gzip);
 	}
 
 	public String getReconnectName() {
@@ -252,6 +252,13 @@ public class ProfileManager {
 
 		mProfiles.remove(uuid);
 
+		File latency = new File(mContext.getApplicationInfo().dataDir + File.separator +
+				"shared_prefs" + File.separator + ConnectTracer.getPrefsName(uuid) + ".xml");
+		latency.delete();
+		TempFileCache.purge(mContext, uuid);
+		new SessionCache(mContext).clear(uuid);
+		SessionHistory.purge(mContext, uuid);
+
 		File f = new File(mContext.getApplicationInfo().dataDir + File.separator +
 				"shared_prefs" + File.separator + PROFILE_PFX + uuid + ".xml");
 
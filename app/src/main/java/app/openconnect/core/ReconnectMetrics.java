@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+/*
+ * Per-session reconnect counters.  Written by the VPN thread, read by the
+ * status screen and the log dump.
+ */
+public class ReconnectMetrics {
+
+	private int mOutages;
+	private int mAttempts;
+	private int mRecoveries;
+	private int mGiveUps;
+	private LatencyHistogram mRecoverTime = new LatencyHistogram();
+
+	public synchronized void outage() {
+		mOutages++;
+	}
+
+	public synchronized void attempt() {
+		mAttempts++;
+	}
+
+	public synchronized void recovered(long ms) {
+		mRecoveries++;
+		mRecoverTime.add(ms);
+	}
+
+	public synchronized void gaveUp() {
+		mGiveUps++;
+	}
+
+	public synchronized int getOutages() {
+		return mOutages;
+	}
+
+	public synchronized int getAttempts() {
+		return mAttempts;
+	}
+
+	public synchronized int getRecoveries() {
+		return mRecoveries;
+	}
+
+	public synchronized int getGiveUps() {
+		return mGiveUps;
+	}
+
+	public LatencyHistogram getRecoverTime() {
+		return mRecoverTime;
+	}
+
+	public synchronized String dump() {
+		return "RECONNECT: outages=" + mOutages + " attempts=" + mAttempts +
+				" recovered=" + mRecoveries + " gave_up=" + mGiveUps +
+				" time_to_recover " + mRecoverTime.summarize() + "\n";
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+/*
+ * Decides when the VPN thread should try to re-establish a tunnel that the
+ * library gave up on.  All calls come from the VPN thread.
+ */
+public interface ReconnectPolicy {
+
+	/* reconnect interval (seconds) to pass to LibOpenConnect.mainloop() */
+	int getRetryInterval();
+
+	/* milliseconds to wait before the next attempt, or -1 to give up */
+	long nextDelay();
+
+	/* the tunnel is back up */
+	void onSuccess();
+
+	/* connectivity came back after an outage, so start over */
+	void onNetworkChange();
+
+	int getAttempts();
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.util.ArrayList;
+
+/*
+ * Collects IPv4/IPv6 routes into a binary prefix trie keyed on the raw address
+ * bits, so duplicate, overlapping and adjacent prefixes collapse into the
+ * smallest equivalent set before anything is handed to VpnService.Builder.
+ *
+ * Addresses are kept as a pair of longs (IPv4 lives in the top 32 bits of
+ * "hi") and the trie nodes live in parallel int arrays, so building a table
+ * from a few hundred split-include entries allocates almost nothing per route.
+ *
+ * Exclusions are carved out of the same trie, which yields the minimal CIDR
+ * complement directly: VpnService.Builder only understands include routes.
+ */
+public class RouteTable {
+
+	public static class Route {
+		public final String addr;
+		public final int len;
+		public final boolean isIPv6;
+
+		Route(String addr, int len, boolean isIPv6) {
+			this.addr = addr;
+			this.len = len;
+			this.isIPv6 = isIPv6;
+		}
+
+		@Override
+		public String toString() {
+			return addr + "/" + len;
+		}
+	}
+
+	static class PrefixTrie {
+		private final int mBits;
+
+		private int mLeft[] = new int[64];
+		private int mRight[] = new int[64];
+		private boolean mFull[] = new boolean[64];
+		private int mNodes = 1;
+
+		PrefixTrie(int bits) {
+			mBits = bits;
+		}
+
+		static int bit(long hi, long lo, int i) {
+			return (int)(i < 64 ? (hi >>> (63 - i)) & 1 : (lo >>> (127 - i)) & 1);
+		}
+
+		private int alloc() {
+			if (mNodes == mFull.length) {
+				int n = mNodes * 2;
+				int left[] = new int[n], right[] = new int[n];
+				boolean full[] = new boolean[n];
+				System.arraycopy(mLeft, 0, left, 0, mNodes);
+				System.arraycopy(mRight, 0, right, 0, mNodes);
+				System.arraycopy(mFull, 0, full, 0, mNodes);
+				mLeft = left;
+				mRight = right;
+				mFull = full;
+			}
+			mLeft[mNodes] = mRight[mNodes] = 0;
+			mFull[mNodes] = false;
+			return mNodes++;
+		}
+
+		private void setFull(int node) {
+			mFull[node] = true;
+			mLeft[node] = mRight[node] = 0;
+		}
+
+		/* returns false if the prefix was already covered */
+		boolean insert(long hi, long lo, int len) {
+			int path[] = new int[len + 1];
+			int node = 0;
+
+			for (int i = 0; i < len; i++) {
+				if (mFull[node]) {
+					return false;
+				}
+				path[i] = node;
+				int child;
+				if (bit(hi, lo, i) == 0) {
+					child = mLeft[node];
+					if (child == 0) {
+						child = alloc();
+						mLeft[node] = child;
+					}
+				} else {
+					child = mRight[node];
+					if (child == 0) {
+						child = alloc();
+						mRight[node] = child;
+					}
+				}
+				node = child;
+			}
+			if (mFull[node]) {
+				return false;
+			}
+			setFull(node);
+
+			// two full siblings are the same as one full parent
+			for (int i = len - 1; i >= 0; i--) {
+				int parent = path[i];
+				int l = mLeft[parent], r = mRight[parent];
+				if (l == 0 || r == 0 || !mFull[l] || !mFull[r]) {
+					break;
+				}
+				setFull(parent);
+			}
+			return true;
+		}
+
+		/*
+		 * Punches a hole in the covered space: every full node on the way down
+		 * is split into two full halves, so only the excluded prefix goes away.
+		 * Returns false if nothing under the prefix was covered.
+		 */
+		boolean remove(long hi, long lo, int len) {
+			int node = 0;
+
+			for (int i = 0; i < len; i++) {
+				if (mFull[node]) {
+					int l = alloc(), r = alloc();
+					mFull[l] = mFull[r] = true;
+					mFull[node] = false;
+					mLeft[node] = l;
+					mRight[node] = r;
+				}
+				int child = bit(hi, lo, i) == 0 ? mLeft[node] : mRight[node];
+				if (child == 0) {
+					return false;
+				}
+				node = child;
+			}
+			if (!mFull[node] && mLeft[node] == 0 && mRight[node] == 0) {
+				return false;
+			}
+			mFull[node] = false;
+			mLeft[node] = mRight[node] = 0;
+			return true;
+		}
+
+		void collect(ArrayList<long[]> out) {
+			collect(0, 0, 0, 0, out);
+		}
+
+		private void collect(int node, int depth, long hi, long lo, ArrayList<long[]> out) {
+			if (mFull[node]) {
+				out.add(new long[] { hi, lo, depth });
+				return;
+			}
+			if (depth >= mBits) {
+				return;
+			}
+			long hiBit = depth < 64 ? (1L << (63 - depth)) : 0;
+			long loBit = depth < 64 ? 0 : (1L << (127 - depth));
+			if (mLeft[node] != 0) {
+				collect(mLeft[node], depth + 1, hi, lo, out);
+			}
+			if (mRight[node] != 0) {
+				collect(mRight[node], depth + 1, hi | hiBit, lo | loBit, out);
+			}
+		}
+	}
+
+	private PrefixTrie mIPv4 = new PrefixTrie(32);
+	private PrefixTrie mIPv6 = new PrefixTrie(128);
+	private int mInputCount;
+	private int mExcludeCount;
+
+	/* scratch space for the parsers: { hi, lo, len } */
+	private long mParsed[] = new long[3];
+
+	private static long mask(int len, boolean hiWord) {
+		int bits = hiWord ? len : len - 64;
+		if (bits <= 0) {
+			return 0;
+		} else if (bits >= 64) {
+			return -1L;
+		}
+		return -1L << (64 - bits);
+	}
+
+	/* parses a dotted quad into the low 32 bits of the result, or -1 */
+	static long parseIPv4(String s, int start, int end) {
+		long ip = 0;
+		int octets = 0, val = -1;
+
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				val = (val < 0 ? 0 : val * 10) + (c - '0');
+				if (val > 255) {
+					return -1;
+				}
+			} else if (c == '.' && val >= 0 && octets < 3) {
+				ip = (ip << 8) | val;
+				octets++;
+				val = -1;
+			} else {
+				return -1;
+			}
+		}
+		if (val < 0 || octets != 3) {
+			return -1;
+		}
+		return (ip << 8) | val;
+	}
+
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	/* parses an IPv6 address into out[0] (hi) and out[1] (lo) */
+	static boolean parseIPv6(String s, int start, int end, long out[]) {
+		int groups[] = new int[8];
+		int n = 0, gap = -1;
+		int i = start;
+
+		if (end - start >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+			gap = 0;
+			i += 2;
+		}
+		while (i < end) {
+			if (n == 8) {
+				return false;
+			}
+
+			// embedded IPv4 tail, e.g. ::ffff:10.1.2.3
+			int dot = s.indexOf('.', i);
+			int colon = s.indexOf(':', i);
+			if (dot >= 0 && dot < end && (colon < 0 || colon > dot)) {
+				if (n > 6) {
+					return false;
+				}
+				long v4 = parseIPv4(s, i, end);
+				if (v4 < 0) {
+					return false;
+				}
+				groups[n++] = (int)(v4 >>> 16);
+				groups[n++] = (int)(v4 & 0xffff);
+				i = end;
+				break;
+			}
+
+			int val = 0, digits = 0;
+			while (i < end && s.charAt(i) != ':') {
+				int d = hexDigit(s.charAt(i));
+				if (d < 0 || ++digits > 4) {
+					return false;
+				}
+				val = (val << 4) | d;
+				i++;
+			}
+			if (digits == 0) {
+				return false;
+			}
+			groups[n++] = val;
+
+			if (i < end) {
+				// skip ':' and check for '::'
+				i++;
+				if (i < end && s.charAt(i) == ':') {
+					if (gap >= 0) {
+						return false;
+					}
+					gap = n;
+					i++;
+				} else if (i == end) {
+					return false;
+				}
+			}
+		}
+
+		if (gap >= 0) {
+			if (n == 8) {
+				return false;
+			}
+			int shift = 8 - n;
+			for (int j = n - 1; j >= gap; j--) {
+				groups[j + shift] = groups[j];
+			}
+			for (int j = gap; j < gap + shift; j++) {
+				groups[j] = 0;
+			}
+		} else if (n != 8) {
+			return false;
+		}
+
+		long hi = 0, lo = 0;
+		for (int j = 0; j < 4; j++) {
+			hi = (hi << 16) | groups[j];
+			lo = (lo << 16) | groups[j + 4];
+		}
+		out[0] = hi;
+		out[1] = lo;
+		return true;
+	}
+
+	private static int parseLen(String s, int start, int end) {
+		if (start >= end || end - start > 3) {
+			return -1;
+		}
+		int len = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			len = len * 10 + (c - '0');
+		}
+		return len;
+	}
+
+	/* same rules as CIDRIP: non-contiguous netmasks turn into a host route */
+	private static int maskToLen(long mask) {
+		int len = 0;
+		while (len < 32 && (mask & (0x80000000L >>> len)) != 0) {
+			len++;
+		}
+		if ((mask & (0xffffffffL >>> len)) != 0) {
+			return 32;
+		}
+		return len;
+	}
+
+	/* fills mParsed with the normalized { hi, lo, len } of an address or CIDR string */
+	private boolean parse(String s, boolean isIPv6) {
+		int end = s.length();
+		int slash = s.indexOf('/');
+		int addrEnd = slash < 0 ? end : slash;
+		int len;
+
+		if (isIPv6) {
+			if (!parseIPv6(s, 0, addrEnd, mParsed)) {
+				return false;
+			}
+			len = slash < 0 ? 128 : parseLen(s, slash + 1, end);
+			if (len < 0 || len > 128) {
+				return false;
+			}
+		} else {
+			long ip = parseIPv4(s, 0, addrEnd);
+			if (ip < 0) {
+				return false;
+			}
+			if (slash < 0) {
+				len = 32;
+			} else if (s.indexOf('.', slash) > 0) {
+				long mask = parseIPv4(s, slash + 1, end);
+				if (mask < 0) {
+					return false;
+				}
+				len = maskToLen(mask);
+			} else {
+				len = parseLen(s, slash + 1, end);
+				if (len < 0) {
+					return false;
+				} else if (len > 32) {
+					len = 32;
+				}
+			}
+			mParsed[0] = ip << 32;
+			mParsed[1] = 0;
+		}
+
+		mParsed[0] &= mask(len, true);
+		mParsed[1] &= mask(len, false);
+		mParsed[2] = len;
+		return true;
+	}
+
+	/* returns false if the entry couldn't be parsed */
+	public boolean add(String s) {
+		s = s.trim();
+		boolean isIPv6 = s.indexOf(':') >= 0;
+		if (!parse(s, isIPv6)) {
+			return false;
+		}
+		mInputCount++;
+		(isIPv6 ? mIPv6 : mIPv4).insert(mParsed[0], mParsed[1], (int)mParsed[2]);
+		return true;
+	}
+
+	/*
+	 * Removes a prefix from whatever has been added so far.  Prefixes added
+	 * afterward are not affected, so callers control precedence by ordering
+	 * their add() and exclude() calls.  Returns false if the entry couldn't
+	 * be parsed.
+	 */
+	public boolean exclude(String s) {
+		s = s.trim();
+		boolean isIPv6 = s.indexOf(':') >= 0;
+		if (!parse(s, isIPv6)) {
+			return false;
+		}
+		if ((isIPv6 ? mIPv6 : mIPv4).remove(mParsed[0], mParsed[1], (int)mParsed[2])) {
+			mExcludeCount++;
+		}
+		return true;
+	}
+
+	/*
+	 * True if the two prefixes share any address.  Entries that can't be
+	 * parsed, or that belong to different families, never overlap.
+	 */
+	public static boolean overlaps(String a, String b) {
+		a = a.trim();
+		b = b.trim();
+		boolean isIPv6 = a.indexOf(':') >= 0;
+		if (isIPv6 != (b.indexOf(':') >= 0)) {
+			return false;
+		}
+
+		RouteTable t = new RouteTable();
+		if (!t.parse(a, isIPv6)) {
+			return false;
+		}
+		long hi = t.mParsed[0], lo = t.mParsed[1];
+		int len = (int)t.mParsed[2];
+		if (!t.parse(b, isIPv6)) {
+			return false;
+		}
+
+		// one contains the other iff they agree on the shorter prefix
+		len = Math.min(len, (int)t.mParsed[2]);
+		return ((hi ^ t.mParsed[0]) & mask(len, true)) == 0 &&
+				((lo ^ t.mParsed[1]) & mask(len, false)) == 0;
+	}
+
+	public int getInputCount() {
+		return mInputCount;
+	}
+
+	/* number of exclusions that actually removed something */
+	public int getExcludeCount() {
+		return mExcludeCount;
+	}
+
+	static String formatIPv4(long hi) {
+		long ip = hi >>> 32;
+		return new StringBuilder(15)
+			.append((ip >> 24) & 0xff).append('.')
+			.append((ip >> 16) & 0xff).append('.')
+			.append((ip >> 8) & 0xff).append('.')
+			.append(ip & 0xff).toString();
+	}
+
+	static String formatIPv6(long hi, long lo) {
+		int groups[] = new int[8];
+		for (int i = 0; i < 4; i++) {
+			groups[i] = (int)(hi >>> (48 - i * 16)) & 0xffff;
+			groups[i + 4] = (int)(lo >>> (48 - i * 16)) & 0xffff;
+		}
+
+		// RFC 5952: compress the longest run of two or more zero groups
+		int bestStart = -1, bestLen = 1;
+		for (int i = 0; i < 8; ) {
+			if (groups[i] != 0) {
+				i++;
+				continue;
+			}
+			int j = i;
+			while (j < 8 && groups[j] == 0) {
+				j++;
+			}
+			if (j - i > bestLen) {
+				bestStart = i;
+				bestLen = j - i;
+			}
+			i = j;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8; i++) {
+			if (i == bestStart) {
+				sb.append("::");
+				i += bestLen - 1;
+				continue;
+			}
+			if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':') {
+				sb.append(':');
+			}
+			sb.append(Integer.toHexString(groups[i]));
+		}
+		return sb.toString();
+	}
+
+	private static void emit(PrefixTrie trie, boolean isIPv6, ArrayList<Route> out) {
+		ArrayList<long[]> prefixes = new ArrayList<long[]>();
+		trie.collect(prefixes);
+		for (long p[] : prefixes) {
+			String addr = isIPv6 ? formatIPv6(p[0], p[1]) : formatIPv4(p[0]);
+			out.add(new Route(addr, (int)p[2], isIPv6));
+		}
+	}
+
+	/* the minimal set of prefixes covering everything that was added */
+	public ArrayList<Route> getRoutes() {
+		ArrayList<Route> out = new ArrayList<Route>();
+		emit(mIPv4, false, out);
+		emit(mIPv6, true, out);
+		return out;
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+/*
+ * Holds on to the webvpn cookie from a successful login so that a later
+ * connection attempt on the same profile can skip obtainCookie() and go
+ * straight to the CSTP handshake.
+ *
+ * Cookies are encrypted (AES-CBC + HMAC-SHA256) with a per-install key, and the
+ * plaintext is bound to the profile UUID and server address so a cookie can never
+ * be replayed against a different gateway.  Entries expire at the earlier of the
+ * server's session lifetime and (once disconnected) its idle timeout.
+ *
+ * Threat model: the cache protects cookies at rest against anything that can
+ * read our SharedPreferences but not run code as our uid, e.g. a backup or a
+ * copy of the data directory.  The key is therefore never stored next to the
+ * blobs: it lives in its own private file, and on API 23+ that file only holds
+ * the key wrapped by a non-exportable AES key in the Android Keystore, so a
+ * copy of the data directory alone can't decrypt anything.  Code running as
+ * our uid (or root) can still ask the Keystore to unwrap it; that attacker
+ * could just as well read the cookie out of memory during a connection.
+ */
+public class SessionCache {
+
+	public static final String TAG = "OpenConnect";
+
+	private static final String PREFS_NAME = "session-cache";
+	private static final String KEY_FILE = "session-cache.key";
+	private static final String KEYSTORE_ALIAS = "session-cache";
+
+	/* first byte of KEY_FILE */
+	private static final int KEY_RAW = 0;
+	private static final int KEY_WRAPPED = 1;
+	private static final int GCM_IV_LEN = 12;
+	private static final int GCM_TAG_BITS = 128;
+
+	private static final int AES_KEY_LEN = 16;
+	private static final int MAC_KEY_LEN = 32;
+	private static final int IV_LEN = 16;
+	private static final int MAC_LEN = 32;
+
+	private Context mContext;
+	private SharedPreferences mStore;
+	private SecureRandom mRandom = new SecureRandom();
+	private byte mAesKey[];
+	private byte mMacKey[];
+
+	public SessionCache(Context context) {
+		mContext = context.getApplicationContext();
+		mStore = context.getSharedPreferences(PREFS_NAME, Activity.MODE_PRIVATE);
+	}
+
+	@TargetApi(23)
+	private static SecretKey getKeystoreKey() throws Exception {
+		KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+		ks.load(null);
+		Key k = ks.getKey(KEYSTORE_ALIAS, null);
+		if (k instanceof SecretKey) {
+			return (SecretKey)k;
+		}
+
+		KeyGenerator kg = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+		kg.init(new KeyGenParameterSpec.Builder(KEYSTORE_ALIAS,
+				KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+			.setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+			.setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+			.build());
+		return kg.generateKey();
+	}
+
+	/* KEY_WRAPPED, IV, AES-GCM(key) */
+	@TargetApi(23)
+	private static byte[] wrapKey(byte key[]) throws Exception {
+		Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+		c.init(Cipher.ENCRYPT_MODE, getKeystoreKey());
+		byte iv[] = c.getIV();
+		byte ct[] = c.doFinal(key);
+
+		byte out[] = new byte[1 + iv.length + ct.length];
+		out[0] = KEY_WRAPPED;
+		System.arraycopy(iv, 0, out, 1, iv.length);
+		System.arraycopy(ct, 0, out, 1 + iv.length, ct.length);
+		return out;
+	}
+
+	@TargetApi(23)
+	private static byte[] unwrapKey(byte in[]) throws Exception {
+		Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+		c.init(Cipher.DECRYPT_MODE, getKeystoreKey(), new GCMParameterSpec(GCM_TAG_BITS, in, 1, GCM_IV_LEN));
+		return c.doFinal(in, 1 + GCM_IV_LEN, in.length - 1 - GCM_IV_LEN);
+	}
+
+	private byte[] readKey() {
+		File f = new File(mContext.getFilesDir(), KEY_FILE);
+		if (!f.exists()) {
+			return null;
+		}
+		try {
+			byte in[] = new byte[(int)f.length()];
+			DataInputStream is = new DataInputStream(new FileInputStream(f));
+			try {
+				is.readFully(in);
+			} finally {
+				is.close();
+			}
+
+			if (in.length == 1 + AES_KEY_LEN + MAC_KEY_LEN && in[0] == KEY_RAW) {
+				byte key[] = new byte[AES_KEY_LEN + MAC_KEY_LEN];
+				System.arraycopy(in, 1, key, 0, key.length);
+				return key;
+			} else if (in.length > 1 + GCM_IV_LEN && in[0] == KEY_WRAPPED &&
+					Build.VERSION.SDK_INT >= 23) {
+				return unwrapKey(in);
+			}
+		} catch (Exception e) {
+			// e.g. the Keystore entry was wiped along with the lock screen
+			Log.w(TAG, "SessionCache: unable to read key", e);
+		}
+		return null;
+	}
+
+	private boolean writeKey(byte key[]) {
+		byte out[] = null;
+		if (Build.VERSION.SDK_INT >= 23) {
+			try {
+				out = wrapKey(key);
+			} catch (Exception e) {
+				Log.w(TAG, "SessionCache: Keystore unavailable, storing key unwrapped", e);
+			}
+		}
+		if (out == null) {
+			out = new byte[1 + key.length];
+			out[0] = KEY_RAW;
+			System.arraycopy(key, 0, out, 1, key.length);
+		}
+
+		try {
+			FileOutputStream os = mContext.openFileOutput(KEY_FILE, Context.MODE_PRIVATE);
+			try {
+				os.write(out);
+			} finally {
+				os.close();
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "SessionCache: unable to write key", e);
+			return false;
+		}
+	}
+
+	private synchronized boolean loadKeys() {
+		if (mAesKey != null) {
+			return true;
+		}
+
+		byte key[] = readKey();
+		if (key == null || key.length != AES_KEY_LEN + MAC_KEY_LEN) {
+			key = new byte[AES_KEY_LEN + MAC_KEY_LEN];
+			mRandom.nextBytes(key);
+			// any previously cached blobs (and a key stored by older versions) are useless now
+			mStore.edit().clear().commit();
+			if (!writeKey(key)) {
+				return false;
+			}
+		}
+
+		mAesKey = new byte[AES_KEY_LEN];
+		mMacKey = new byte[MAC_KEY_LEN];
+		System.arraycopy(key, 0, mAesKey, 0, AES_KEY_LEN);
+		System.arraycopy(key, AES_KEY_LEN, mMacKey, 0, MAC_KEY_LEN);
+		return true;
+	}
+
+	private byte[] mac(byte data[], int len) throws Exception {
+		Mac m = Mac.getInstance("HmacSHA256");
+		m.init(new SecretKeySpec(mMacKey, "HmacSHA256"));
+		m.update(data, 0, len);
+		return m.doFinal();
+	}
+
+	private String encrypt(String plaintext) throws Exception {
+		byte iv[] = new byte[IV_LEN];
+		mRandom.nextBytes(iv);
+
+		Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mAesKey, "AES"), new IvParameterSpec(iv));
+		byte ct[] = c.doFinal(plaintext.getBytes("UTF-8"));
+
+		byte out[] = new byte[IV_LEN + ct.length + MAC_LEN];
+		System.arraycopy(iv, 0, out, 0, IV_LEN);
+		System.arraycopy(ct, 0, out, IV_LEN, ct.length);
+		System.arraycopy(mac(out, IV_LEN + ct.length), 0, out, IV_LEN + ct.length, MAC_LEN);
+		return Base64.encodeToString(out, Base64.NO_WRAP);
+	}
+
+	private String decrypt(String blob) throws Exception {
+		byte in[] = Base64.decode(blob, Base64.NO_WRAP);
+		if (in.length < IV_LEN + MAC_LEN + 16) {
+			return null;
+		}
+
+		int ctLen = in.length - IV_LEN - MAC_LEN;
+		byte expected[] = mac(in, IV_LEN + ctLen);
+		byte actual[] = new byte[MAC_LEN];
+		System.arraycopy(in, IV_LEN + ctLen, actual, 0, MAC_LEN);
+		if (!MessageDigest.isEqual(expected, actual)) {
+			return null;
+		}
+
+		Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(mAesKey, "AES"),
+				new IvParameterSpec(in, 0, IV_LEN));
+		return new String(c.doFinal(in, IV_LEN, ctLen), "UTF-8");
+	}
+
+	private static String binding(String uuid, String server) {
+		return uuid + "\n" + server + "\n";
+	}
+
+	/* lifetimeSec <= 0 means the server didn't tell us; don't cache in that case */
+	public synchronized void save(String uuid, String server, String cookie, int lifetimeSec) {
+		if (cookie == null || lifetimeSec <= 0 || !loadKeys()) {
+			return;
+		}
+		try {
+			String blob = encrypt(binding(uuid, server) + cookie);
+			mStore.edit()
+				.putString(uuid + ".blob", blob)
+				.putLong(uuid + ".expires", System.currentTimeMillis() + lifetimeSec * 1000L)
+				.remove(uuid + ".idle_expires")
+				.apply();
+		} catch (Exception e) {
+			Log.w(TAG, "SessionCache: unable to encrypt cookie", e);
+		}
+	}
+
+	/* called when we disconnect without logging out; the server will drop us after idleSec */
+	public synchronized void setIdleExpiry(String uuid, int idleSec) {
+		if (idleSec <= 0 || !mStore.contains(uuid + ".blob")) {
+			return;
+		}
+		mStore.edit()
+			.putLong(uuid + ".idle_expires", System.currentTimeMillis() + idleSec * 1000L)
+			.apply();
+	}
+
+	public synchronized String load(String uuid, String server) {
+		String blob = mStore.getString(uuid + ".blob", null);
+		if (blob == null || !loadKeys()) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		if (now >= mStore.getLong(uuid + ".expires", 0) ||
+				now >= mStore.getLong(uuid + ".idle_expires", Long.MAX_VALUE)) {
+			Log.d(TAG, "SessionCache: cached session for " + uuid + " has expired");
+			clear(uuid);
+			return null;
+		}
+
+		String plaintext;
+		try {
+			plaintext = decrypt(blob);
+		} catch (Exception e) {
+			plaintext = null;
+		}
+
+		String pfx = binding(uuid, server);
+		if (plaintext == null || !plaintext.startsWith(pfx)) {
+			Log.w(TAG, "SessionCache: discarding cookie that doesn't match " + server);
+			clear(uuid);
+			return null;
+		}
+		return plaintext.substring(pfx.length());
+	}
+
+	public synchronized void clear(String uuid) {
+		if (!mStore.contains(uuid + ".blob")) {
+			return;
+		}
+		mStore.edit()
+			.remove(uuid + ".blob")
+			.remove(uuid + ".expires")
+			.remove(uuid + ".idle_expires")
+			.apply();
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Control plane for one OpenConnectManagementThread: pause/resume/stop/
+ * reconnect/requestStats come in from the UI and broadcast receivers.
+ * Callers flip the state with a CAS, queue a timestamped command for the VPN
+ * thread, and poke the library so that mainloop() returns.  Nobody blocks on
+ * the VPN thread, and because the state changes before LockSupport.unpark(), a
+ * wakeup can't be lost.
+ *
+ * Callers borrow the VPNSession with acquire()/release().  Once the VPN thread
+ * calls close(), acquire() returns null, and close() sleeps until the last
+ * borrower has called release().
+ */
+class SessionControl {
+
+	static final int CTL_RUNNING = 0;
+	static final int CTL_PAUSED = 1;
+	static final int CTL_STOPPING = 2;
+
+	static final int CMD_PAUSE = 0;
+	static final int CMD_RESUME = 1;
+	static final int CMD_STOP = 2;
+	static final int CMD_RECONNECT = 3;
+	static final int CMD_STATS = 4;
+	static final String CMD_NAMES[] = { "pause", "resume", "stop", "reconnect", "stats" };
+
+	private static class Command {
+		final int type;
+		final long queued = System.nanoTime();
+
+		Command(int type) {
+			this.type = type;
+		}
+	}
+
+	private AtomicInteger mState = new AtomicInteger(CTL_RUNNING);
+	private ConcurrentLinkedQueue<Command> mCommands = new ConcurrentLinkedQueue<Command>();
+	private volatile Thread mOwner;
+
+	/* callers currently using mSession; it is only handed back by close() once this drops to 0 */
+	private volatile VPNSession mSession;
+	private AtomicInteger mUsers = new AtomicInteger();
+	private volatile boolean mClosed;
+	private final Object mClosedLock = new Object();
+
+	private AtomicLong mStatsRequested = new AtomicLong();
+	private LatencyHistogram mLatency[] = new LatencyHistogram[CMD_NAMES.length];
+
+	SessionControl() {
+		for (int i = 0; i < mLatency.length; i++) {
+			mLatency[i] = new LatencyHistogram();
+		}
+	}
+
+	/* the thread that drains commands; it is the one unparked by post() */
+	void setOwner(Thread t) {
+		mOwner = t;
+	}
+
+	void setSession(VPNSession oc) {
+		mSession = oc;
+	}
+
+	/* returns null if the session is gone; otherwise the caller must release() */
+	VPNSession acquire() {
+		mUsers.incrementAndGet();
+		VPNSession oc = mSession;
+		if (oc == null || mClosed) {
+			release();
+			return null;
+		}
+		return oc;
+	}
+
+	void release() {
+		// mClosed is read after the decrement, so either close() sees 0 or we see mClosed
+		if (mUsers.decrementAndGet() == 0 && mClosed) {
+			synchronized (mClosedLock) {
+				mClosedLock.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * VPN thread only: stops handing out the session, waits for the callers
+	 * that still hold it, and returns it so that it can be destroyed.
+	 */
+	VPNSession close() {
+		boolean interrupted = false;
+		mClosed = true;
+		synchronized (mClosedLock) {
+			while (mUsers.get() != 0) {
+				try {
+					mClosedLock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		VPNSession oc = mSession;
+		mSession = null;
+		return oc;
+	}
+
+	int getState() {
+		return mState.get();
+	}
+
+	boolean isStopping() {
+		return mState.get() == CTL_STOPPING;
+	}
+
+	boolean isPaused() {
+		return mState.get() == CTL_PAUSED;
+	}
+
+	/* returns true if this call moved us from running to paused */
+	boolean pause() {
+		if (!mState.compareAndSet(CTL_RUNNING, CTL_PAUSED)) {
+			return false;
+		}
+		// any outstanding stats request will go unanswered
+		mStatsRequested.set(0);
+		post(CMD_PAUSE);
+		return true;
+	}
+
+	boolean resume() {
+		if (!mState.compareAndSet(CTL_PAUSED, CTL_RUNNING)) {
+			return false;
+		}
+		post(CMD_RESUME);
+		return true;
+	}
+
+	/* returns true for the first stop request only; the caller then posts CMD_STOP */
+	boolean stop() {
+		return mState.getAndSet(CTL_STOPPING) != CTL_STOPPING;
+	}
+
+	/* returns false if the stats callback for an earlier request is still outstanding */
+	boolean statsRequested() {
+		return mStatsRequested.compareAndSet(0, System.nanoTime());
+	}
+
+	void statsDelivered() {
+		long queued = mStatsRequested.getAndSet(0);
+		if (queued != 0) {
+			recordLatency(CMD_STATS, queued);
+		}
+	}
+
+	void post(int type) {
+		mCommands.add(new Command(type));
+		Thread t = mOwner;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	private void recordLatency(int type, long queued) {
+		mLatency[type].add((System.nanoTime() - queued) / 1000000);
+	}
+
+	/* VPN thread only: everything queued so far has now taken effect */
+	void drain() {
+		Command c;
+		while ((c = mCommands.poll()) != null) {
+			recordLatency(c.type, c.queued);
+		}
+	}
+
+	/* VPN thread only: sleeps for as long as we are paused; returns true if there was a pause */
+	boolean parkWhilePaused() {
+		boolean paused = false;
+		while (mState.get() == CTL_PAUSED) {
+			paused = true;
+			LockSupport.park(this);
+			drain();
+		}
+		return paused;
+	}
+
+	/*
+	 * VPN thread only: sleeps for delayMs.  Returns false if a stop came in,
+	 * or if we were paused (i.e. lost connectivity) in the meantime.
+	 */
+	boolean sleep(long delayMs) {
+		long deadline = System.nanoTime() + delayMs * 1000000L;
+		while (true) {
+			drain();
+			if (isStopping()) {
+				return false;
+			}
+			if (parkWhilePaused()) {
+				return false;
+			}
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return true;
+			}
+			LockSupport.parkNanos(this, left);
+		}
+	}
+
+	LatencyHistogram getLatency(int type) {
+		return mLatency[type];
+	}
+}
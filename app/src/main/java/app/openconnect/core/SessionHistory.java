@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * One record per connection attempt, appended to a small binary file under
+ * filesDir.  Each record is a varint length followed by varint fields (see
+ * encode()), so writing one never touches anything but the end of the file.
+ * When the current file passes FILE_SIZE it becomes the "old" file, replacing
+ * the previous one, which bounds the history to about 2 * FILE_SIZE.
+ *
+ * A record that doesn't decode is skipped using its length prefix; only a
+ * torn length at the end of a file stops the read.  A torn record (e.g. from
+ * a process killed mid-write) is cut off before the next append, or the new
+ * record would be read as part of it.  The files are shared by every
+ * instance, so all access goes through LOCK.
+ */
+public class SessionHistory {
+
+	public static final String TAG = "OpenConnect";
+
+	private static final String DIR_NAME = "sessions";
+	private static final String CUR_FILE = "current.bin";
+	private static final String OLD_FILE = "old.bin";
+	private static final int FILE_SIZE = 64 * 1024;
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Object LOCK = new Object();
+
+	public static final int OUTCOME_CONNECTED = 0;
+	public static final int OUTCOME_FAILED = 1;
+	public static final int OUTCOME_CANCELLED = 2;
+
+	public static class Record {
+		public String uuid;
+		/* wall clock, ms */
+		public long start;
+		public long end;
+		public int outcome = OUTCOME_FAILED;
+		/* connect phase that failed, "reconnect_gave_up", etc. */
+		public String reason = "";
+		/*
+		 * From the last stats callback, which comes before every pause and stop;
+		 * a session lost to a dropped link misses what moved after that, so
+		 * treat these as a lower bound.
+		 */
+		public long rxBytes;
+		public long txBytes;
+		public int reconnects;
+		/* time the tunnel was up with and without a working DTLS channel */
+		public long dtlsMs;
+		public long cstpMs;
+		/* ConnectTracer phase timings, -1 if the phase wasn't reached */
+		public long phases[] = new long[ConnectTracer.NUM_PHASES];
+
+		/* VPN thread bookkeeping, not stored */
+		private long mUpSince;
+		private long mDtlsSince;
+
+		public Record(String uuid) {
+			this.uuid = uuid;
+			Arrays.fill(phases, -1);
+		}
+
+		public void tunnelUp(long now) {
+			if (mUpSince == 0) {
+				mUpSince = now;
+			}
+		}
+
+		public void tunnelDown(long now) {
+			dtlsDown(now);
+			if (mUpSince != 0) {
+				cstpMs += now - mUpSince;
+				mUpSince = 0;
+			}
+		}
+
+		public void dtlsUp(long now) {
+			if (mUpSince != 0 && mDtlsSince == 0) {
+				mDtlsSince = now;
+			}
+		}
+
+		/* DTLS time is moved out of the CSTP bucket when the channel goes away */
+		public void dtlsDown(long now) {
+			if (mDtlsSince != 0) {
+				dtlsMs += now - mDtlsSince;
+				cstpMs -= now - mDtlsSince;
+				mDtlsSince = 0;
+			}
+		}
+	}
+
+	public static class Summary {
+		public int attempts;
+		public int connected;
+		public int cancelled;
+		public int failed;
+		/* median ConnectTracer "total" over successful connections, or -1 */
+		public long medianConnectMs = -1;
+		public long totalRx;
+		public long totalTx;
+
+		/* cancelled attempts don't count either way */
+		public int getSuccessPercent() {
+			int n = connected + failed;
+			return n == 0 ? -1 : connected * 100 / n;
+		}
+	}
+
+	private final File mDir;
+
+	public SessionHistory(Context context) {
+		mDir = new File(context.getFilesDir(), DIR_NAME);
+	}
+
+	private static void putVarint(ByteArrayOutputStream out, long val) {
+		while ((val & ~0x7fL) != 0) {
+			out.write((int)((val & 0x7f) | 0x80));
+			val >>>= 7;
+		}
+		out.write((int)val);
+	}
+
+	private static void putString(ByteArrayOutputStream out, String s) {
+		byte b[] = s.getBytes(UTF8);
+		putVarint(out, b.length);
+		out.write(b, 0, b.length);
+	}
+
+	/* -1 stays representable: every timing is stored as value + 1 */
+	private static byte[] encode(Record r) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		putVarint(out, VERSION);
+		putString(out, r.uuid);
+		putVarint(out, r.start);
+		putVarint(out, Math.max(r.end - r.start, 0));
+		putVarint(out, r.outcome);
+		putString(out, r.reason);
+		putVarint(out, r.rxBytes);
+		putVarint(out, r.txBytes);
+		putVarint(out, r.reconnects);
+		putVarint(out, Math.max(r.dtlsMs, 0));
+		putVarint(out, Math.max(r.cstpMs, 0));
+		putVarint(out, r.phases.length);
+		for (long p : r.phases) {
+			putVarint(out, p + 1);
+		}
+		return out.toByteArray();
+	}
+
+	private static class Reader {
+		final byte buf[];
+		int pos;
+		final int end;
+
+		Reader(byte buf[], int pos, int end) {
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		long varint() throws IOException {
+			long val = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (pos >= end) {
+					throw new IOException("truncated varint");
+				}
+				int c = buf[pos++];
+				val |= (long)(c & 0x7f) << shift;
+				if ((c & 0x80) == 0) {
+					return val;
+				}
+			}
+			throw new IOException("bad varint");
+		}
+
+		String string() throws IOException {
+			int len = (int)varint();
+			if (len < 0 || len > end - pos) {
+				throw new IOException("bad string length");
+			}
+			String s = new String(buf, pos, len, UTF8);
+			pos += len;
+			return s;
+		}
+	}
+
+	private static Record decode(Reader in) throws IOException {
+		if (in.varint() != VERSION) {
+			return null;
+		}
+		Record r = new Record(in.string());
+		r.start = in.varint();
+		r.end = r.start + in.varint();
+		r.outcome = (int)in.varint();
+		r.reason = in.string();
+		r.rxBytes = in.varint();
+		r.txBytes = in.varint();
+		r.reconnects = (int)in.varint();
+		r.dtlsMs = in.varint();
+		r.cstpMs = in.varint();
+		int n = (int)in.varint();
+		for (int i = 0; i < n; i++) {
+			long p = in.varint() - 1;
+			if (i < r.phases.length) {
+				r.phases[i] = p;
+			}
+		}
+		return r;
+	}
+
+	public void append(Record r) {
+		byte data[] = encode(r);
+		ByteArrayOutputStream rec = new ByteArrayOutputStream(data.length + 2);
+		putVarint(rec, data.length);
+		rec.write(data, 0, data.length);
+
+		synchronized (LOCK) {
+			mDir.mkdirs();
+			File cur = new File(mDir, CUR_FILE);
+			if (!trimTornTail(cur) || cur.length() > FILE_SIZE) {
+				File old = new File(mDir, OLD_FILE);
+				old.delete();
+				cur.renameTo(old);
+			}
+			writeFile(cur, rec.toByteArray(), true);
+		}
+	}
+
+	/* truncates f after its last complete record; false if that failed */
+	private static boolean trimTornTail(File f) {
+		byte buf[] = readFile(f);
+		Reader in = new Reader(buf, 0, buf.length);
+		int clean = 0;
+		while (nextRecord(in) >= 0) {
+			clean = in.pos;
+		}
+		if (clean == buf.length) {
+			return true;
+		}
+
+		Log.w(TAG, "dropping " + (buf.length - clean) + " torn bytes from session history");
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+			raf.setLength(clean);
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "unable to trim session history", e);
+			return false;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static boolean writeFile(File f, byte data[], boolean append) {
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(f, append);
+			out.write(data);
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "unable to write session history", e);
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/* the whole file, or an empty array if it's missing or unreadable */
+	private static byte[] readFile(File f) {
+		if (!f.exists()) {
+			return new byte[0];
+		}
+		byte buf[] = new byte[(int)f.length()];
+		FileInputStream in = null;
+		int len = 0;
+		try {
+			in = new FileInputStream(f);
+			int n;
+			while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+				len += n;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "unable to read session history", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return len == buf.length ? buf : Arrays.copyOf(buf, len);
+	}
+
+	/*
+	 * Steps "in" over the next record's length prefix and body, and returns
+	 * where the body starts; -1 if the length is torn or runs past the end.
+	 */
+	private static int nextRecord(Reader in) {
+		int recLen;
+		try {
+			recLen = (int)in.varint();
+		} catch (IOException e) {
+			return -1;
+		}
+		if (recLen < 0 || recLen > in.end - in.pos) {
+			return -1;
+		}
+		int start = in.pos;
+		in.pos += recLen;
+		return start;
+	}
+
+	private static void readRecords(File f, String uuid, ArrayList<Record> out) {
+		byte buf[] = readFile(f);
+		Reader in = new Reader(buf, 0, buf.length);
+		int start;
+		while ((start = nextRecord(in)) >= 0) {
+			try {
+				Record rec = decode(new Reader(buf, start, in.pos));
+				if (rec != null && (uuid == null || uuid.equals(rec.uuid))) {
+					out.add(rec);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "skipping corrupt session history record in " + f.getName());
+			}
+		}
+	}
+
+	/* rewrites f without uuid's records (or ones that don't decode) */
+	private static void purgeFile(File f, String uuid) {
+		byte buf[] = readFile(f);
+		ByteArrayOutputStream keep = new ByteArrayOutputStream(buf.length);
+		Reader in = new Reader(buf, 0, buf.length);
+		int removed = 0;
+
+		while (true) {
+			int prefix = in.pos;
+			int start = nextRecord(in);
+			if (start < 0) {
+				break;
+			}
+			Record rec;
+			try {
+				rec = decode(new Reader(buf, start, in.pos));
+			} catch (IOException e) {
+				removed++;
+				continue;
+			}
+			// records from a newer VERSION can't be matched, so they stay
+			if (rec != null && uuid.equals(rec.uuid)) {
+				removed++;
+				continue;
+			}
+			keep.write(buf, prefix, in.pos - prefix);
+		}
+		if (removed == 0 && in.pos == buf.length) {
+			return;
+		}
+
+		File tmp = new File(f.getPath() + ".tmp");
+		if (writeFile(tmp, keep.toByteArray(), false) && tmp.renameTo(f)) {
+			return;
+		}
+		tmp.delete();
+	}
+
+	/* oldest first; uuid == null returns every profile */
+	public ArrayList<Record> load(String uuid) {
+		ArrayList<Record> ret = new ArrayList<Record>();
+		synchronized (LOCK) {
+			readRecords(new File(mDir, OLD_FILE), uuid, ret);
+			readRecords(new File(mDir, CUR_FILE), uuid, ret);
+		}
+		return ret;
+	}
+
+	public Summary summarize(String uuid) {
+		Summary s = new Summary();
+		ArrayList<Record> records = load(uuid);
+		long times[] = new long[records.size()];
+		int nTimes = 0;
+
+		for (Record r : records) {
+			s.attempts++;
+			s.totalRx += r.rxBytes;
+			s.totalTx += r.txBytes;
+			if (r.outcome == OUTCOME_CONNECTED) {
+				s.connected++;
+				if (r.phases[ConnectTracer.PHASE_TOTAL] >= 0) {
+					times[nTimes++] = r.phases[ConnectTracer.PHASE_TOTAL];
+				}
+			} else if (r.outcome == OUTCOME_CANCELLED) {
+				s.cancelled++;
+			} else {
+				s.failed++;
+			}
+		}
+		if (nTimes > 0) {
+			Arrays.sort(times, 0, nTimes);
+			s.medianConnectMs = times[nTimes / 2];
+		}
+		return s;
+	}
+
+	public void clear() {
+		synchronized (LOCK) {
+			new File(mDir, CUR_FILE).delete();
+			new File(mDir, OLD_FILE).delete();
+		}
+	}
+
+	/* drops a deleted profile's records */
+	public static void purge(Context context, String uuid) {
+		File dir = new File(context.getFilesDir(), DIR_NAME);
+		synchronized (LOCK) {
+			purgeFile(new File(dir, OLD_FILE), uuid);
+			purgeFile(new File(dir, CUR_FILE), uuid);
+		}
+	}
+}
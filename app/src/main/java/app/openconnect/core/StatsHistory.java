@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.util.Arrays;
+
+/*
+ * Traffic history kept as per-second deltas for the last hour, plus per-minute
+ * totals for the last day.  Everything lives in preallocated long[] rings
+ * (one row per series), so recording a sample never allocates.
+ *
+ * Samples are cumulative counters as reported by the library.  If samples
+ * arrive less than once per second, the delta is spread evenly across the
+ * seconds in between, so totals and averages stay exact and peaks are only
+ * smoothed.  Sampling stops while the screen is off, so a gap can be hours
+ * long; the part of it older than the per-second ring is credited straight
+ * to the minute buckets it belongs in.
+ */
+public class StatsHistory {
+
+	public static final int RX_BYTES = 0;
+	public static final int TX_BYTES = 1;
+	public static final int RX_PKTS = 2;
+	public static final int TX_PKTS = 3;
+	private static final int NUM_SERIES = 4;
+
+	public static final int SECONDS = 3600;
+	public static final int MINUTES = 1440;
+
+	private final long mSec[][] = new long[NUM_SERIES][SECONDS];
+	private final long mMin[][] = new long[NUM_SERIES][MINUTES];
+	private final long mPrev[] = new long[NUM_SERIES];
+	private final long mDelta[] = new long[NUM_SERIES];
+	private final long mPerSec[] = new long[NUM_SERIES];
+
+	private boolean mHavePrev;
+
+	/* time of the newest slot in each ring, and the index that holds it */
+	private long mLastSec = -1;
+	private int mSecHead;
+	private int mSecCount;
+	private long mLastMin = -1;
+	private int mMinHead;
+	private int mMinCount;
+
+	private void advanceSeconds(long sec) {
+		if (mLastSec < 0 || sec - mLastSec >= SECONDS) {
+			for (int s = 0; s < NUM_SERIES; s++) {
+				Arrays.fill(mSec[s], 0);
+			}
+			mSecHead = 0;
+			mSecCount = 1;
+			mLastSec = sec;
+			return;
+		}
+		while (mLastSec < sec) {
+			mSecHead = (mSecHead + 1) % SECONDS;
+			for (int s = 0; s < NUM_SERIES; s++) {
+				mSec[s][mSecHead] = 0;
+			}
+			if (mSecCount < SECONDS) {
+				mSecCount++;
+			}
+			mLastSec++;
+		}
+	}
+
+	private void advanceMinutes(long min) {
+		if (mLastMin < 0 || min - mLastMin >= MINUTES) {
+			for (int s = 0; s < NUM_SERIES; s++) {
+				Arrays.fill(mMin[s], 0);
+			}
+			mMinHead = 0;
+			mMinCount = 1;
+			mLastMin = min;
+			return;
+		}
+		while (mLastMin < min) {
+			mMinHead = (mMinHead + 1) % MINUTES;
+			for (int s = 0; s < NUM_SERIES; s++) {
+				mMin[s][mMinHead] = 0;
+			}
+			if (mMinCount < MINUTES) {
+				mMinCount++;
+			}
+			mLastMin++;
+		}
+	}
+
+	/* credits one second's worth of traffic; sec must not be older than the newest slot */
+	private void record(long sec, long rxBytes, long txBytes, long rxPkts, long txPkts) {
+		advanceSeconds(sec);
+		advanceMinutes(sec / 60);
+		mSec[RX_BYTES][mSecHead] += rxBytes;
+		mSec[TX_BYTES][mSecHead] += txBytes;
+		mSec[RX_PKTS][mSecHead] += rxPkts;
+		mSec[TX_PKTS][mSecHead] += txPkts;
+		mMin[RX_BYTES][mMinHead] += rxBytes;
+		mMin[TX_BYTES][mMinHead] += txBytes;
+		mMin[RX_PKTS][mMinHead] += rxPkts;
+		mMin[TX_PKTS][mMinHead] += txPkts;
+	}
+
+	/* nowMs is SystemClock.elapsedRealtime(); the counters are cumulative */
+	public synchronized void add(long nowMs, long rxBytes, long txBytes, long rxPkts, long txPkts) {
+		long sec = nowMs / 1000;
+		long cur[] = mDelta;
+		cur[RX_BYTES] = rxBytes;
+		cur[TX_BYTES] = txBytes;
+		cur[RX_PKTS] = rxPkts;
+		cur[TX_PKTS] = txPkts;
+
+		if (!mHavePrev) {
+			mHavePrev = true;
+			System.arraycopy(cur, 0, mPrev, 0, NUM_SERIES);
+			advanceSeconds(sec);
+			advanceMinutes(sec / 60);
+			return;
+		}
+
+		for (int s = 0; s < NUM_SERIES; s++) {
+			long c = cur[s];
+			// counters start over when the tunnel is re-established
+			cur[s] = c >= mPrev[s] ? c - mPrev[s] : c;
+			mPrev[s] = c;
+		}
+
+		long gap = sec - mLastSec;
+		if (gap <= 1) {
+			record(Math.max(sec, mLastSec), cur[RX_BYTES], cur[TX_BYTES], cur[RX_PKTS], cur[TX_PKTS]);
+			return;
+		}
+
+		// spread the traffic over the seconds we didn't see; the last one gets the remainder
+		for (int s = 0; s < NUM_SERIES; s++) {
+			mPerSec[s] = cur[s] / gap;
+		}
+		long first = sec - gap + 1;
+		long recent = Math.max(first, sec - SECONDS + 1);
+		long oldest = Math.max(first, (sec / 60 - MINUTES + 1) * 60);
+		if (oldest < recent) {
+			backfillMinutes(oldest, recent);
+		}
+		for (long t = recent; t <= sec; t++) {
+			long rb = mPerSec[RX_BYTES], tb = mPerSec[TX_BYTES];
+			long rp = mPerSec[RX_PKTS], tp = mPerSec[TX_PKTS];
+			if (t == sec) {
+				rb += cur[RX_BYTES] % gap;
+				tb += cur[TX_BYTES] % gap;
+				rp += cur[RX_PKTS] % gap;
+				tp += cur[TX_PKTS] % gap;
+			}
+			record(t, rb, tb, rp, tp);
+		}
+	}
+
+	/* credits mPerSec for each second in [fromSec, toSec) to the minute buckets only */
+	private void backfillMinutes(long fromSec, long toSec) {
+		long t = fromSec;
+		while (t < toSec) {
+			long min = t / 60;
+			long end = Math.min(toSec, (min + 1) * 60);
+			advanceMinutes(min);
+			for (int s = 0; s < NUM_SERIES; s++) {
+				mMin[s][mMinHead] += mPerSec[s] * (end - t);
+			}
+			t = end;
+		}
+	}
+
+	public synchronized void clear() {
+		mHavePrev = false;
+		mLastSec = mLastMin = -1;
+		mSecCount = mMinCount = 0;
+	}
+
+	/* number of seconds of history available */
+	public synchronized int getSeconds() {
+		return mSecCount;
+	}
+
+	/* number of minutes of history available */
+	public synchronized int getMinutes() {
+		return mMinCount;
+	}
+
+	/* per-second value, ago=0 being the newest (possibly still filling) second */
+	public synchronized long getSecond(int series, int ago) {
+		if (ago < 0 || ago >= mSecCount) {
+			return 0;
+		}
+		return mSec[series][(mSecHead - ago + SECONDS) % SECONDS];
+	}
+
+	/* per-minute total, ago=0 being the current minute */
+	public synchronized long getMinute(int series, int ago) {
+		if (ago < 0 || ago >= mMinCount) {
+			return 0;
+		}
+		return mMin[series][(mMinHead - ago + MINUTES) % MINUTES];
+	}
+
+	/* units per second over the last complete second */
+	public synchronized long getRate(int series) {
+		return mSecCount > 1 ? getSecond(series, 1) : 0;
+	}
+
+	/*
+	 * Total over the last windowSec seconds.  Windows longer than an hour are
+	 * answered from the minute buckets, rounded up to whole minutes.
+	 */
+	public synchronized long getTotal(int series, int windowSec) {
+		long total = 0;
+		if (windowSec <= SECONDS) {
+			int n = Math.min(windowSec, mSecCount);
+			for (int i = 0; i < n; i++) {
+				total += getSecond(series, i);
+			}
+		} else {
+			int n = Math.min((windowSec + 59) / 60, mMinCount);
+			for (int i = 0; i < n; i++) {
+				total += getMinute(series, i);
+			}
+		}
+		return total;
+	}
+
+	/* average units per second over the window (or over the history we have, if shorter) */
+	public synchronized long getAverage(int series, int windowSec) {
+		int span = windowSec <= SECONDS ? Math.min(windowSec, mSecCount) :
+				Math.min((windowSec + 59) / 60, mMinCount) * 60;
+		return span > 0 ? getTotal(series, windowSec) / span : 0;
+	}
+
+	/* highest per-second value in the window; beyond an hour this is the busiest minute's average */
+	public synchronized long getPeak(int series, int windowSec) {
+		long peak = 0;
+		if (windowSec <= SECONDS) {
+			int n = Math.min(windowSec, mSecCount);
+			for (int i = 0; i < n; i++) {
+				peak = Math.max(peak, getSecond(series, i));
+			}
+		} else {
+			int n = Math.min((windowSec + 59) / 60, mMinCount);
+			for (int i = 0; i < n; i++) {
+				peak = Math.max(peak, getMinute(series, i) / 60);
+			}
+		}
+		return peak;
+	}
+}
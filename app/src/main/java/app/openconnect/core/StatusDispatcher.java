@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/*
+ * In-process fan-out of service status changes.  Any thread can post() a set
+ * of dirty bits; they are OR'd together and delivered to the listeners on the
+ * dispatcher's Handler at most once per interval, so a burst of state and
+ * stats updates costs one UI refresh instead of one per event.
+ */
+public class StatusDispatcher {
+
+	public static final int DIRTY_STATE = 0x01;
+	public static final int DIRTY_STATS = 0x02;
+	public static final int DIRTY_DIALOG = 0x04;
+	public static final int DIRTY_IPINFO = 0x08;
+	public static final int DIRTY_ALL = 0x0f;
+
+	/* roughly one frame */
+	public static final long DEFAULT_INTERVAL = 16;
+
+	public interface Listener {
+		/* called on the dispatcher's Handler thread */
+		void onStatusChanged(int dirty);
+	}
+
+	private final Handler mHandler;
+	private final long mInterval;
+	private final AtomicInteger mPending = new AtomicInteger();
+	private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+	private volatile long mLastDispatch;
+
+	private final Runnable mDispatchRunnable = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+		}
+	};
+
+	public StatusDispatcher(Handler handler, long interval) {
+		mHandler = handler;
+		mInterval = interval;
+	}
+
+	public StatusDispatcher(Handler handler) {
+		this(handler, DEFAULT_INTERVAL);
+	}
+
+	/* Handler thread only */
+	public void addListener(Listener l) {
+		if (!mListeners.contains(l)) {
+			mListeners.add(l);
+		}
+	}
+
+	/* Handler thread only */
+	public void removeListener(Listener l) {
+		mListeners.remove(l);
+	}
+
+	public void post(int dirty) {
+		int prev;
+		do {
+			prev = mPending.get();
+		} while (!mPending.compareAndSet(prev, prev | dirty));
+
+		// whoever sets the first bit schedules the dispatch
+		if (prev == 0) {
+			long wait = mLastDispatch + mInterval - SystemClock.uptimeMillis();
+			if (wait > 0) {
+				mHandler.postDelayed(mDispatchRunnable, wait);
+			} else {
+				mHandler.post(mDispatchRunnable);
+			}
+		}
+	}
+
+	private void dispatch() {
+		mLastDispatch = SystemClock.uptimeMillis();
+		int dirty = mPending.getAndSet(0);
+		if (dirty == 0) {
+			return;
+		}
+		// listeners may unregister themselves from the callback
+		Listener listeners[] = mListeners.toArray(new Listener[mListeners.size()]);
+		for (Listener l : listeners) {
+			l.onStatusChanged(dirty);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import android.util.Log;
+
+/*
+ * Opens a TCP connection to a host behind the VPN and closes it again as soon
+ * as the handshake completes.  A refused connection counts as a reply too:
+ * the RST still had to come back through the tunnel.
+ *
+ * The address is resolved once and reused until a probe fails with an error.
+ * Lookups run on their own thread, started when the probe is created and
+ * again after an error, so a slow resolver never holds the keepalive
+ * wakelock; a probe that finds no address yet just fails that round.
+ */
+public class TCPProbe implements HealthProbe {
+
+	public static final String TAG = "OpenConnect";
+
+	private final String mHost;
+	private final int mPort;
+
+	private InetSocketAddress mAddr;
+	private Thread mResolver;
+	private SocketChannel mChannel;
+
+	public TCPProbe(String host, int port) {
+		mHost = host;
+		mPort = port;
+		resolve();
+	}
+
+	/* "host" or "host:port"; IPv6 literals need brackets to carry a port.  Returns null if invalid. */
+	static TCPProbe parse(String s, int defaultPort) {
+		int port = defaultPort;
+		int colon = s.lastIndexOf(':');
+		boolean bracketed = s.startsWith("[");
+		if (colon > 0 && (bracketed ? colon > s.indexOf(']') : s.indexOf(':') == colon)) {
+			try {
+				port = Integer.parseInt(s.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			s = s.substring(0, colon);
+		}
+		s = s.replace("[", "").replace("]", "");
+		if (s.equals("") || port <= 0 || port > 65535) {
+			return null;
+		}
+		return new TCPProbe(s, port);
+	}
+
+	String getHost() {
+		return mHost;
+	}
+
+	int getPort() {
+		return mPort;
+	}
+
+	private synchronized void resolve() {
+		if (mResolver != null) {
+			return;
+		}
+		mAddr = null;
+		mResolver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				InetSocketAddress addr = null;
+				try {
+					addr = new InetSocketAddress(InetAddress.getByName(mHost), mPort);
+				} catch (UnknownHostException e) {
+					Log.w(TAG, "KeepAlive: can't resolve " + mHost);
+				}
+				synchronized (TCPProbe.this) {
+					mAddr = addr;
+					mResolver = null;
+				}
+			}
+		}, "TCPProbe");
+		mResolver.setDaemon(true);
+		mResolver.start();
+	}
+
+	/* null while a lookup is in progress or after one failed */
+	synchronized InetSocketAddress getAddress() {
+		return mAddr;
+	}
+
+	@Override
+	public String getName() {
+		return "tcp/" + mHost + ":" + mPort;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (mChannel != null) {
+				mChannel.close();
+			}
+		} catch (IOException e) {
+		}
+		mChannel = null;
+	}
+
+	@Override
+	public boolean start(Selector sel) {
+		close();
+		InetSocketAddress addr = getAddress();
+		if (addr == null) {
+			// try again in the background; this round counts as an error
+			resolve();
+			return false;
+		}
+		try {
+			mChannel = SocketChannel.open();
+			mChannel.configureBlocking(false);
+			if (mChannel.connect(addr)) {
+				// loopback and friends can connect immediately; a connected socket is always writable
+				mChannel.register(sel, SelectionKey.OP_WRITE, this);
+			} else {
+				mChannel.register(sel, SelectionKey.OP_CONNECT, this);
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "KeepAlive: TCP probe to " + mHost + ":" + mPort + " failed", e);
+			close();
+			resolve();
+			return false;
+		}
+	}
+
+	@Override
+	public int onReady() {
+		int ret = RESULT_OK;
+		try {
+			if (mChannel.isConnectionPending() && !mChannel.finishConnect()) {
+				return RESULT_PENDING;
+			}
+		} catch (ConnectException e) {
+			/* refused: the host answered */
+		} catch (IOException e) {
+			Log.w(TAG, "KeepAlive: TCP probe to " + mHost + ":" + mPort + " failed", e);
+			resolve();
+			ret = RESULT_ERROR;
+		}
+		close();
+		return ret;
+	}
+}
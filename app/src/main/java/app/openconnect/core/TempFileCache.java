@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Formatter;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Content-addressed store for the cert/key/CSD files that the library needs on
+ * disk.  Entries are named <uuid>.<pref>.<sha1 of pref value>, so an unchanged
+ * profile reuses the file written by the previous connection and an edited
+ * profile gets a fresh one.  Files are written to a temporary name and renamed
+ * into place so a half-written cert is never picked up.
+ */
+public class TempFileCache {
+
+	public static final String TAG = "OpenConnect";
+
+	private static final String DIR_NAME = "pref-cache";
+
+	private File mDir;
+
+	public TempFileCache(Context context) {
+		mDir = getDir(context);
+	}
+
+	private static File getDir(Context context) {
+		return new File(context.getCacheDir(), DIR_NAME);
+	}
+
+	public static String digest(String... parts) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+			for (String s : parts) {
+				md.update(s.getBytes("UTF-8"));
+				md.update((byte)0);
+			}
+		} catch (Exception e) {
+			// no SHA-1 (or UTF-8) means a badly broken ROM; fall back to something unique-ish
+			StringBuilder sb = new StringBuilder();
+			for (String s : parts) {
+				sb.append(s.hashCode()).append('-');
+			}
+			return sb.toString();
+		}
+
+		Formatter f = new Formatter();
+		for (byte b : md.digest()) {
+			f.format("%02x", b);
+		}
+		String ret = f.toString();
+		f.close();
+		return ret;
+	}
+
+	private static String prefix(String uuid, String key) {
+		return uuid + "." + key + ".";
+	}
+
+	public synchronized String lookup(String uuid, String key, String digest) {
+		File f = new File(mDir, prefix(uuid, key) + digest);
+		return f.exists() ? f.getPath() : null;
+	}
+
+	public synchronized String store(String uuid, String key, String digest, byte data[],
+			boolean isExecutable) throws IOException {
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("can't create " + mDir.getPath());
+		}
+
+		String name = prefix(uuid, key) + digest;
+		File tmp = new File(mDir, name + ".part");
+		File out = new File(mDir, name);
+
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write(data);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (isExecutable && !tmp.setExecutable(true)) {
+			tmp.delete();
+			throw new IOException("can't chmod " + tmp.getPath());
+		}
+		if (!tmp.renameTo(out)) {
+			tmp.delete();
+			throw new IOException("can't rename " + tmp.getPath());
+		}
+
+		// older versions of the same pref are dead now
+		String pfx = prefix(uuid, key);
+		File files[] = mDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String s = f.getName();
+				if (s.startsWith(pfx) && !s.equals(name)) {
+					f.delete();
+				}
+			}
+		}
+		return out.getPath();
+	}
+
+	/* drop everything belonging to a deleted profile */
+	public static void purge(Context context, String uuid) {
+		File files[] = getDir(context).listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.getName().startsWith(uuid + ".")) {
+				if (!f.delete()) {
+					Log.w(TAG, "TempFileCache: error deleting " + f.getName());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.Arrays;
+
+import org.infradead.libopenconnect.LibOpenConnect.VPNStats;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import app.openconnect.R;
+
+/*
+ * Ongoing "connected" notification with the current rx/tx rate and a text
+ * sparkline of the last minute of traffic.  The service feeds it every stats
+ * sample; it reposts at most once per MIN_UPDATE_INTERVAL, and only if a
+ * rate moved by more than CHANGE_PERCENT (and CHANGE_FLOOR bytes/s) or a
+ * sparkline bar changed height, so a steady link costs nothing.
+ */
+public class ThroughputNotification {
+
+	public static final int NOTIFICATION_ID = 2;
+
+	private static final long MIN_UPDATE_INTERVAL = 5000;
+
+	/* how often the service should sample stats for us; sampling faster than we can repost is wasted */
+	public static final int SAMPLE_INTERVAL = (int)MIN_UPDATE_INTERVAL;
+
+	/* smaller rate changes don't count as a change */
+	private static final int CHANGE_PERCENT = 10;
+	private static final long CHANGE_FLOOR = 1024;
+
+	/* 20 bars of 3 seconds each */
+	private static final int SPARK_BARS = 20;
+	private static final int SPARK_SECONDS = 3;
+	private static final char SPARK_CHARS[] = {
+		'\u2581', '\u2582', '\u2583', '\u2584', '\u2585', '\u2586', '\u2587', '\u2588' };
+
+	private final Context mContext;
+	private final NotificationManager mManager;
+	private final long mBarTotals[] = new long[SPARK_BARS];
+	private final int mLevels[] = new int[SPARK_BARS];
+	private final int mLastLevels[] = new int[SPARK_BARS];
+	private final StringBuilder mSpark = new StringBuilder(SPARK_BARS);
+
+	private boolean mShowing;
+	private long mLastUpdate;
+	private String mLastServer;
+	private long mLastRx;
+	private long mLastTx;
+
+	public ThroughputNotification(Context context) {
+		mContext = context;
+		mManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+	}
+
+	/* bar heights for the last minute into mLevels, newest on the right */
+	private void computeLevels(StatsHistory history) {
+		long max = 0;
+		for (int i = 0; i < SPARK_BARS; i++) {
+			long total = 0;
+			// skip the current (partial) second
+			for (int j = 1; j <= SPARK_SECONDS; j++) {
+				int ago = (SPARK_BARS - 1 - i) * SPARK_SECONDS + j;
+				total += history.getSecond(StatsHistory.RX_BYTES, ago) +
+						history.getSecond(StatsHistory.TX_BYTES, ago);
+			}
+			mBarTotals[i] = total;
+			max = Math.max(max, total);
+		}
+		for (int i = 0; i < SPARK_BARS; i++) {
+			mLevels[i] = max == 0 ? 0 : (int)(mBarTotals[i] * (SPARK_CHARS.length - 1) / max);
+		}
+	}
+
+	String sparkline(StatsHistory history) {
+		computeLevels(history);
+		return renderLevels();
+	}
+
+	private String renderLevels() {
+		mSpark.setLength(0);
+		for (int i = 0; i < SPARK_BARS; i++) {
+			mSpark.append(SPARK_CHARS[mLevels[i]]);
+		}
+		return mSpark.toString();
+	}
+
+	static boolean rateChanged(long oldRate, long newRate) {
+		// a link going idle (or waking up) always counts
+		if ((oldRate == 0) != (newRate == 0)) {
+			return true;
+		}
+		long diff = Math.abs(newRate - oldRate);
+		return diff > CHANGE_FLOOR && diff * 100 > oldRate * CHANGE_PERCENT;
+	}
+
+	/* UI thread; rate is per-second, as from OpenVpnService.getDeltaStats() */
+	@SuppressWarnings("deprecation")
+	public void update(long nowMs, String serverName, VPNStats rate, StatsHistory history,
+			PendingIntent contentIntent) {
+		if (mShowing && nowMs - mLastUpdate < MIN_UPDATE_INTERVAL) {
+			return;
+		}
+
+		String server = serverName == null ? "" : serverName;
+		computeLevels(history);
+		if (mShowing && server.equals(mLastServer) &&
+				!rateChanged(mLastRx, rate.rxBytes) && !rateChanged(mLastTx, rate.txBytes) &&
+				Arrays.equals(mLevels, mLastLevels)) {
+			return;
+		}
+
+		String title = mContext.getString(R.string.notification_connected, server);
+		String text = mContext.getString(R.string.notification_throughput,
+				OpenVpnService.humanReadableByteCount(rate.rxBytes, true),
+				OpenVpnService.humanReadableByteCount(rate.txBytes, true),
+				renderLevels());
+
+		Notification.Builder builder = new Notification.Builder(mContext)
+				.setSmallIcon(R.drawable.ic_stat_vpn)
+				.setContentTitle(title)
+				.setContentText(text)
+				.setContentIntent(contentIntent)
+				.setOngoing(true)
+				.setOnlyAlertOnce(true);
+		mManager.notify(NOTIFICATION_ID, builder.getNotification());
+
+		mShowing = true;
+		mLastUpdate = nowMs;
+		mLastServer = server;
+		mLastRx = rate.rxBytes;
+		mLastTx = rate.txBytes;
+		System.arraycopy(mLevels, 0, mLastLevels, 0, SPARK_BARS);
+	}
+
+	public void cancel() {
+		if (mShowing) {
+			mManager.cancel(NOTIFICATION_ID);
+			mShowing = false;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.util.Log;
+
+/*
+ * Probes every health target (the pushed DNS servers, plus an optional host
+ * behind the VPN) in parallel from one Selector, and keeps per-target RTT,
+ * jitter and loss so the UI and the log dump can show how well the tunnel is
+ * actually carrying traffic.
+ *
+ * RTT goes into a LatencyHistogram for the long-term distribution, and into a
+ * TCP-style smoothed RTT for the score.  Jitter is the RFC 3550 estimator,
+ * J += (|D| - J) / 16, over consecutive replies.  Loss is counted over the
+ * last 32 probes of each target in a single int.
+ *
+ * probeAll() and close() run on the KeepAlive worker thread; the getters may
+ * be called from anywhere.
+ */
+public class TunnelHealth {
+
+	public static final String TAG = "OpenConnect";
+
+	/* number of probes the loss figure covers; one bit each in Target.mLossBits */
+	private static final int WINDOW = 32;
+
+	/* once a reply with the wrong ID shows up, only wait this much longer for the right one */
+	private static final long STRAGGLER_NS = 100 * 1000000L;
+
+	public static class Target {
+		private final HealthProbe mProbe;
+		private final LatencyHistogram mRtt = new LatencyHistogram();
+
+		/* bit 0 is the latest probe; set = lost */
+		private int mLossBits;
+		private int mWindowLen;
+		private long mSent;
+		private long mLost;
+		private long mSrttMs = -1;
+		private long mLastRttMs = -1;
+		private double mJitterMs;
+
+		/* worker thread only: state of the round in progress */
+		private long mStartNs;
+		private long mDeadlineNs;
+		private int mResult;
+		private boolean mSawBadReply;
+		private long mRoundRttMs;
+
+		Target(HealthProbe probe) {
+			mProbe = probe;
+		}
+
+		public String getName() {
+			return mProbe.getName();
+		}
+
+		synchronized void record(boolean ok, long rttMs) {
+			mSent++;
+			mLossBits = (mLossBits << 1) | (ok ? 0 : 1);
+			if (mWindowLen < WINDOW) {
+				mWindowLen++;
+			}
+			if (!ok) {
+				mLost++;
+				return;
+			}
+
+			mRtt.add(rttMs);
+			if (mLastRttMs >= 0) {
+				mJitterMs += (Math.abs(rttMs - mLastRttMs) - mJitterMs) / 16.0;
+			}
+			mLastRttMs = rttMs;
+			mSrttMs = mSrttMs < 0 ? rttMs : (mSrttMs * 7 + rttMs) / 8;
+		}
+
+		/* -1 until the first reply */
+		public synchronized long getSmoothedRttMs() {
+			return mSrttMs;
+		}
+
+		public synchronized long getJitterMs() {
+			return Math.round(mJitterMs);
+		}
+
+		/* over the last WINDOW probes */
+		public synchronized int getLossPercent() {
+			if (mWindowLen == 0) {
+				return 0;
+			}
+			return Integer.bitCount(mLossBits) * 100 / mWindowLen;
+		}
+
+		/*
+		 * 0-100, or -1 before the first probe.  Loss dominates since it stalls
+		 * TCP; latency above 50ms and jitter cost a little each.
+		 */
+		public synchronized int getScore() {
+			if (mWindowLen == 0) {
+				return -1;
+			}
+			if (mSrttMs < 0) {
+				return 0;
+			}
+			int score = 100 - getLossPercent() * 2;
+			score -= (int)Math.min(40, Math.max(0, (mSrttMs - 50) / 10));
+			score -= (int)Math.min(20, Math.round(mJitterMs) / 4);
+			return Math.max(0, score);
+		}
+
+		private synchronized String dump() {
+			return getName() + " score=" + getScore() +
+					" srtt=" + mSrttMs + "ms jitter=" + getJitterMs() + "ms" +
+					" loss=" + getLossPercent() + "% (" + mLost + "/" + mSent + " total)" +
+					" rtt " + mRtt.summarize();
+		}
+	}
+
+	private final ArrayList<Target> mTargets = new ArrayList<Target>();
+	private Selector mSelector;
+
+	/* score after the last round; a round only gets a log line when it changes or a target fails */
+	private int mLastScore = -1;
+
+	public TunnelHealth(List<HealthProbe> probes) {
+		for (HealthProbe p : probes) {
+			mTargets.add(new Target(p));
+		}
+	}
+
+	/* blocks for at most timeoutMs (plus a little); returns true if any target answered */
+	public boolean probeAll(int timeoutMs) {
+		int waiting = 0;
+
+		for (Target t : mTargets) {
+			t.mResult = HealthProbe.RESULT_PENDING;
+			t.mSawBadReply = false;
+			t.mStartNs = System.nanoTime();
+			t.mDeadlineNs = t.mStartNs + timeoutMs * 1000000L;
+		}
+
+		try {
+			if (mSelector == null) {
+				mSelector = Selector.open();
+			}
+			for (Target t : mTargets) {
+				if (t.mProbe.start(mSelector)) {
+					waiting++;
+				} else {
+					t.mResult = HealthProbe.RESULT_ERROR;
+				}
+			}
+
+			while (waiting > 0) {
+				long now = System.nanoTime();
+				long next = Long.MAX_VALUE;
+				for (Target t : mTargets) {
+					if (t.mResult != HealthProbe.RESULT_PENDING) {
+						continue;
+					}
+					if (t.mDeadlineNs <= now) {
+						t.mResult = t.mSawBadReply ? HealthProbe.RESULT_BAD_REPLY : HealthProbe.RESULT_TIMEOUT;
+						waiting--;
+					} else {
+						next = Math.min(next, t.mDeadlineNs);
+					}
+				}
+				if (waiting == 0) {
+					break;
+				}
+
+				if (mSelector.select(Math.max(1, (next - now) / 1000000L)) == 0) {
+					continue;
+				}
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					// always let the probe consume the event, even if its round is over,
+					// or a level-triggered straggler would keep the selector spinning
+					HealthProbe p = (HealthProbe)key.attachment();
+					int result = p.onReady();
+					Target t = findTarget(p);
+					if (t == null || t.mResult != HealthProbe.RESULT_PENDING ||
+							result == HealthProbe.RESULT_PENDING) {
+						continue;
+					}
+					if (result == HealthProbe.RESULT_BAD_REPLY) {
+						t.mSawBadReply = true;
+						t.mDeadlineNs = Math.min(t.mDeadlineNs, System.nanoTime() + STRAGGLER_NS);
+						continue;
+					}
+					t.mResult = result;
+					t.mRoundRttMs = (System.nanoTime() - t.mStartNs) / 1000000L;
+					waiting--;
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "KeepAlive: health check failed", e);
+			closeSelector();
+			for (Target t : mTargets) {
+				if (t.mResult == HealthProbe.RESULT_PENDING) {
+					t.mResult = HealthProbe.RESULT_ERROR;
+				}
+			}
+		}
+
+		boolean anyOK = false;
+		boolean allOK = true;
+		for (int i = 0; i < mTargets.size(); i++) {
+			Target t = mTargets.get(i);
+			boolean ok = t.mResult == HealthProbe.RESULT_OK;
+			t.record(ok, t.mRoundRttMs);
+			anyOK |= ok;
+			allOK &= ok;
+		}
+
+		int score = getScore();
+		if (!allOK || score != mLastScore) {
+			logRound(score);
+		}
+		mLastScore = score;
+		return anyOK;
+	}
+
+	private void logRound(int score) {
+		StringBuilder sb = new StringBuilder();
+		for (Target t : mTargets) {
+			boolean ok = t.mResult == HealthProbe.RESULT_OK;
+			sb.append(sb.length() == 0 ? "" : ", ").append(t.getName()).append(' ');
+			if (ok) {
+				sb.append(t.mRoundRttMs).append("ms");
+			} else if (t.mResult == HealthProbe.RESULT_BAD_REPLY) {
+				sb.append("bad reply");
+			} else if (t.mResult == HealthProbe.RESULT_TIMEOUT) {
+				sb.append("timeout");
+			} else {
+				sb.append("error");
+			}
+		}
+		Log.d(TAG, "KeepAlive: " + sb.toString() + "; score " + score);
+	}
+
+	private Target findTarget(HealthProbe p) {
+		for (Target t : mTargets) {
+			if (t.mProbe == p) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	private void closeSelector() {
+		try {
+			if (mSelector != null) {
+				mSelector.close();
+			}
+		} catch (IOException e) {
+		}
+		mSelector = null;
+	}
+
+	public void close() {
+		for (Target t : mTargets) {
+			t.mProbe.close();
+		}
+		closeSelector();
+	}
+
+	/* the target with the highest score, or null if nothing has been probed yet */
+	public Target getBest() {
+		Target best = null;
+		int bestScore = -1;
+		for (Target t : mTargets) {
+			int score = t.getScore();
+			if (score > bestScore) {
+				best = t;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/* 0-100, or -1 if unknown; the tunnel is as good as its best path */
+	public int getScore() {
+		Target t = getBest();
+		return t == null ? -1 : t.getScore();
+	}
+
+	public String dump() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HEALTH: score ").append(getScore()).append("\n");
+		for (Target t : mTargets) {
+			sb.append("HEALTH: ").append(t.dump()).append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -26,13 +26,10 @@ package app.openconnect.core;
 
 import org.infradead.libopenconnect.LibOpenConnect.VPNStats;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import app.openconnect.R;
@@ -42,67 +39,67 @@ public abstract class VPNConnector {
 
 	public static final String TAG = "OpenConnect";
 
+	public static final int DEFAULT_STATS_INTERVAL = 1000;
+
 	public OpenVpnService service;
-	public VPNStats oldStats = new VPNStats();
 	public VPNStats newStats = new VPNStats();
 	public VPNStats deltaStats = new VPNStats();
 	public boolean statsValid = false;
 
 	private Context mContext;
 	private boolean mIsActivity;
-	private BroadcastReceiver mReceiver;
+	private StatusDispatcher.Listener mListener;
+	private boolean mStopped;
 	private String mOwnerName;
 
-	private Handler mStatsHandler;
-	private Runnable mStatsRunnable;
-	private int mStatsCount = 0;
+	private int mStatsInterval;
 
 	public abstract void onUpdate(OpenVpnService service);
 
+	/* "changes" is a mask of StatusDispatcher.DIRTY_* bits */
+	public void onUpdate(OpenVpnService service, int changes) {
+		onUpdate(service);
+	}
+
+	/* connection state only; no traffic stats are sampled on our behalf */
 	public VPNConnector(Context ctx, boolean isActivity) {
+		this(ctx, isActivity, 0);
+	}
+
+	/* statsInterval > 0 subscribes to the service's shared stats sampling */
+	public VPNConnector(Context ctx, boolean isActivity, int statsInterval) {
 		mContext = ctx;
 		mIsActivity = isActivity;
+		mStatsInterval = statsInterval;
 
 		Intent intent = new Intent(mContext, OpenVpnService.class);
 		intent.setAction(OpenVpnService.START_SERVICE);
 		mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
 
-		mReceiver = new BroadcastReceiver() {
+		mListener = new StatusDispatcher.Listener() {
 			@Override
-			public void onReceive(Context context, Intent intent) {
-				if (service != null) {
-					onUpdate(service);
+			public void onStatusChanged(int dirty) {
+				if (service == null) {
+					return;
 				}
+				if (mStatsInterval > 0) {
+					updateStats();
+				} else if (dirty == StatusDispatcher.DIRTY_STATS) {
+					// nothing we asked for
+					return;
+				}
+				onUpdate(service, dirty);
 			}
 		};
-		mContext.registerReceiver(mReceiver, new IntentFilter(
-				OpenVpnService.ACTION_VPN_STATUS));
 		mOwnerName = mContext.getClass().getSimpleName();
+	}
 
-    	mStatsHandler = new Handler();
-    	mStatsRunnable = new Runnable() {
-			@Override
-			public void run() {
-				if (service != null) {
-					oldStats = newStats;
-					newStats = service.getStats();
-
-					deltaStats.rxBytes = newStats.rxBytes - oldStats.rxBytes;
-					deltaStats.rxPkts = newStats.rxPkts - oldStats.rxPkts;
-					deltaStats.txBytes = newStats.txBytes - oldStats.txBytes;
-					deltaStats.txPkts = newStats.txPkts - oldStats.txPkts;
-
-					service.requestStats();
-
-					// wait until we've received at least two samples, so the delta is correct
-					if (++mStatsCount >= 2) {
-						statsValid = true;
-					}
-				}
-				mStatsHandler.postDelayed(mStatsRunnable, 1000);
-			}
-    	};
-    	mStatsRunnable.run();
+	private void updateStats() {
+		if (mStatsInterval > 0) {
+			newStats = service.getStats();
+			deltaStats = service.getDeltaStats();
+			statsValid = service.isDeltaValid();
+		}
 	}
 
 	// an Activity should call stopActiveDialog() from onPause()
@@ -115,15 +112,14 @@ public abstract class VPNConnector {
 
 	// a Fragment should call unbind() or stop()+unbind() from onDestroyView
 	public void stop() {
-		if (mReceiver != null) {
-			mContext.unregisterReceiver(mReceiver);
-			mReceiver = null;
-		}
-
-		if (mStatsHandler != null) {
-			mStatsHandler.removeCallbacks(mStatsRunnable);
-			mStatsHandler = null;
+		mStopped = true;
+		if (service != null) {
+			service.removeStatusListener(mListener);
+			if (mStatsInterval > 0) {
+				service.unsubscribeStats(this);
+			}
 		}
+		mStatsInterval = 0;
 	}
 
 	public void unbind() {
@@ -154,7 +150,15 @@ public abstract class VPNConnector {
 			LocalBinder binder = (LocalBinder) serviceBinder;
 			service = binder.getService();
 			service.updateActivityRefcount(mIsActivity ? 1 : 0);
-			onUpdate(service);
+			if (mStopped) {
+				return;
+			}
+			service.addStatusListener(mListener);
+			if (mStatsInterval > 0) {
+				service.subscribeStats(VPNConnector.this, mStatsInterval);
+			}
+			updateStats();
+			onUpdate(service, StatusDispatcher.DIRTY_ALL);
 		}
 
 		@Override
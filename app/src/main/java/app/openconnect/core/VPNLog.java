@@ -24,17 +24,17 @@
 
 package app.openconnect.core;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.infradead.libopenconnect.LibOpenConnect;
 
 import android.content.Context;
+import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -52,9 +52,96 @@ public class VPNLog {
 	public static final int LEVEL_DEBUG = LibOpenConnect.PRG_DEBUG;
 	public static final int LEVEL_TRACE = LibOpenConnect.PRG_TRACE;
 
-	private static final int MAX_ENTRIES = 512;
-	private ArrayList<VPNLogItem> circ = new ArrayList<VPNLogItem>();
+	public static final int DEFAULT_CAPACITY = 5000;
+	private static final int NUM_LEVELS = LEVEL_TRACE + 1;
+
+	/* entries copied out per lock acquisition while scanning or exporting */
+	private static final int SCAN_CHUNK = 512;
+
+	/* what ACRA gets: the newest entries, up to this many of each */
+	public static final int CRASH_TAIL_ENTRIES = 500;
+	public static final int CRASH_TAIL_CHARS = 64 * 1024;
+
+	/*
+	 * Fixed-size ring: mRing[mHead] is the oldest entry.  Every entry also has
+	 * a sequence number (mFirstSeq for the oldest), which is what the per-level
+	 * and per-tag indexes store, so filtering by level or tag never scans the
+	 * whole log.
+	 */
+	private VPNLogItem mRing[];
+	private int mHead;
+	private int mSize;
+	private long mFirstSeq;
+	private SeqIndex mLevelIndex[] = new SeqIndex[NUM_LEVELS];
+	private SeqIndex mTagIndex[] = new SeqIndex[LogFilter.NUM_TAGS];
 	private LogArrayAdapter mArrayAdapter;
+	private LogJournal mJournal;
+
+	/*
+	 * mView is what the adapter shows: null for everything, one of the indexes
+	 * above for a plain level or tag filter, or else mMatches.  append() keeps
+	 * mMatches current, and a scan on mScanner back-fills the entries that
+	 * were already in the log when the filter was set.
+	 */
+	private LogFilter mFilter;
+	private SeqIndex mView;
+	private SeqIndex mMatches;
+	private int mFilterGen;
+	private ExecutorService mScanner;
+	private Handler mHandler;
+
+	/* growable ring of sequence numbers, oldest first */
+	private static class SeqIndex {
+		private long mSeq[] = new long[64];
+		private int mHead;
+		private int mSize;
+
+		void add(long seq) {
+			if (mSize == mSeq.length) {
+				long grown[] = new long[mSeq.length * 2];
+				for (int i = 0; i < mSize; i++) {
+					grown[i] = get(i);
+				}
+				mSeq = grown;
+				mHead = 0;
+			}
+			mSeq[(mHead + mSize) % mSeq.length] = seq;
+			mSize++;
+		}
+
+		void removeFirst() {
+			if (mSize > 0) {
+				mHead = (mHead + 1) % mSeq.length;
+				mSize--;
+			}
+		}
+
+		long get(int i) {
+			return mSeq[(mHead + i) % mSeq.length];
+		}
+
+		int size() {
+			return mSize;
+		}
+
+		/* position of the first entry >= seq, or size() if there is none */
+		int lowerBound(long seq) {
+			int lo = 0, hi = mSize;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (get(mid) < seq) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		void clear() {
+			mHead = mSize = 0;
+		}
+	}
 
 	private static VPNLog mInstance;
 
@@ -62,6 +149,29 @@ public class VPNLog {
 
 		private Context mContext;
 		private String mTimeFormat = "short";
+		private LogTimeFormatter mFormatter = new LogTimeFormatter(mTimeFormat);
+
+		/* bumped whenever every row needs to be re-rendered */
+		private int mGeneration;
+
+		/*
+		 * What the list last saw.  getCount() keeps reporting mLastCount until
+		 * the next notification, so entries appended below the visible rows
+		 * can wait until the list scrolls down to them.  Once the ring is full
+		 * every append also evicts from the front; mShift is how many of the
+		 * list's rows have been evicted since, so position p is live entry
+		 * p - mShift and the rows on screen keep showing the same entries.
+		 */
+		private int mLastCount = -1;
+		private long mLastFirstId = -1;
+		private long mLastLastId = -1;
+		private int mShift;
+		private boolean mPending;
+		private int mNotifyCount;
+
+		/* rows on screen; until the list says otherwise, assume it shows the tail */
+		private int mFirstVisible;
+		private int mLastVisible = Integer.MAX_VALUE;
 
 		public LogArrayAdapter(Context context) {
 			mContext = context;
@@ -69,67 +179,540 @@ public class VPNLog {
 
 		@Override
 		public int getCount() {
-			return circ.size();
+			return mLastCount < 0 ? filteredCount() : mLastCount;
 		}
 
+		/* null for a row that was evicted while a notification was held back */
 		@Override
 		public Object getItem(int position) {
-			return circ.get(position);
+			position -= mShift;
+			return position < 0 ? null : getFiltered(position);
 		}
 
+		/* sequence numbers don't change when older entries are evicted */
 		@Override
 		public long getItemId(int position) {
-			return position;
+			position -= mShift;
+			return position < 0 ? -1 : getFilteredSeq(position);
+		}
+
+		@Override
+		public boolean hasStableIds() {
+			return true;
 		}
 
 		@Override
 		public View getView(int position, View convertView, ViewGroup parent) {
 			TextView v;
+			RowTag tag;
 			if (convertView != null && convertView instanceof TextView) {
 				v = (TextView)convertView;
+				tag = (RowTag)v.getTag();
 			} else {
 				v = new TextView(mContext);
+				tag = new RowTag();
+				v.setTag(tag);
 			}
 
+			// rows that are still showing the same entry don't need new text
 			VPNLogItem li = (VPNLogItem)getItem(position);
-			v.setText(li.format(mContext, mTimeFormat));
+			if (li == null) {
+				v.setText("");
+				tag.item = null;
+			} else if (tag.item != li || tag.generation != mGeneration) {
+				v.setText(li.format(mFormatter));
+				tag.item = li;
+				tag.generation = mGeneration;
+			}
 			return v;
 		}
 
 		public void setTimeFormat(String timeFormat) {
-			mTimeFormat = timeFormat;
+			if (!timeFormat.equals(mTimeFormat)) {
+				mTimeFormat = timeFormat;
+				mFormatter = new LogTimeFormatter(timeFormat);
+				mGeneration++;
+				notifyDataSetChanged();
+			}
+		}
+
+		/* null shows everything */
+		public void setFilter(LogFilter filter) {
+			VPNLog.this.setFilter(filter);
+		}
+
+		/*
+		 * Called after entries were appended, and maybe evicted from the front.
+		 * Unless the list shows the tail or an evicted row, this is held back:
+		 * the row the list last saw at the bottom just tells us how far its
+		 * rows have moved up.
+		 */
+		void refreshAppended() {
+			if (mLastCount <= 0) {
+				refresh();
+				return;
+			}
+			int lastPos = filteredIndexOf(mLastLastId);
+			if (lastPos < 0) {
+				notifyDataSetChanged();
+				return;
+			}
+			int shift = mLastCount - 1 - lastPos;
+			if (shift == mShift && filteredCount() == lastPos + 1) {
+				// only filtered-out entries came and went
+				return;
+			}
+			if (shift >= 0 && mLastVisible < mLastCount - 1 && mFirstVisible >= shift) {
+				mShift = shift;
+				mPending = true;
+				return;
+			}
+			notifyDataSetChanged();
+		}
+
+		/*
+		 * Called after any other change.  Appends that land below the visible
+		 * rows are held back; anything else (clear, scan results, or the list
+		 * showing the tail) is a full notification.
+		 */
+		void refresh() {
+			int count = filteredCount();
+			long first = count > 0 ? getFilteredSeq(0) : -1;
+			long last = count > 0 ? getFilteredSeq(count - 1) : -1;
+			if (count == mLastCount && first == mLastFirstId && last == mLastLastId) {
+				return;
+			}
+			if (mShift == 0 && count > mLastCount && first == mLastFirstId && mLastVisible < mLastCount - 1) {
+				mPending = true;
+				return;
+			}
 			notifyDataSetChanged();
 		}
+
+		/* from the list's OnScrollListener; catches up once the end or an evicted row comes into view */
+		public void setVisibleRange(int firstVisible, int visibleCount) {
+			mFirstVisible = firstVisible;
+			mLastVisible = firstVisible + visibleCount - 1;
+			if (mPending && (mLastVisible >= mLastCount - 1 || mFirstVisible < mShift)) {
+				notifyDataSetChanged();
+			}
+		}
+
+		/* how many times the list had to re-layout */
+		int getNotifyCount() {
+			return mNotifyCount;
+		}
+
+		@Override
+		public void notifyDataSetChanged() {
+			mPending = false;
+			mShift = 0;
+			mNotifyCount++;
+			mLastCount = filteredCount();
+			mLastFirstId = mLastCount > 0 ? getFilteredSeq(0) : -1;
+			mLastLastId = mLastCount > 0 ? getFilteredSeq(mLastCount - 1) : -1;
+			super.notifyDataSetChanged();
+		}
 	};
 
-	public VPNLog() {
+	private static class RowTag {
+		VPNLogItem item;
+		int generation;
+	}
+
+	public VPNLog(int capacity) {
+		mRing = new VPNLogItem[Math.max(capacity, 1)];
+		for (int i = 0; i < NUM_LEVELS; i++) {
+			mLevelIndex[i] = new SeqIndex();
+		}
+		for (int i = 0; i < LogFilter.NUM_TAGS; i++) {
+			mTagIndex[i] = new SeqIndex();
+		}
 		VPNLog.mInstance = this;
 	}
 
-	private void updateAdapter() {
+	public VPNLog() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/* scan results are posted to "handler" instead of one created on first use */
+	VPNLog(int capacity, Handler handler) {
+		this(capacity);
+		mHandler = handler;
+	}
+
+	private static int clampLevel(int level) {
+		return level < 0 || level >= NUM_LEVELS ? LEVEL_TRACE : level;
+	}
+
+	private void append(VPNLogItem li) {
+		int cap = mRing.length;
+		if (mSize == cap) {
+			VPNLogItem old = mRing[mHead];
+			mLevelIndex[clampLevel(old.getLevel())].removeFirst();
+			mTagIndex[old.getTag()].removeFirst();
+			if (mMatches != null && mMatches.size() > 0 && mMatches.get(0) == mFirstSeq) {
+				mMatches.removeFirst();
+			}
+			mRing[mHead] = null;
+			mHead = (mHead + 1) % cap;
+			mSize--;
+			mFirstSeq++;
+		}
+		long seq = mFirstSeq + mSize;
+		mRing[(mHead + mSize) % cap] = li;
+		mLevelIndex[clampLevel(li.getLevel())].add(seq);
+		mTagIndex[li.getTag()].add(seq);
+		if (mMatches != null && mFilter.matches(li)) {
+			mMatches.add(seq);
+		}
+		mSize++;
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int getCapacity() {
+		return mRing.length;
+	}
+
+	/* position 0 is the oldest entry */
+	public synchronized VPNLogItem get(int position) {
+		if (position < 0 || position >= mSize) {
+			return null;
+		}
+		return mRing[(mHead + position) % mRing.length];
+	}
+
+	public synchronized long getSeq(int position) {
+		return mFirstSeq + position;
+	}
+
+	public synchronized int levelCount(int level) {
+		return mLevelIndex[clampLevel(level)].size();
+	}
+
+	/* position-th oldest entry logged at this level */
+	public synchronized VPNLogItem getAtLevel(int level, int position) {
+		SeqIndex idx = mLevelIndex[clampLevel(level)];
+		if (position < 0 || position >= idx.size()) {
+			return null;
+		}
+		return get((int)(idx.get(position) - mFirstSeq));
+	}
+
+	public synchronized int filteredCount() {
+		return mView == null ? mSize : mView.size();
+	}
+
+	/* position-th oldest entry that passes the current filter */
+	public synchronized VPNLogItem getFiltered(int position) {
+		if (mView == null) {
+			return get(position);
+		}
+		if (position < 0 || position >= mView.size()) {
+			return null;
+		}
+		return get((int)(mView.get(position) - mFirstSeq));
+	}
+
+	/* position of seq among the entries that pass the current filter, or -1 */
+	public synchronized int filteredIndexOf(long seq) {
+		if (mView == null) {
+			return seq >= mFirstSeq && seq < mFirstSeq + mSize ? (int)(seq - mFirstSeq) : -1;
+		}
+		int i = mView.lowerBound(seq);
+		return i < mView.size() && mView.get(i) == seq ? i : -1;
+	}
+
+	public synchronized long getFilteredSeq(int position) {
+		if (mView == null) {
+			return getSeq(position);
+		}
+		return position < mView.size() ? mView.get(position) : -1;
+	}
+
+	/* smallest index that is guaranteed to hold every match, or null for the whole log */
+	private SeqIndex candidatesFor(LogFilter filter) {
+		SeqIndex byLevel = filter.getLevel() < 0 ? null : mLevelIndex[clampLevel(filter.getLevel())];
+		SeqIndex byTag = filter.getTag() < 0 ? null : mTagIndex[filter.getTag()];
+		if (byLevel == null) {
+			return byTag;
+		} else if (byTag == null || byLevel.size() < byTag.size()) {
+			return byLevel;
+		}
+		return byTag;
+	}
+
+	/*
+	 * UI thread only.  Plain level or tag filters just switch to the matching
+	 * index; anything else starts with an empty view that fills in as the
+	 * background scan finishes.
+	 */
+	public void setFilter(LogFilter filter) {
+		if (filter != null && filter.isEmpty()) {
+			filter = null;
+		}
+		synchronized (this) {
+			mFilter = filter;
+			mFilterGen++;
+			mMatches = null;
+			if (filter == null) {
+				mView = null;
+			} else if (!filter.hasText() && (filter.getLevel() < 0 || filter.getTag() < 0)) {
+				mView = candidatesFor(filter);
+			} else {
+				mMatches = new SeqIndex();
+				mView = mMatches;
+				startScan(filter, mFilterGen, mFirstSeq + mSize);
+			}
+		}
 		if (mArrayAdapter != null) {
 			mArrayAdapter.notifyDataSetChanged();
 		}
 	}
 
+	private void startScan(final LogFilter filter, final int gen, final long end) {
+		if (mScanner == null) {
+			mScanner = Executors.newSingleThreadExecutor();
+		}
+		if (mHandler == null) {
+			mHandler = new Handler();
+		}
+		mScanner.execute(new Runnable() {
+			@Override
+			public void run() {
+				scan(filter, gen, end);
+			}
+		});
+	}
+
+	/* scanner thread: matches everything logged before seq "end", a chunk at a time */
+	private void scan(LogFilter filter, final int gen, long end) {
+		final SeqIndex found = new SeqIndex();
+		VPNLogItem items[] = new VPNLogItem[SCAN_CHUNK];
+		long seqs[] = new long[SCAN_CHUNK];
+		long next = 0;
+
+		while (true) {
+			int n = 0;
+			synchronized (this) {
+				if (gen != mFilterGen) {
+					return;
+				}
+				SeqIndex candidates = candidatesFor(filter);
+				if (candidates == null) {
+					for (long seq = Math.max(next, mFirstSeq); n < SCAN_CHUNK && seq < end; seq++, n++) {
+						seqs[n] = seq;
+						items[n] = get((int)(seq - mFirstSeq));
+					}
+				} else {
+					for (int i = candidates.lowerBound(next); n < SCAN_CHUNK && i < candidates.size(); i++, n++) {
+						long seq = candidates.get(i);
+						if (seq >= end) {
+							break;
+						}
+						seqs[n] = seq;
+						items[n] = get((int)(seq - mFirstSeq));
+					}
+				}
+			}
+			if (n == 0) {
+				break;
+			}
+
+			// regex/substring matching happens outside the lock
+			for (int i = 0; i < n; i++) {
+				if (filter.matches(items[i])) {
+					found.add(seqs[i]);
+				}
+				items[i] = null;
+			}
+			next = seqs[n - 1] + 1;
+		}
+
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				publishScan(gen, found);
+			}
+		});
+	}
+
+	/* UI thread: scan results go in front of whatever append() matched meanwhile */
+	private void publishScan(int gen, SeqIndex found) {
+		synchronized (this) {
+			if (gen != mFilterGen) {
+				return;
+			}
+			SeqIndex merged = new SeqIndex();
+			for (int i = found.lowerBound(mFirstSeq); i < found.size(); i++) {
+				merged.add(found.get(i));
+			}
+			for (int i = 0; i < mMatches.size(); i++) {
+				merged.add(mMatches.get(i));
+			}
+			mMatches = merged;
+			mView = merged;
+		}
+		updateAdapter();
+	}
+
+	private void updateAdapter() {
+		if (mArrayAdapter != null) {
+			mArrayAdapter.refresh();
+		}
+	}
+
+	/* new entries are also appended to the journal; UI thread only from here on */
+	public void setJournal(LogJournal journal) {
+		mJournal = journal;
+	}
+
 	public void add(int level, String msg) {
 		VPNLogItem li = new VPNLogItem(level, msg);
-		circ.add(li);
-		while (circ.size() > MAX_ENTRIES) {
-			circ.remove(0);
+		synchronized (this) {
+			append(li);
+		}
+		if (mJournal != null) {
+			mJournal.append(li);
+		}
+		if (mArrayAdapter != null) {
+			mArrayAdapter.refreshAppended();
+		}
+	}
+
+	/* adds a batch of items with a single adapter refresh */
+	public void addAll(ArrayList<VPNLogItem> items) {
+		synchronized (this) {
+			for (VPNLogItem li : items) {
+				append(li);
+			}
+		}
+		if (mJournal != null) {
+			for (VPNLogItem li : items) {
+				mJournal.append(li);
+			}
+		}
+		if (mArrayAdapter != null) {
+			mArrayAdapter.refreshAppended();
+		}
+	}
+
+	/*
+	 * UI thread.  Entries from the journal are older than anything logged
+	 * since the service started, so the ring is rebuilt with them in front.
+	 * Everything gets a new sequence number (ids only ever go up), and a
+	 * filter that needs a scan is rescanned.
+	 */
+	public void restore(ArrayList<VPNLogItem> items) {
+		synchronized (this) {
+			VPNLogItem live[] = new VPNLogItem[mSize];
+			for (int i = 0; i < mSize; i++) {
+				live[i] = get(i);
+			}
+			long next = mFirstSeq + mSize;
+
+			Arrays.fill(mRing, null);
+			mHead = mSize = 0;
+			mFirstSeq = next;
+			for (SeqIndex idx : mLevelIndex) {
+				idx.clear();
+			}
+			for (SeqIndex idx : mTagIndex) {
+				idx.clear();
+			}
+			boolean rescan = mMatches != null;
+			mMatches = null;
+
+			for (int i = Math.max(items.size() + live.length - mRing.length, 0); i < items.size(); i++) {
+				append(items.get(i));
+			}
+			for (VPNLogItem li : live) {
+				append(li);
+			}
+			if (rescan) {
+				mFilterGen++;
+				mMatches = new SeqIndex();
+				mView = mMatches;
+				startScan(mFilter, mFilterGen, mFirstSeq + mSize);
+			}
+		}
+		if (mArrayAdapter != null) {
+			mArrayAdapter.notifyDataSetChanged();
 		}
-		updateAdapter();
 	}
 
 	public void clear() {
-		circ.clear();
+		synchronized (this) {
+			Arrays.fill(mRing, null);
+			mHead = mSize = 0;
+			mFirstSeq = 0;
+			for (SeqIndex idx : mLevelIndex) {
+				idx.clear();
+			}
+			for (SeqIndex idx : mTagIndex) {
+				idx.clear();
+			}
+			if (mMatches != null) {
+				// any scan in progress is looking at entries that are gone now
+				mFilterGen++;
+				mMatches.clear();
+			}
+		}
+		if (mJournal != null) {
+			mJournal.clear();
+		}
 		updateAdapter();
 	}
 
-	public String dump() {
-		StringBuilder ret = new StringBuilder();
-		for (Object s : circ.toArray()) {
-			ret.append(s.toString() + "\n");
+	/*
+	 * Any thread.  Entries are copied out SCAN_CHUNK at a time and written
+	 * without holding the lock, so memory use doesn't depend on the log size
+	 * and logging carries on while a slow stream drains.
+	 */
+	public void writeTo(Writer out) throws IOException {
+		LogTimeFormatter formatter = new LogTimeFormatter("long");
+		VPNLogItem items[] = new VPNLogItem[SCAN_CHUNK];
+		long next = 0;
+
+		while (true) {
+			int n = 0;
+			synchronized (this) {
+				for (long seq = Math.max(next, mFirstSeq); n < SCAN_CHUNK && seq < mFirstSeq + mSize; seq++, n++) {
+					items[n] = get((int)(seq - mFirstSeq));
+				}
+				next = Math.max(next, mFirstSeq) + n;
+			}
+			if (n == 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				out.write(items[i].format(formatter));
+				out.write('\n');
+				items[i] = null;
+			}
+		}
+	}
+
+	/* the newest entries, oldest first, stopping at maxEntries lines or about maxChars */
+	public synchronized String dumpTail(int maxEntries, int maxChars) {
+		LogTimeFormatter formatter = new LogTimeFormatter("long");
+		ArrayList<String> lines = new ArrayList<String>();
+		int chars = 0;
+		for (int i = mSize - 1; i >= 0 && lines.size() < maxEntries; i--) {
+			String line = get(i).format(formatter);
+			if (chars + line.length() + 1 > maxChars) {
+				break;
+			}
+			lines.add(line);
+			chars += line.length() + 1;
+		}
+
+		StringBuilder ret = new StringBuilder(chars);
+		for (int i = lines.size() - 1; i >= 0; i--) {
+			ret.append(lines.get(i)).append("\n");
 		}
 		return ret.toString();
 	}
@@ -140,51 +723,14 @@ public class VPNLog {
 		if (mInstance == null) {
 			return "";
 		} else {
-			return mInstance.dump();
-		}
-	}
-
-	public int saveToFile(String path) {
-		int ret = -1;
-
-		try {
-			ObjectOutputStream s = new ObjectOutputStream(new FileOutputStream(path));
-
-			s.writeObject((Integer)circ.size());
-			for (VPNLogItem i : circ) {
-				s.writeObject(i);
-			}
-			s.close();
-			ret = 0;
-		} catch (FileNotFoundException e) {
-			Log.w(TAG, "file not found writing " + path, e);
-		} catch (IOException e) {
-			Log.w(TAG, "I/O error writing " + path, e);
+			return mInstance.dumpTail(CRASH_TAIL_ENTRIES, CRASH_TAIL_CHARS);
 		}
-		return ret;
 	}
 
-	public int restoreFromFile(String path) {
-		int ret = -1;
-
-		try {
-			ObjectInputStream s = new ObjectInputStream(new FileInputStream(path));
-			int records = (Integer)s.readObject();
-
-			circ.clear();
-			for (; records > 0; records--) {
-				circ.add((VPNLogItem)s.readObject());
-			}
-			s.close();
-			ret = 0;
-		} catch (FileNotFoundException e) {
-			Log.d(TAG, "file not found reading " + path);
-		} catch (IOException e) {
-			Log.w(TAG, "I/O error reading " + path, e);
-		} catch (ClassNotFoundException e) {
-			Log.w(TAG, "Class not found reading " + path, e);
+	public void close() {
+		if (mScanner != null) {
+			mScanner.shutdownNow();
 		}
-		return ret;
 	}
 
 	public LogArrayAdapter getArrayAdapter(Context mContext) {
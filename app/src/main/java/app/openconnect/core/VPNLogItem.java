@@ -24,39 +24,87 @@
 
 package app.openconnect.core;
 
-import java.io.Serializable;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.nio.charset.Charset;
 
 import android.content.Context;
 
-public class VPNLogItem implements Serializable {
-	private static final long serialVersionUID = 7341923752956090364L;
+public class VPNLogItem {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* most log traffic comes from the library, so its prefix is stored as a flag */
+	private static final String LIB_PREFIX = "LIB: ";
+	private static final int FLAG_LIB = 0x80;
+	private static final int LEVEL_MASK = 0x0f;
+	private static final int TAG_MASK = 0x70;
+	private static final int TAG_SHIFT = 4;
 
 	private long mLogtime = System.currentTimeMillis();
-	private String mMsg;
-	@SuppressWarnings("unused")	private int mLevel;
+
+	/* header byte (level | flags) followed by the message in UTF-8 */
+	private byte mData[];
 
 	public VPNLogItem(int level, String msg) {
-		this.mLevel = level;
-		this.mMsg = msg;
+		int header = level & LEVEL_MASK;
+		if (msg.startsWith(LIB_PREFIX)) {
+			header |= FLAG_LIB;
+			msg = msg.substring(LIB_PREFIX.length());
+		} else {
+			header |= LogFilter.classify(msg) << TAG_SHIFT;
+		}
+		byte utf8[] = msg.getBytes(UTF8);
+		mData = new byte[utf8.length + 1];
+		mData[0] = (byte)header;
+		System.arraycopy(utf8, 0, mData, 1, utf8.length);
+	}
+
+	/* rebuilds an item from its packed form, e.g. when replaying LogJournal */
+	VPNLogItem(long logtime, byte data[]) {
+		mLogtime = logtime;
+		mData = data;
+	}
+
+	/* header byte + UTF-8 message; callers must not modify it */
+	byte[] getData() {
+		return mData;
+	}
+
+	public int getLevel() {
+		return mData[0] & LEVEL_MASK;
 	}
 
+	/* one of LogFilter.TAG_*, decided once when the item is created */
+	public int getTag() {
+		if ((mData[0] & FLAG_LIB) != 0) {
+			return LogFilter.TAG_LIB;
+		}
+		return (mData[0] & TAG_MASK) >> TAG_SHIFT;
+	}
+
+	public long getTime() {
+		return mLogtime;
+	}
+
+	public String getMessage() {
+		String msg = new String(mData, 1, mData.length - 1, UTF8);
+		return (mData[0] & FLAG_LIB) != 0 ? LIB_PREFIX + msg : msg;
+	}
+
+	public String format(LogTimeFormatter formatter) {
+		return formatter.prefix(mLogtime) + getMessage();
+	}
+
+	/* shared "short", "long" and "none" formatters for callers that don't keep their own */
+	private static LogTimeFormatter sFormatters[] = new LogTimeFormatter[3];
+
 	public String format(Context context, String timeFormat) {
-		String pfx = "";
-		if (!timeFormat.equals("none")) {
-			Date d = new Date(mLogtime);
-			java.text.DateFormat formatter;
-
-			if (timeFormat.equals("long")) { 
-				formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss",Locale.getDefault());
-			} else {
-				formatter = new SimpleDateFormat("HH:mm:ss",Locale.getDefault());
+		int i = timeFormat.equals("long") ? 1 : (timeFormat.equals("none") ? 2 : 0);
+		synchronized (VPNLogItem.class) {
+			if (sFormatters[i] == null) {
+				sFormatters[i] = new LogTimeFormatter(timeFormat);
 			}
-			pfx = formatter.format(d) + " ";
+			return format(sFormatters[i]);
 		}
-		return pfx + mMsg;
 	}
 
 	public String toString() {
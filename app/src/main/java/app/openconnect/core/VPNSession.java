@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+
+package app.openconnect.core;
+
+import org.infradead.libopenconnect.LibOpenConnect;
+
+/*
+ * The subset of the LibOpenConnect API that OpenConnectManagementThread
+ * drives.  LibOpenConnectSession is the real implementation; keeping the
+ * thread behind this interface lets it run against an in-process stand-in
+ * instead of the native library.
+ *
+ * Method names and semantics follow LibOpenConnect.  pause(), cancel() and
+ * requestStats() may be called from any thread; everything else is called
+ * from the VPN thread only.
+ */
+public interface VPNSession {
+
+	/* library -> app callbacks, invoked on the VPN thread */
+	public interface Callbacks {
+		int onValidatePeerCert(String reason);
+		int onWriteNewConfig(byte[] buf);
+		int onProcessAuthForm(LibOpenConnect.AuthForm authForm);
+		void onProgress(int level, String msg);
+		void onProtectSocket(int fd);
+		void onStatsUpdate(LibOpenConnect.VPNStats stats);
+	}
+
+	public interface Factory {
+		/* userAgent may be null to use the library default */
+		VPNSession create(String userAgent, Callbacks callbacks);
+	}
+
+	/* configuration */
+	int setProtocol(String protocol);
+	String getProtocol();
+	void setCSDWrapper(String wrapper, String TMPDIR, String PATH);
+	void setCAFile(String caFile);
+	void setClientCert(String cert, String sslKey);
+	void setXMLPost(boolean isEnabled);
+	void setPFS(boolean isEnabled);
+	void setReportedOS(String os);
+	void setMobileInfo(String mobilePlatformVersion, String mobileDeviceType,
+			String mobileDeviceUniqueID);
+	void setDPD(int minSeconds);
+	int setTokenMode(int tokenMode, String tokenString);
+	void setLogLevel(int level);
+
+	/* connection lifecycle */
+	int parseURL(String url);
+	int obtainCookie();
+	void setCookie(String cookie);
+	String getCookie();
+	void clearCookie();
+	void resetSSL();
+	int makeCSTPConnection();
+	int setupTunFD(int tunFD);
+	int setupDTLS(int attemptPeriod);
+	int mainloop(int reconnectTimeout, int reconnectInterval);
+	void destroy();
+
+	/* control, safe to call from other threads */
+	void pause();
+	void cancel();
+	void requestStats();
+
+	/* connection info */
+	String getHostname();
+	byte[] getPeerCertDER();
+	LibOpenConnect.IPInfo getIPInfo();
+	int getIdleTimeout();
+	/* null unless the DTLS channel is up */
+	String getDTLSCipher();
+}
@@ -162,11 +162,11 @@ public class ConnectionEditorFragment extends PreferenceFragment
             }
         }
 
-        /* similarly, if split tunnel is "auto", ignore manually entered subnets */
+        /* similarly, if split tunnel is automatic, ignore manually entered subnets */
         if (key.equals("split_tunnel_mode")) {
             pref = findPreference("split_tunnel_networks");
             if (pref != null) {
-                pref.setEnabled(!value.equals("auto"));
+                pref.setEnabled(!value.startsWith("auto"));
             }
         }
 
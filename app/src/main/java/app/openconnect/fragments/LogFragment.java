@@ -26,12 +26,17 @@
 
 package app.openconnect.fragments;
 
+import java.io.IOException;
+import java.util.regex.PatternSyntaxException;
+
 import android.app.Activity;
 import android.app.ListFragment;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -41,12 +46,18 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.SearchView.OnQueryTextListener;
 import app.openconnect.R;
+import app.openconnect.core.LogExporter;
+import app.openconnect.core.LogFilter;
 import app.openconnect.core.OpenConnectManagementThread;
 import app.openconnect.core.OpenVpnService;
 import app.openconnect.core.VPNConnector;
@@ -63,11 +74,25 @@ public class LogFragment extends ListFragment {
     private boolean mDisconnected;
 
 	private LogArrayAdapter mLogAdapter;
+	private boolean mErrorsOnly;
+	private int mTagFilter = -1;
+	private boolean mRegex;
+	private String mQuery = "";
 	private ListView mLogView;
 	private Activity mActivity;
 
 	private TextView mSpeedView;
 
+	/* tag submenu item -> LogFilter.TAG_* */
+	private static final int TAG_ITEMS[][] = {
+		{ R.id.tag_all, -1 },
+		{ R.id.tag_lib, LogFilter.TAG_LIB },
+		{ R.id.tag_auth, LogFilter.TAG_AUTH },
+		{ R.id.tag_route, LogFilter.TAG_ROUTE },
+		{ R.id.tag_dns, LogFilter.TAG_DNS },
+		{ R.id.tag_stat, LogFilter.TAG_STAT },
+	};
+
     @Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		if (mConn.service == null) {
@@ -76,6 +101,19 @@ public class LogFragment extends ListFragment {
 		if(item.getItemId()==R.id.clearlog) {
 			mConn.service.clearLog();
 			return true;
+		} else if(item.getItemId()==R.id.send_log) {
+			sendLog(mConn.service);
+			return true;
+		} else if(item.getItemId()==R.id.errors_only) {
+			mErrorsOnly = !item.isChecked();
+			item.setChecked(mErrorsOnly);
+			updateFilter();
+			return true;
+		} else if(item.getItemId()==R.id.regex_search) {
+			mRegex = !item.isChecked();
+			item.setChecked(mRegex);
+			updateFilter();
+			return true;
 		} else if(item.getItemId()==R.id.cancel) {
 			if (mDisconnected) {
 				mConn.service.startReconnectActivity(mActivity);
@@ -83,7 +121,16 @@ public class LogFragment extends ListFragment {
 				stopVPN();
 			}
             return true;
-		} else if(mDropdown.onOptionsItemSelected(item)) {
+		}
+		for (int i[] : TAG_ITEMS) {
+			if (item.getItemId() == i[0]) {
+				mTagFilter = i[1];
+				item.setChecked(true);
+				updateFilter();
+				return true;
+			}
+		}
+		if(mDropdown.onOptionsItemSelected(item)) {
 			return true;
 		}
 		return super.onOptionsItemSelected(item);
@@ -95,11 +142,61 @@ public class LogFragment extends ListFragment {
 		inflater.inflate(R.menu.logmenu, menu);
 		mDropdown = new CommonMenu(getActivity(), menu, true);
 		mCancelButton = menu.findItem(R.id.cancel);
+		menu.findItem(R.id.errors_only).setChecked(mErrorsOnly);
+		menu.findItem(R.id.regex_search).setChecked(mRegex);
+		for (int i[] : TAG_ITEMS) {
+			if (i[1] == mTagFilter) {
+				menu.findItem(i[0]).setChecked(true);
+			}
+		}
+
+		MenuItem searchItem = menu.findItem(R.id.search);
+		final SearchView search = (SearchView)searchItem.getActionView();
+		if (mQuery.length() > 0) {
+			searchItem.expandActionView();
+			search.setQuery(mQuery, false);
+		}
+		search.setOnQueryTextListener(new OnQueryTextListener() {
+			@Override
+			public boolean onQueryTextChange(String newText) {
+				mQuery = newText;
+				updateFilter();
+				return true;
+			}
+
+			@Override
+			public boolean onQueryTextSubmit(String query) {
+				if (buildFilter() == null) {
+					Toast.makeText(mActivity, R.string.bad_regex, Toast.LENGTH_SHORT).show();
+				}
+				search.clearFocus();
+				return true;
+			}
+		});
+
 		if (mConn != null) {
 			updateUI(mConn.service);
 		}
 	}
 
+    /* returns null if the search text isn't a valid regex */
+    private LogFilter buildFilter() {
+    	try {
+    		return new LogFilter(mErrorsOnly ? VPNLog.LEVEL_ERR : -1, mTagFilter, mQuery, mRegex);
+    	} catch (PatternSyntaxException e) {
+    		return null;
+    	}
+    }
+
+    private void updateFilter() {
+    	LogFilter filter = buildFilter();
+    	// while a regex is half-typed, keep showing the last valid results
+    	if (mLogAdapter != null && filter != null) {
+    		mLogAdapter.setFilter(filter);
+    		mLogView.setSelection(mLogAdapter.getCount());
+    	}
+    }
+
     private synchronized void updateUI(OpenVpnService service) {
     	if (service != null) {
     		int state = service.getConnectionState();
@@ -130,7 +227,7 @@ public class LogFragment extends ListFragment {
     		if (mLogAdapter == null) {
     			mLogAdapter = service.getArrayAdapter(mActivity);
     			mLogView.setAdapter(mLogAdapter);
-    			mLogView.setSelection(mLogAdapter.getCount());
+    			updateFilter();
     		}
 
     		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
@@ -142,7 +239,7 @@ public class LogFragment extends ListFragment {
 	public void onResume() {
 		super.onResume();
 
-		mConn = new VPNConnector(mActivity, false) {
+		mConn = new VPNConnector(mActivity, false, VPNConnector.DEFAULT_STATS_INTERVAL) {
 			@Override
 			public void onUpdate(OpenVpnService service) {
 				updateUI(service);
@@ -188,10 +285,60 @@ public class LogFragment extends ListFragment {
 			}
 		});
 
+		// rows appended below the visible ones don't need a re-layout until we scroll to them
+		mLogView.setOnScrollListener(new OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (mLogAdapter != null) {
+					mLogAdapter.setVisibleRange(firstVisibleItem, visibleItemCount);
+				}
+			}
+		});
+
 		mSpeedView = (TextView)v.findViewById(R.id.speed);
 		return v;
     }
 
+    /* the export can take a while on big logs, so it runs off the UI thread */
+    private void sendLog(final OpenVpnService service) {
+    	final Activity act = mActivity;
+    	new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Uri uri = null;
+				try {
+					uri = LogExporter.exportToCache(act, service);
+				} catch (IOException e) {
+					Log.w(TAG, "log export failed", e);
+				}
+
+				final Uri result = uri;
+				act.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (act.isFinishing() || !isAdded()) {
+							return;
+						}
+						if (result == null) {
+							Toast.makeText(act, R.string.log_export_failed, Toast.LENGTH_SHORT).show();
+							return;
+						}
+						Intent i = new Intent(Intent.ACTION_SEND);
+						i.setType(LogExporter.MIME_TYPE);
+						i.putExtra(Intent.EXTRA_STREAM, result);
+						i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+						act.startActivity(Intent.createChooser(i, act.getString(R.string.send_log)));
+					}
+				});
+			}
+    	}).start();
+    }
+
     private void stopVPN() {
     	if (mConn.service != null) {
     		Log.d(TAG, "connection terminated via UI");
@@ -37,8 +37,12 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 import app.openconnect.R;
+import app.openconnect.core.ConnectTracer;
+import app.openconnect.core.LatencyHistogram;
 import app.openconnect.core.OpenConnectManagementThread;
 import app.openconnect.core.OpenVpnService;
+import app.openconnect.core.ReconnectMetrics;
+import app.openconnect.core.TunnelHealth;
 import app.openconnect.core.VPNConnector;
 
 import org.infradead.libopenconnect.LibOpenConnect;
@@ -71,7 +75,7 @@ public class StatusFragment extends Fragment {
 			}
     	});
 
-    	mConn = new VPNConnector(getActivity(), false) {
+    	mConn = new VPNConnector(getActivity(), false, VPNConnector.DEFAULT_STATS_INTERVAL) {
 			@Override
 			public void onUpdate(OpenVpnService service) {
 				updateUI(service);
@@ -155,6 +159,37 @@ public class StatusFragment extends Fragment {
 			}
 
 			writeStatusField(R.id.local_ip6, R.string.local_ip6, ip.netmask6 != null ? ip.netmask6 : dis);
+
+			ConnectTracer tracer = service.connectTracer;
+			if (tracer != null && tracer.getLast(ConnectTracer.PHASE_TOTAL) >= 0) {
+				LatencyHistogram h = tracer.getHistogram(ConnectTracer.PHASE_TOTAL);
+				writeStatusField(R.id.connect_time, R.string.connect_time,
+						getString(R.string.connect_time_value,
+								tracer.getLast(ConnectTracer.PHASE_TOTAL),
+								h.getPercentile(50), h.getPercentile(90)));
+			} else {
+				writeStatusField(R.id.connect_time, R.string.connect_time, "-");
+			}
+
+			ReconnectMetrics metrics = service.reconnectMetrics;
+			if (metrics != null && metrics.getOutages() > 0) {
+				writeStatusField(R.id.reconnects, R.string.reconnects,
+						getString(R.string.reconnects_value, metrics.getRecoveries(),
+								metrics.getAttempts(), metrics.getRecoverTime().getPercentile(50),
+								metrics.getGiveUps()));
+			} else {
+				writeStatusField(R.id.reconnects, R.string.reconnects, "-");
+			}
+
+			TunnelHealth health = service.tunnelHealth;
+			TunnelHealth.Target best = health != null ? health.getBest() : null;
+			if (best != null && best.getSmoothedRttMs() >= 0) {
+				writeStatusField(R.id.tunnel_health, R.string.tunnel_health,
+						getString(R.string.tunnel_health_value, best.getScore(),
+								best.getSmoothedRttMs(), best.getJitterMs(), best.getLossPercent()));
+			} else {
+				writeStatusField(R.id.tunnel_health, R.string.tunnel_health, "-");
+			}
 		} else {
 			writeStatusField(R.id.connection_state, R.string.netstatus,
 					service.getConnectionStateName());
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+/*
+ * Just enough of a Context for the core classes: files and cache live under
+ * a temporary directory, and each SharedPreferences name maps to a FakePrefs.
+ */
+public class FakeContext extends ContextWrapper {
+
+	private final File mRoot;
+	private final HashMap<String,FakePrefs> mPrefs = new HashMap<String,FakePrefs>();
+
+	public FakeContext() {
+		super(null);
+		try {
+			mRoot = File.createTempFile("openconnect-test", "");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		mRoot.delete();
+		mRoot.mkdirs();
+		getFilesDir().mkdirs();
+		getCacheDir().mkdirs();
+	}
+
+	/* removes everything under the temporary directory */
+	public void cleanup() {
+		delete(mRoot);
+	}
+
+	private static void delete(File f) {
+		File children[] = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	@Override
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	@Override
+	public String getPackageName() {
+		return "app.openconnect";
+	}
+
+	@Override
+	public File getFilesDir() {
+		return new File(mRoot, "files");
+	}
+
+	@Override
+	public File getCacheDir() {
+		return new File(mRoot, "cache");
+	}
+
+	@Override
+	public File getFileStreamPath(String name) {
+		return new File(getFilesDir(), name);
+	}
+
+	@Override
+	public FileInputStream openFileInput(String name) throws FileNotFoundException {
+		return new FileInputStream(getFileStreamPath(name));
+	}
+
+	@Override
+	public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+		return new FileOutputStream(getFileStreamPath(name), (mode & Context.MODE_APPEND) != 0);
+	}
+
+	@Override
+	public boolean deleteFile(String name) {
+		return getFileStreamPath(name).delete();
+	}
+
+	@Override
+	public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+		FakePrefs p = mPrefs.get(name);
+		if (p == null) {
+			p = new FakePrefs();
+			mPrefs.put(name, p);
+		}
+		return p;
+	}
+}
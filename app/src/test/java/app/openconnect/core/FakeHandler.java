@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.ArrayList;
+
+import android.os.Handler;
+
+/*
+ * A Handler with a virtual clock: nothing runs until the test calls
+ * runPending() or advance(), and then it runs on the test's thread, in due
+ * order.  post() may be called from any thread; waitForPost() lets a test
+ * block until a background thread hands something back.
+ */
+public class FakeHandler extends Handler {
+
+	private static class Task {
+		final Runnable r;
+		final long when;
+		final long order;
+
+		Task(Runnable r, long when, long order) {
+			this.r = r;
+			this.when = when;
+			this.order = order;
+		}
+	}
+
+	private final ArrayList<Task> mTasks = new ArrayList<Task>();
+	private long mNow;
+	private long mOrder;
+
+	@Override
+	public boolean post(Runnable r) {
+		return postDelayed(r, 0);
+	}
+
+	@Override
+	public synchronized boolean postDelayed(Runnable r, long delayMillis) {
+		mTasks.add(new Task(r, mNow + Math.max(delayMillis, 0), mOrder++));
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public synchronized void removeCallbacks(Runnable r) {
+		for (int i = mTasks.size() - 1; i >= 0; i--) {
+			if (mTasks.get(i).r == r) {
+				mTasks.remove(i);
+			}
+		}
+	}
+
+	public synchronized long now() {
+		return mNow;
+	}
+
+	public synchronized int pendingCount() {
+		return mTasks.size();
+	}
+
+	/* true if r is queued, at any time */
+	public synchronized boolean hasPending(Runnable r) {
+		for (Task t : mTasks) {
+			if (t.r == r) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* earliest task due at or before "until", or null */
+	private synchronized Task next(long until) {
+		Task best = null;
+		for (Task t : mTasks) {
+			if (t.when <= until && (best == null || t.when < best.when ||
+					(t.when == best.when && t.order < best.order))) {
+				best = t;
+			}
+		}
+		if (best != null) {
+			mTasks.remove(best);
+			if (best.when > mNow) {
+				mNow = best.when;
+			}
+		}
+		return best;
+	}
+
+	/* runs everything that is due now, including tasks those post with no delay */
+	public int runPending() {
+		int n = 0;
+		Task t;
+		while ((t = next(now())) != null) {
+			t.r.run();
+			n++;
+		}
+		return n;
+	}
+
+	/* moves the clock forward by ms, running tasks as they come due */
+	public int advance(long ms) {
+		long until = now() + ms;
+		int n = 0;
+		Task t;
+		while ((t = next(until)) != null) {
+			t.r.run();
+			n++;
+		}
+		synchronized (this) {
+			mNow = until;
+		}
+		return n;
+	}
+
+	/* blocks until at least one task is queued; false on timeout */
+	public synchronized boolean waitForPost(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (mTasks.isEmpty()) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
+			}
+			wait(left);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/* HashMap-backed SharedPreferences; commit() and apply() are both synchronous */
+public class FakePrefs implements SharedPreferences {
+
+	private final HashMap<String,Object> mValues = new HashMap<String,Object>();
+
+	private synchronized Object get(String key, Object defValue) {
+		return mValues.containsKey(key) ? mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized Map<String,?> getAll() {
+		return new HashMap<String,Object>(mValues);
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		return (String)get(key, defValue);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		return (Set<String>)get(key, defValues);
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		return (Integer)get(key, defValue);
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		return (Long)get(key, defValue);
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		return (Float)get(key, defValue);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		return (Boolean)get(key, defValue);
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		return mValues.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new FakeEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+	}
+
+	private class FakeEditor implements Editor {
+		/* a null value means "remove" */
+		private HashMap<String,Object> mChanges = new HashMap<String,Object>();
+		private boolean mClear;
+
+		private Editor put(String key, Object value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putString(String key, String value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			return put(key, values == null ? null : new HashSet<String>(values));
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor remove(String key) {
+			return put(key, null);
+		}
+
+		@Override
+		public Editor clear() {
+			mClear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			synchronized (FakePrefs.this) {
+				if (mClear) {
+					mValues.clear();
+				}
+				for (Map.Entry<String,Object> e : mChanges.entrySet()) {
+					if (e.getValue() == null) {
+						mValues.remove(e.getKey());
+					} else {
+						mValues.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.ArrayList;
+
+import android.net.VpnService;
+import android.os.ParcelFileDescriptor;
+
+/*
+ * OpenVpnService with the UI and the tun device taken out: log lines and
+ * connection states are recorded, dialogs are answered by a Responder, and
+ * establish() hands back a dummy descriptor.  State bookkeeping still goes
+ * through the real OpenVpnService code.
+ */
+public class FakeService extends OpenVpnService {
+
+	public interface Responder {
+		/* called for any dialog that doesn't answer itself via earlyReturn() */
+		Object respond(UserDialog dialog);
+	}
+
+	private final Object mLock = new Object();
+	private ArrayList<String> mLog = new ArrayList<String>();
+	private ArrayList<Integer> mStates = new ArrayList<Integer>();
+	private ArrayList<UserDialog> mDialogs = new ArrayList<UserDialog>();
+	private boolean mDone;
+	private volatile Responder mResponder;
+	private volatile boolean mVerbose;
+
+	public void setResponder(Responder r) {
+		mResponder = r;
+	}
+
+	public void setVerbose(boolean verbose) {
+		mVerbose = verbose;
+	}
+
+	@Override
+	public void log(int level, String msg) {
+		if (mVerbose) {
+			System.out.println(msg);
+		}
+		synchronized (mLock) {
+			mLog.add(msg);
+		}
+	}
+
+	public boolean logContains(String prefix) {
+		synchronized (mLock) {
+			for (String s : mLog) {
+				if (s.startsWith(prefix)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public Object promptUser(UserDialog dialog) {
+		Object ret = dialog.earlyReturn();
+		if (ret != null) {
+			return ret;
+		}
+		synchronized (mLock) {
+			mDialogs.add(dialog);
+		}
+		Responder r = mResponder;
+		return r == null ? null : r.respond(dialog);
+	}
+
+	/* dialogs that were shown to the "user", i.e. not answered by earlyReturn() */
+	public ArrayList<UserDialog> getDialogs() {
+		synchronized (mLock) {
+			return new ArrayList<UserDialog>(mDialogs);
+		}
+	}
+
+	@Override
+	public void setConnectionState(int state) {
+		super.setConnectionState(state);
+		synchronized (mLock) {
+			mStates.add(state);
+			mLock.notifyAll();
+		}
+	}
+
+	public ArrayList<Integer> getStates() {
+		synchronized (mLock) {
+			return new ArrayList<Integer>(mStates);
+		}
+	}
+
+	/* returns false if the thread didn't enter the state (again) within timeoutMs */
+	public boolean waitForState(int state, int occurrence, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		synchronized (mLock) {
+			while (true) {
+				int seen = 0;
+				for (int s : mStates) {
+					if (s == state) {
+						seen++;
+					}
+				}
+				if (seen >= occurrence) {
+					return true;
+				}
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				mLock.wait(left);
+			}
+		}
+	}
+
+	public boolean waitForState(int state, long timeoutMs) throws InterruptedException {
+		return waitForState(state, 1, timeoutMs);
+	}
+
+	@Override
+	public boolean protect(int socket) {
+		return true;
+	}
+
+	@Override
+	public VpnService.Builder getVpnServiceBuilder() {
+		return new FakeBuilder();
+	}
+
+	private class FakeBuilder extends VpnService.Builder {
+		@Override
+		public ParcelFileDescriptor establish() {
+			return new ParcelFileDescriptor((ParcelFileDescriptor)null);
+		}
+	}
+
+	@Override
+	public void threadDone() {
+		super.threadDone();
+		synchronized (mLock) {
+			mDone = true;
+			mLock.notifyAll();
+		}
+	}
+
+	public boolean waitForThreadDone(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		synchronized (mLock) {
+			while (!mDone) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				mLock.wait(left);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infradead.libopenconnect.LibOpenConnect;
+
+/*
+ * In-process stand-in for LibOpenConnectSession, scripted by the test:
+ *
+ *  - setLatency(op, ms) makes a call take that long; cancel() cuts it short
+ *    with -EINTR, like the library's cmd_fd does
+ *  - failNext(op, ret) queues return values for a call; once the queue is
+ *    empty the call succeeds
+ *  - addAuthForm() queues forms that obtainCookie() passes to
+ *    onProcessAuthForm(), in order
+ *  - setPeerCertReason() makes every new "SSL connection" (obtainCookie and
+ *    makeCSTPConnection) ask onValidatePeerCert() first
+ *  - mainloop() blocks until pause() (returns 0) or cancel() (returns
+ *    -EINTR), delivers stats in between (a stats request made before the
+ *    pause or cancel is answered first, as the library's command pipe
+ *    does), and returns queued failNext() results right away to simulate
+ *    a dropped link
+ *
+ * Any call made after destroy() is counted so tests can check that nobody
+ * touched a dead session.
+ */
+public class FakeVPNSession implements VPNSession {
+
+	public static final int EPERM = 1;
+	public static final int EINTR = 4;
+	public static final int EIO = 5;
+	public static final int EPIPE = 32;
+
+	public static final int OP_PARSE_URL = 0;
+	public static final int OP_OBTAIN_COOKIE = 1;
+	public static final int OP_MAKE_CSTP = 2;
+	public static final int OP_SETUP_TUN_FD = 3;
+	public static final int OP_SETUP_DTLS = 4;
+	public static final int OP_MAINLOOP = 5;
+	private static final int NUM_OPS = 6;
+
+	private final Object mLock = new Object();
+	private boolean mPausePending;
+	private boolean mCancelPending;
+	private boolean mStatsPending;
+	private volatile boolean mDestroyed;
+	private volatile String mDTLSCipher;
+
+	private VPNSession.Callbacks mCallbacks;
+	private long mLatency[] = new long[NUM_OPS];
+	private ArrayList<LinkedList<Integer>> mResults = new ArrayList<LinkedList<Integer>>();
+	private AtomicInteger mCalls[] = new AtomicInteger[NUM_OPS];
+	private LinkedList<LibOpenConnect.AuthForm> mForms = new LinkedList<LibOpenConnect.AuthForm>();
+	private ArrayList<LibOpenConnect.AuthForm> mSubmitted = new ArrayList<LibOpenConnect.AuthForm>();
+	private String mCertReason;
+	private byte mCertDER[] = "fake server certificate".getBytes();
+	private LibOpenConnect.IPInfo mIPInfo;
+	private String mCookie;
+	private LibOpenConnect.VPNStats mStats = new LibOpenConnect.VPNStats();
+
+	private AtomicInteger mUseAfterDestroy = new AtomicInteger();
+	private AtomicInteger mPauseCount = new AtomicInteger();
+	private AtomicInteger mCancelCount = new AtomicInteger();
+	private AtomicInteger mStatsCount = new AtomicInteger();
+	private AtomicInteger mDTLSQueries = new AtomicInteger();
+
+	public FakeVPNSession() {
+		for (int i = 0; i < NUM_OPS; i++) {
+			mResults.add(new LinkedList<Integer>());
+			mCalls[i] = new AtomicInteger();
+		}
+		mIPInfo = new LibOpenConnect.IPInfo();
+		mIPInfo.addr = "192.0.2.10";
+		mIPInfo.netmask = "255.255.255.0";
+		mIPInfo.MTU = 1400;
+		mIPInfo.DNS.add("192.0.2.1");
+	}
+
+	/* hands this instance to OpenConnectManagementThread, whatever the user agent */
+	public VPNSession.Factory factory() {
+		return new VPNSession.Factory() {
+			@Override
+			public VPNSession create(String userAgent, VPNSession.Callbacks callbacks) {
+				synchronized (mLock) {
+					mCallbacks = callbacks;
+				}
+				return FakeVPNSession.this;
+			}
+		};
+	}
+
+	/* scripting */
+
+	public FakeVPNSession setLatency(int op, long ms) {
+		synchronized (mLock) {
+			mLatency[op] = ms;
+		}
+		return this;
+	}
+
+	public FakeVPNSession failNext(int op, int ret) {
+		synchronized (mLock) {
+			mResults.get(op).add(ret);
+		}
+		return this;
+	}
+
+	public FakeVPNSession addAuthForm(LibOpenConnect.AuthForm form) {
+		synchronized (mLock) {
+			mForms.add(form);
+		}
+		return this;
+	}
+
+	public FakeVPNSession setPeerCertReason(String reason) {
+		synchronized (mLock) {
+			mCertReason = reason;
+		}
+		return this;
+	}
+
+	public FakeVPNSession setIPInfo(LibOpenConnect.IPInfo ip) {
+		synchronized (mLock) {
+			mIPInfo = ip;
+		}
+		return this;
+	}
+
+	/* simulates the gateway dropping the tunnel: mainloop() returns ret now */
+	public void dropLink(int ret) {
+		synchronized (mLock) {
+			mResults.get(OP_MAINLOOP).add(ret);
+			mLock.notifyAll();
+		}
+	}
+
+	public static LibOpenConnect.AuthForm makeForm(String... optNames) {
+		LibOpenConnect.AuthForm form = new LibOpenConnect.AuthForm();
+		form.authID = "main";
+		form.action = "/auth";
+		form.method = "POST";
+		for (String name : optNames) {
+			LibOpenConnect.FormOpt opt = new LibOpenConnect.FormOpt();
+			opt.name = name;
+			opt.label = name + ":";
+			opt.type = name.equals("password") ? LibOpenConnect.OC_FORM_OPT_PASSWORD :
+				LibOpenConnect.OC_FORM_OPT_TEXT;
+			form.opts.add(opt);
+		}
+		return form;
+	}
+
+	/* inspection */
+
+	public int getDTLSQueries() {
+		return mDTLSQueries.get();
+	}
+
+	public int getCalls(int op) {
+		return mCalls[op].get();
+	}
+
+	/* returns false if op hadn't been called n times within timeoutMs */
+	public boolean waitForCalls(int op, int n, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		synchronized (mLock) {
+			while (mCalls[op].get() < n) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				mLock.wait(left);
+			}
+			return true;
+		}
+	}
+
+	public ArrayList<LibOpenConnect.AuthForm> getSubmittedForms() {
+		synchronized (mLock) {
+			return new ArrayList<LibOpenConnect.AuthForm>(mSubmitted);
+		}
+	}
+
+	public boolean isDestroyed() {
+		return mDestroyed;
+	}
+
+	public int getUseAfterDestroy() {
+		return mUseAfterDestroy.get();
+	}
+
+	public int getPauseCount() {
+		return mPauseCount.get();
+	}
+
+	public int getCancelCount() {
+		return mCancelCount.get();
+	}
+
+	public int getStatsCount() {
+		return mStatsCount.get();
+	}
+
+	/* plumbing */
+
+	private void check() {
+		if (mDestroyed) {
+			mUseAfterDestroy.incrementAndGet();
+		}
+	}
+
+	private VPNSession.Callbacks getCallbacks() {
+		synchronized (mLock) {
+			return mCallbacks;
+		}
+	}
+
+	/* counts the call, waits out its latency, and returns the scripted result (or -EINTR) */
+	private int begin(int op) {
+		check();
+		synchronized (mLock) {
+			mCalls[op].incrementAndGet();
+			mLock.notifyAll();
+			long deadline = System.currentTimeMillis() + mLatency[op];
+			while (!mCancelPending) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					break;
+				}
+				try {
+					mLock.wait(left);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			if (mCancelPending && op != OP_MAINLOOP) {
+				mCancelPending = false;
+				return -EINTR;
+			}
+			Integer ret = mResults.get(op).poll();
+			return ret == null ? 0 : ret;
+		}
+	}
+
+	/* each new SSL connection validates the server certificate */
+	private boolean validateCert() {
+		String reason;
+		synchronized (mLock) {
+			reason = mCertReason;
+		}
+		return reason == null || getCallbacks().onValidatePeerCert(reason) == 0;
+	}
+
+	/* configuration */
+
+	public int setProtocol(String protocol) { check(); return 0; }
+	public String getProtocol() { check(); return "anyconnect"; }
+	public void setCSDWrapper(String wrapper, String TMPDIR, String PATH) { check(); }
+	public void setCAFile(String caFile) { check(); }
+	public void setClientCert(String cert, String sslKey) { check(); }
+	public void setXMLPost(boolean isEnabled) { check(); }
+	public void setPFS(boolean isEnabled) { check(); }
+	public void setReportedOS(String os) { check(); }
+	public void setMobileInfo(String mobilePlatformVersion, String mobileDeviceType,
+			String mobileDeviceUniqueID) { check(); }
+	public void setDPD(int minSeconds) { check(); }
+	public int setTokenMode(int tokenMode, String tokenString) { check(); return 0; }
+	public void setLogLevel(int level) { check(); }
+
+	/* connection lifecycle */
+
+	public int parseURL(String url) {
+		return begin(OP_PARSE_URL);
+	}
+
+	public int obtainCookie() {
+		int ret = begin(OP_OBTAIN_COOKIE);
+		if (ret != 0) {
+			return ret;
+		}
+		if (!validateCert()) {
+			return -EPERM;
+		}
+
+		while (true) {
+			LibOpenConnect.AuthForm form;
+			synchronized (mLock) {
+				form = mForms.peek();
+			}
+			if (form == null) {
+				break;
+			}
+			int result = getCallbacks().onProcessAuthForm(form);
+			if (result == LibOpenConnect.OC_FORM_RESULT_NEWGROUP) {
+				continue;
+			} else if (result == LibOpenConnect.OC_FORM_RESULT_CANCELLED) {
+				return 1;
+			} else if (result != LibOpenConnect.OC_FORM_RESULT_OK) {
+				return -EPERM;
+			}
+			synchronized (mLock) {
+				mSubmitted.add(mForms.poll());
+			}
+		}
+		synchronized (mLock) {
+			mCookie = "webvpn=fake-" + mCalls[OP_OBTAIN_COOKIE].get();
+		}
+		return 0;
+	}
+
+	public void setCookie(String cookie) {
+		check();
+		synchronized (mLock) {
+			mCookie = cookie;
+		}
+	}
+
+	public String getCookie() {
+		check();
+		synchronized (mLock) {
+			return mCookie;
+		}
+	}
+
+	public void clearCookie() {
+		setCookie(null);
+	}
+
+	public void resetSSL() { check(); }
+
+	public int makeCSTPConnection() {
+		int ret = begin(OP_MAKE_CSTP);
+		if (ret != 0) {
+			return ret;
+		}
+		return validateCert() ? 0 : -EPERM;
+	}
+
+	public int setupTunFD(int tunFD) {
+		return begin(OP_SETUP_TUN_FD);
+	}
+
+	public int setupDTLS(int attemptPeriod) {
+		int ret = begin(OP_SETUP_DTLS);
+		mDTLSCipher = ret == 0 ? "(DTLS0.9)-(RSA)-(AES-128-CBC)-(SHA1)" : null;
+		getCallbacks().onProgress(LibOpenConnect.PRG_INFO, ret == 0 ?
+				"Established DTLS connection (using GnuTLS). Ciphersuite (DTLS0.9)-(RSA)-(AES-128-CBC)-(SHA1)." :
+				"DTLS handshake failed: Error in the push function.");
+		return ret;
+	}
+
+	/* returns 0 after pause(), -EINTR after cancel(), or whatever dropLink() queued */
+	public int mainloop(int reconnectTimeout, int reconnectInterval) {
+		int ret = begin(OP_MAINLOOP);
+		if (ret != 0) {
+			return ret;
+		}
+		while (true) {
+			boolean sendStats;
+			synchronized (mLock) {
+				while (!mPausePending && !mCancelPending && !mStatsPending &&
+						mResults.get(OP_MAINLOOP).isEmpty()) {
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						return -EINTR;
+					}
+				}
+				sendStats = mStatsPending;
+				if (!sendStats) {
+					if (mCancelPending) {
+						mCancelPending = false;
+						return -EINTR;
+					}
+					if (!mResults.get(OP_MAINLOOP).isEmpty()) {
+						// a dropped link takes DTLS with it
+						mDTLSCipher = null;
+						return mResults.get(OP_MAINLOOP).poll();
+					}
+					if (mPausePending) {
+						mPausePending = false;
+						return 0;
+					}
+				}
+				mStatsPending = false;
+				mStats.rxBytes += 1500;
+				mStats.txBytes += 100;
+				mStats.rxPkts++;
+				mStats.txPkts++;
+			}
+			VPNSession.Callbacks cb = getCallbacks();
+			if (sendStats && cb != null) {
+				LibOpenConnect.VPNStats stats = new LibOpenConnect.VPNStats();
+				stats.rxBytes = mStats.rxBytes;
+				stats.txBytes = mStats.txBytes;
+				stats.rxPkts = mStats.rxPkts;
+				stats.txPkts = mStats.txPkts;
+				cb.onStatsUpdate(stats);
+			}
+		}
+	}
+
+	public void destroy() {
+		check();
+		mDestroyed = true;
+	}
+
+	/* control, safe to call from other threads */
+
+	public void pause() {
+		check();
+		mPauseCount.incrementAndGet();
+		synchronized (mLock) {
+			mPausePending = true;
+			mLock.notifyAll();
+		}
+	}
+
+	public void cancel() {
+		check();
+		mCancelCount.incrementAndGet();
+		synchronized (mLock) {
+			mCancelPending = true;
+			mLock.notifyAll();
+		}
+	}
+
+	public void requestStats() {
+		check();
+		mStatsCount.incrementAndGet();
+		synchronized (mLock) {
+			mStatsPending = true;
+			mLock.notifyAll();
+		}
+	}
+
+	/* connection info */
+
+	public String getHostname() { check(); return "vpn.example.com"; }
+
+	public byte[] getPeerCertDER() {
+		check();
+		return mCertDER;
+	}
+
+	public LibOpenConnect.IPInfo getIPInfo() {
+		check();
+		synchronized (mLock) {
+			return mIPInfo;
+		}
+	}
+
+	public int getIdleTimeout() { check(); return 0; }
+	public String getDTLSCipher() { check(); mDTLSQueries.incrementAndGet(); return mDTLSCipher; }
+}
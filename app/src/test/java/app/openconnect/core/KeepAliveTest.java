@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Runs DNSProbe, TunnelHealth and KeepAlive.probe() against a DNS stand-in
+ * on a loopback UDP socket.  KeepAlive's alarm, HandlerThread and wakelock
+ * are Android-only, so the tests drive the probe round the wakelock is held
+ * for directly; its duration and the bytes it allocates are printed per
+ * probe, and only held to loose bounds, since they depend on the host.
+ */
+public class KeepAliveTest {
+
+	private static final int ROUNDS = 200;
+	private static final int WARMUP = 20;
+
+	/*
+	 * A quiet round must not build log lines or write prefs; what's left is
+	 * NIO bookkeeping (the selected-key iterator and the like).
+	 */
+	private static final long MAX_BYTES_PER_PROBE = 512;
+
+	private static final int MODE_REPLY = 0;
+	private static final int MODE_DROP = 1;
+	private static final int MODE_BAD_ID = 2;
+	private static final int MODE_BAD_THEN_GOOD = 3;
+	private static final int MODE_LATE = 4;
+
+	private static final int LATE_MS = 300;
+
+	/* answers each query according to mMode; the answer section is left empty */
+	private static class DNSServer extends Thread {
+		private final DatagramSocket mSocket;
+		private volatile int mMode = MODE_REPLY;
+		private volatile int mQueries;
+
+		DNSServer() throws SocketException {
+			super("DNSServer");
+			mSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return mSocket.getLocalPort();
+		}
+
+		void close() {
+			mSocket.close();
+		}
+
+		private void send(byte buf[], int len, DatagramPacket from, boolean badID) throws IOException {
+			byte reply[] = Arrays.copyOf(buf, len);
+			reply[2] |= (byte)0x80;		// QR: response
+			if (badID) {
+				reply[1] ^= 0x55;
+			}
+			mSocket.send(new DatagramPacket(reply, len, from.getSocketAddress()));
+		}
+
+		@Override
+		public void run() {
+			byte buf[] = new byte[512];
+			try {
+				while (true) {
+					DatagramPacket p = new DatagramPacket(buf, buf.length);
+					mSocket.receive(p);
+					mQueries++;
+
+					switch (mMode) {
+					case MODE_REPLY:
+						send(buf, p.getLength(), p, false);
+						break;
+					case MODE_BAD_ID:
+						send(buf, p.getLength(), p, true);
+						break;
+					case MODE_BAD_THEN_GOOD:
+						send(buf, p.getLength(), p, true);
+						send(buf, p.getLength(), p, false);
+						break;
+					case MODE_LATE:
+						Thread.sleep(LATE_MS);
+						send(buf, p.getLength(), p, false);
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// socket closed
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private FakeContext mContext;
+	private DNSServer mServer;
+	private DNSProbe mProbe;
+	private TunnelHealth mHealth;
+
+	@Before
+	public void setUp() throws IOException {
+		mContext = new FakeContext();
+		mServer = new DNSServer();
+		mServer.start();
+
+		mProbe = new DNSProbe("127.0.0.1", mServer.getPort(), "www.example.com");
+		ArrayList<HealthProbe> probes = new ArrayList<HealthProbe>();
+		probes.add(mProbe);
+		mHealth = new TunnelHealth(probes);
+	}
+
+	@After
+	public void tearDown() {
+		mHealth.close();
+		mServer.close();
+		mContext.cleanup();
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (mx instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	@Test
+	public void keepAliveRoundCost() {
+		KeepAliveTuner tuner = new KeepAliveTuner(mContext, 600);
+		tuner.setNetwork("wifi-test");
+		KeepAlive ka = new KeepAlive(mHealth, tuner);
+
+		int interval = tuner.nextInterval();
+		for (int i = 0; i < WARMUP; i++) {
+			interval = ka.probe();
+		}
+
+		LatencyHistogram held = new LatencyHistogram();
+		long worstUs = 0;
+		long bytes = allocatedBytes();
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			interval = ka.probe();
+			long us = (System.nanoTime() - start) / 1000;
+			held.add(us / 1000);
+			worstUs = Math.max(worstUs, us);
+		}
+		long perProbe = bytes < 0 ? -1 : (allocatedBytes() - bytes) / ROUNDS;
+
+		System.out.println("KeepAlive: wakelock held per probe (ms) " + held.summarize() +
+				", worst " + worstUs + "us; allocated " + perProbe + " bytes/probe");
+
+		// every probe was answered, so the tuner must have found the cap
+		assertEquals(ROUNDS + WARMUP, mServer.mQueries);
+		assertTrue(tuner.isConverged());
+		assertTrue(interval + "s", interval >= 600 - 600 / 8);
+		assertEquals(0, mHealth.getBest().getLossPercent());
+		assertTrue(mHealth.getScore() > 0);
+
+		if (perProbe >= 0) {
+			assertTrue(perProbe + " bytes/probe", perProbe <= MAX_BYTES_PER_PROBE);
+		}
+
+		// a loopback reply must never hold the CPU anywhere near the probe timeout
+		assertTrue("worst probe took " + worstUs + "us", worstUs < 1000 * 1000);
+	}
+
+	@Test
+	public void droppedQueryTimesOut() {
+		mServer.mMode = MODE_DROP;
+
+		long start = System.nanoTime();
+		assertFalse(mHealth.probeAll(200));
+		long ms = (System.nanoTime() - start) / 1000000L;
+
+		assertTrue("returned after " + ms + "ms", ms >= 200 && ms < 1000);
+		assertEquals(100, mHealth.getBest().getLossPercent());
+		assertEquals(0, mHealth.getScore());
+	}
+
+	@Test
+	public void wrongIDIsNotAReply() {
+		mServer.mMode = MODE_BAD_ID;
+
+		// a bad ID only buys the right one a short grace period, not the full timeout
+		long start = System.nanoTime();
+		assertFalse(mHealth.probeAll(5000));
+		long ms = (System.nanoTime() - start) / 1000000L;
+		assertTrue("returned after " + ms + "ms", ms < 1000);
+
+		mServer.mMode = MODE_BAD_THEN_GOOD;
+		assertTrue(mHealth.probeAll(5000));
+	}
+
+	@Test
+	public void lateReplyDoesNotCountForTheNextProbe() throws InterruptedException {
+		mServer.mMode = MODE_LATE;
+		assertFalse(mHealth.probeAll(100));
+
+		// the answer to the timed-out query arrives while nothing is waiting for it
+		Thread.sleep(LATE_MS * 2);
+		mServer.mMode = MODE_DROP;
+		assertFalse(mHealth.probeAll(100));
+
+		mServer.mMode = MODE_REPLY;
+		assertTrue(mHealth.probeAll(1000));
+		assertEquals(66, mHealth.getBest().getLossPercent());
+	}
+
+	@Test
+	public void probeFailureLowersInterval() {
+		KeepAliveTuner tuner = new KeepAliveTuner(mContext, 600);
+		tuner.setNetwork("wifi-test");
+		KeepAlive ka = new KeepAlive(mHealth, tuner);
+
+		int first = tuner.nextInterval();
+		assertTrue(ka.probe() > first);
+
+		// KeepAlive waits PROBE_TIMEOUT_MS for silence; a bad reply gives up sooner
+		mServer.mMode = MODE_BAD_ID;
+		int before = tuner.nextInterval();
+		int after = ka.probe();
+		assertTrue(after + " < " + before, after < before);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeepAliveTunerTest {
+
+	private static final int MAX = 600;
+
+	private FakeContext mContext;
+	private KeepAliveTuner mTuner;
+
+	@Before
+	public void setUp() {
+		mContext = new FakeContext();
+		mTuner = new KeepAliveTuner(mContext, MAX);
+		mTuner.setNetwork("wifi-test");
+	}
+
+	@After
+	public void tearDown() {
+		mContext.cleanup();
+	}
+
+	/* runs one keepalive; the network drops anything idle for longer than limit seconds */
+	private int step(int limit) {
+		int interval = mTuner.nextInterval();
+		mTuner.onResult(interval <= limit);
+		return interval;
+	}
+
+	private void converge(int limit) {
+		for (int i = 0; i < 50 && !mTuner.isConverged(); i++) {
+			step(limit);
+		}
+		assertTrue(mTuner.toString(), mTuner.isConverged());
+	}
+
+	@Test
+	public void convergesBelowLimit() {
+		converge(200);
+		int interval = mTuner.nextInterval();
+		assertTrue(interval + "s", interval <= 200 && interval >= 200 - 200 / 8 - 15);
+	}
+
+	@Test
+	public void oneLostProbeDoesNotLowerTheBracket() {
+		assertEquals(315, mTuner.nextInterval());
+		mTuner.onResult(true);
+
+		// 458s is lost once, then goes through on the retry
+		assertEquals(458, mTuner.nextInterval());
+		mTuner.onResult(false);
+		assertEquals(315, mTuner.nextInterval());
+		mTuner.onResult(true);
+		assertEquals(458, mTuner.nextInterval());
+		mTuner.onResult(true);
+		assertEquals(529, mTuner.nextInterval());
+	}
+
+	@Test
+	public void repeatedFailureLowersTheBracket() {
+		assertEquals(315, mTuner.nextInterval());
+		mTuner.onResult(true);
+
+		for (int i = 0; i < 2; i++) {
+			assertEquals(458, mTuner.nextInterval());
+			mTuner.onResult(false);
+			assertEquals(315, mTuner.nextInterval());
+			mTuner.onResult(true);
+		}
+		assertEquals(386, mTuner.nextInterval());
+	}
+
+	@Test
+	public void loIsOnlyHalvedAfterRepeatedFailures() {
+		converge(200);
+		int lo = mTuner.nextInterval();
+		mTuner.onResult(false);
+		assertEquals(lo, mTuner.nextInterval());
+		mTuner.onResult(true);
+		assertEquals(lo, mTuner.nextInterval());
+
+		mTuner.onResult(false);
+		assertEquals(lo, mTuner.nextInterval());
+		mTuner.onResult(false);
+		assertEquals(lo / 2, mTuner.nextInterval());
+	}
+
+	@Test
+	public void reprobesUpwardAfterSuccesses() {
+		converge(200);
+		int lo = mTuner.nextInterval();
+		mTuner.onResult(true);
+
+		// the network now tolerates 400s
+		int highest = lo;
+		for (int i = 0; i < 400; i++) {
+			highest = Math.max(highest, step(400));
+		}
+		assertTrue(highest + "s", highest > 300);
+		converge(400);
+		assertTrue(mTuner.nextInterval() > 300);
+	}
+
+	@Test
+	public void stableNetworkRarelyFails() {
+		converge(200);
+
+		int failures = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (step(200) > 200) {
+				failures++;
+			}
+		}
+		// each re-probe above a stable limit costs one lost keepalive, at most once per REPROBE_AFTER
+		assertTrue(failures + " failures", failures > 0 && failures <= 1000 / 32);
+		assertFalse(mTuner.nextInterval() > 200);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import app.openconnect.core.VPNLog.LogArrayAdapter;
+
+/*
+ * Appends a few entries per frame, the way LogQueue delivers them, while the
+ * list either follows the tail or sits scrolled up, the latter also with
+ * the ring already full so that every append evicts.  After every
+ * notification the "list" re-binds its visible rows, which is what
+ * ListView's layout pass costs us.  The old behaviour (notify whenever the
+ * count changed) is emulated by notifying after every batch.  Timings are
+ * printed rather than asserted, since they depend on the host.
+ */
+public class LogAdapterBenchmark {
+
+	private static final int FRAMES = 2000;
+	private static final int PER_FRAME = 5;
+	private static final int ROWS = 20;
+
+	private static class Result {
+		int notifications;
+		int rowsBound;
+		long us;
+	}
+
+	private static final int MODE_OLD = 0;
+	private static final int MODE_TAIL = 1;
+	private static final int MODE_SCROLLED_UP = 2;
+	private static final int MODE_FULL_SCROLLED_UP = 3;
+
+	/* full ring for MODE_FULL_SCROLLED_UP, and where that list sits */
+	private static final int FULL_CAPACITY = 2000;
+	private static final int FULL_TOP = 1000;
+
+	private static Result run(int mode) {
+		boolean full = mode == MODE_FULL_SCROLLED_UP;
+		boolean scrolledUp = mode == MODE_SCROLLED_UP || full;
+		VPNLog log = new VPNLog(full ? FULL_CAPACITY : FRAMES * PER_FRAME * 2);
+		LogArrayAdapter adapter = log.getArrayAdapter(null);
+		ArrayList<VPNLogItem> batch = new ArrayList<VPNLogItem>();
+		for (int i = 0; i < (full ? FULL_CAPACITY : 1000); i++) {
+			batch.add(new VPNLogItem(VPNLog.LEVEL_INFO, "prefill " + i));
+		}
+		log.addAll(batch);
+
+		Result r = new Result();
+		int seen = adapter.getNotifyCount();
+		int top = full ? FULL_TOP : mode == MODE_SCROLLED_UP ? 100 : Math.max(adapter.getCount() - ROWS, 0);
+		adapter.setVisibleRange(top, ROWS);
+		long topId = adapter.getItemId(top);
+
+		long start = System.nanoTime();
+		for (int frame = 0; frame < FRAMES; frame++) {
+			batch.clear();
+			for (int i = 0; i < PER_FRAME; i++) {
+				batch.add(new VPNLogItem(VPNLog.LEVEL_INFO, "STAT: frame " + frame + " entry " + i));
+			}
+			log.addAll(batch);
+			if (mode == MODE_OLD) {
+				adapter.notifyDataSetChanged();
+			}
+
+			// a notification means a layout pass over the visible rows
+			if (adapter.getNotifyCount() != seen) {
+				seen = adapter.getNotifyCount();
+				r.notifications++;
+				if (!scrolledUp) {
+					top = Math.max(adapter.getCount() - ROWS, 0);
+				}
+				topId = adapter.getItemId(top);
+				for (int i = top; i < top + ROWS && i < adapter.getCount(); i++) {
+					adapter.getView(i, null, null);
+					r.rowsBound++;
+				}
+				adapter.setVisibleRange(top, ROWS);
+			} else {
+				// held back: the rows on screen must still show the same entries
+				assertEquals(topId, adapter.getItemId(top));
+			}
+		}
+
+		// scrolled-up list: the user finally scrolls to the end
+		if (scrolledUp) {
+			adapter.setVisibleRange(adapter.getCount() - ROWS, ROWS);
+			if (adapter.getNotifyCount() != seen) {
+				r.notifications++;
+			}
+		}
+		r.us = (System.nanoTime() - start) / 1000;
+
+		assertEquals(log.size(), adapter.getCount());
+		return r;
+	}
+
+	private static String describe(String name, Result r) {
+		return name + " " + r.notifications + " notifications, " + r.rowsBound + " rows bound, " + r.us + "us";
+	}
+
+	@Test
+	public void scrollAndAppend() {
+		for (int i = 0; i < 3; i++) {
+			run(MODE_OLD);
+			run(MODE_TAIL);
+			run(MODE_SCROLLED_UP);
+			run(MODE_FULL_SCROLLED_UP);
+		}
+		Result old = run(MODE_OLD);
+		Result tail = run(MODE_TAIL);
+		Result up = run(MODE_SCROLLED_UP);
+		Result fullUp = run(MODE_FULL_SCROLLED_UP);
+
+		System.out.println("LogAdapterBenchmark: " + FRAMES + " frames of " + PER_FRAME + " entries; " +
+				describe("notify-on-count", old) + "; " + describe("following tail", tail) + "; " +
+				describe("scrolled up", up) + "; " + describe("scrolled up, ring full", fullUp));
+
+		assertEquals(FRAMES, old.notifications);
+		assertEquals(FRAMES, tail.notifications);
+		assertTrue(up.notifications <= 1);
+
+		// only when the evictions reach the rows on screen
+		assertTrue(fullUp.notifications <= FRAMES * PER_FRAME / FULL_TOP + 1);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+public class LogFilterTest {
+
+	private static VPNLogItem item(int level, String msg) {
+		return new VPNLogItem(level, msg);
+	}
+
+	@Test
+	public void classifiesByPrefix() {
+		assertEquals(LogFilter.TAG_AUTH, LogFilter.classify("AUTH: submitting form"));
+		assertEquals(LogFilter.TAG_ROUTE, LogFilter.classify("ROUTE: 10.0.0.0/8"));
+		assertEquals(LogFilter.TAG_DNS, LogFilter.classify("DNS: 10.1.1.1"));
+		assertEquals(LogFilter.TAG_STAT, LogFilter.classify("STAT: rx 10"));
+		assertEquals(LogFilter.TAG_NONE, LogFilter.classify("auth: lower case is not a tag"));
+		assertEquals(LogFilter.TAG_NONE, LogFilter.classify(""));
+
+		// the library prefix is a flag on the item, not a classify() result
+		assertEquals(LogFilter.TAG_NONE, LogFilter.classify("LIB: Connected"));
+		assertEquals(LogFilter.TAG_LIB, item(VPNLog.LEVEL_INFO, "LIB: Connected").getTag());
+		assertEquals("LIB: Connected", item(VPNLog.LEVEL_INFO, "LIB: Connected").getMessage());
+	}
+
+	@Test
+	public void emptyFilterMatchesEverything() {
+		LogFilter f = new LogFilter(-1, -1, "", false);
+		assertTrue(f.isEmpty());
+		assertFalse(f.hasText());
+		assertTrue(f.matches(item(VPNLog.LEVEL_TRACE, "anything")));
+		assertTrue(new LogFilter(-1, -1, null, true).isEmpty());
+	}
+
+	@Test
+	public void levelAndTag() {
+		LogFilter f = new LogFilter(VPNLog.LEVEL_ERR, LogFilter.TAG_AUTH, null, false);
+		assertFalse(f.isEmpty());
+		assertFalse(f.hasText());
+		assertTrue(f.matches(item(VPNLog.LEVEL_ERR, "AUTH: bad password")));
+		assertFalse(f.matches(item(VPNLog.LEVEL_INFO, "AUTH: bad password")));
+		assertFalse(f.matches(item(VPNLog.LEVEL_ERR, "ROUTE: bad route")));
+
+		f = new LogFilter(-1, LogFilter.TAG_LIB, null, false);
+		assertTrue(f.matches(item(VPNLog.LEVEL_DEBUG, "LIB: SSL negotiation")));
+		assertFalse(f.matches(item(VPNLog.LEVEL_DEBUG, "SSL negotiation")));
+	}
+
+	@Test
+	public void substringIsCaseInsensitive() {
+		LogFilter f = new LogFilter(-1, -1, "dtls", false);
+		assertTrue(f.hasText());
+		assertTrue(f.matches(item(VPNLog.LEVEL_INFO, "Established DTLS connection")));
+		assertTrue(f.matches(item(VPNLog.LEVEL_INFO, "dtls")));
+		assertFalse(f.matches(item(VPNLog.LEVEL_INFO, "DTL")));
+
+		// regex metacharacters are literal in substring mode
+		f = new LogFilter(-1, -1, "10.0.0.1", false);
+		assertTrue(f.matches(item(VPNLog.LEVEL_INFO, "ROUTE: 10.0.0.1/32")));
+		assertFalse(f.matches(item(VPNLog.LEVEL_INFO, "ROUTE: 10x0x0x1/32")));
+	}
+
+	@Test
+	public void regex() {
+		LogFilter f = new LogFilter(-1, -1, "^route: 10\\.", true);
+		assertTrue(f.hasText());
+		assertTrue(f.matches(item(VPNLog.LEVEL_INFO, "ROUTE: 10.0.0.0/8")));
+		assertFalse(f.matches(item(VPNLog.LEVEL_INFO, "ROUTE: 172.16.0.0/12")));
+		assertFalse(f.matches(item(VPNLog.LEVEL_INFO, "X ROUTE: 10.0.0.0/8")));
+
+		// LIB: entries are matched against the full message, prefix included
+		f = new LogFilter(-1, -1, "^LIB: ", true);
+		assertTrue(f.matches(item(VPNLog.LEVEL_INFO, "LIB: Connected")));
+
+		// level still applies on top of the text
+		f = new LogFilter(VPNLog.LEVEL_ERR, -1, "fail", true);
+		assertFalse(f.matches(item(VPNLog.LEVEL_INFO, "handshake failed")));
+		assertTrue(f.matches(item(VPNLog.LEVEL_ERR, "handshake failed")));
+	}
+
+	@Test(expected = PatternSyntaxException.class)
+	public void badRegexThrows() {
+		new LogFilter(-1, -1, "([", true);
+	}
+
+	@Test
+	public void badRegexIsFineAsSubstring() {
+		assertTrue(new LogFilter(-1, -1, "([", false).matches(item(VPNLog.LEVEL_INFO, "a ([ b")));
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Handler;
+
+/*
+ * Compares service-start log restore: the old logdata.ser (one serialized
+ * object per ring entry, read back with ObjectInputStream) against
+ * LogJournal.readTail() on a full journal, and against decoding every
+ * segment the way replay() used to, for each ring size in CAPACITIES.
+ * Timings are printed rather than asserted, since they depend on the host.
+ */
+public class LogJournalBenchmark {
+
+	/* the default ring, and the largest log_capacity the settings offer */
+	private static final int CAPACITIES[] = { VPNLog.DEFAULT_CAPACITY, 50000 };
+	private static final int ITERATIONS = 20;
+	private static final int WARMUP = 5;
+
+	/* the fields VPNLogItem had when it was Serializable */
+	private static class OldLogItem implements Serializable {
+		private static final long serialVersionUID = 7341923752956090365L;
+		private long mLogtime = System.currentTimeMillis();
+		private byte mData[];
+
+		OldLogItem(byte data[]) {
+			mData = data;
+		}
+	}
+
+	private FakeContext mContext;
+	private File mDir;
+	private File mSer;
+
+	@Before
+	public void setUp() throws IOException {
+		mContext = new FakeContext();
+		mDir = new File(mContext.getCacheDir(), "logjournal");
+		mSer = new File(mContext.getCacheDir(), "logdata.ser");
+
+		// fill every segment, i.e. the worst case for a forward replay
+		int n = 0;
+		while (new File(mDir, "seg-" + (LogJournal.MAX_SEGMENTS - 1) + ".bin").length() == 0) {
+			LogJournalTest.writeEntries(mDir, n, 20000);
+			n += 20000;
+		}
+
+	}
+
+	private void writeSer(int capacity) throws IOException {
+		ObjectOutputStream s = new ObjectOutputStream(new FileOutputStream(mSer));
+		s.writeObject((Integer)capacity);
+		for (int i = 0; i < capacity; i++) {
+			s.writeObject(new OldLogItem(new VPNLogItem(VPNLog.LEVEL_INFO,
+					"entry " + i + " of a reasonably long journal line").getData()));
+		}
+		s.close();
+	}
+
+	@After
+	public void tearDown() {
+		mContext.cleanup();
+	}
+
+	/* what VPNLog.restoreFromFile() did */
+	private int oldRestore(int capacity) throws Exception {
+		VPNLog log = new VPNLog(capacity);
+		ArrayList<VPNLogItem> batch = new ArrayList<VPNLogItem>();
+		ObjectInputStream s = new ObjectInputStream(new FileInputStream(mSer));
+		for (int records = (Integer)s.readObject(); records > 0; records--) {
+			OldLogItem li = (OldLogItem)s.readObject();
+			batch.add(new VPNLogItem(li.mLogtime, li.mData));
+		}
+		s.close();
+		log.restore(batch);
+		return log.size();
+	}
+
+	private int journalRestore(int capacity, int max) {
+		VPNLog log = new VPNLog(capacity);
+		log.restore(new LogJournal(mDir, new Handler()).readTail(max));
+		return log.size();
+	}
+
+	@Test
+	public void compareWithObjectInputStream() throws Exception {
+		for (int capacity : CAPACITIES) {
+			compare(capacity);
+		}
+	}
+
+	private void compare(int capacity) throws Exception {
+		writeSer(capacity);
+
+		int sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += oldRestore(capacity) + journalRestore(capacity, capacity) +
+					journalRestore(capacity, Integer.MAX_VALUE);
+		}
+
+		long start = System.nanoTime();
+		int oldCount = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			oldCount = oldRestore(capacity);
+		}
+		long oldUs = (System.nanoTime() - start) / ITERATIONS / 1000;
+
+		start = System.nanoTime();
+		int fullCount = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			fullCount = journalRestore(capacity, Integer.MAX_VALUE);
+		}
+		long fullUs = (System.nanoTime() - start) / ITERATIONS / 1000;
+
+		start = System.nanoTime();
+		int tailCount = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			tailCount = journalRestore(capacity, capacity);
+		}
+		long tailUs = (System.nanoTime() - start) / ITERATIONS / 1000;
+
+		long journalBytes = 0;
+		for (File f : mDir.listFiles()) {
+			journalBytes += f.length();
+		}
+		System.out.println("LogJournalBenchmark: " + capacity + " entries; ObjectInputStream " +
+				oldUs + "us (" + mSer.length() / 1024 + "KB), full replay " + fullUs + "us, " +
+				"newest-first " + tailUs + "us (journal " + journalBytes / 1024 + "KB) (" + sink + ")");
+
+		assertEquals(capacity, oldCount);
+		assertEquals(capacity, fullCount);
+		assertEquals(capacity, tailCount);
+	}
+}
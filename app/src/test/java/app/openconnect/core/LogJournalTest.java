@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Handler;
+
+public class LogJournalTest {
+
+	private FakeContext mContext;
+	private File mDir;
+
+	@Before
+	public void setUp() {
+		mContext = new FakeContext();
+		mDir = new File(mContext.getCacheDir(), "logjournal");
+	}
+
+	@After
+	public void tearDown() {
+		mContext.cleanup();
+	}
+
+	/* writes "count" entries numbered from "first" and waits for them to hit the disk */
+	static void writeEntries(File dir, int first, int count) {
+		LogJournal j = new LogJournal(dir, new Handler());
+		j.readTail(0);
+		for (int i = first; i < first + count; i++) {
+			j.append(new VPNLogItem(VPNLog.LEVEL_INFO, "entry " + i + " of a reasonably long journal line"));
+			if (i % 1000 == 999) {
+				j.flush();
+			}
+		}
+		j.close();
+	}
+
+	private int segmentCount() {
+		int n = 0;
+		for (String name : mDir.list()) {
+			if (name.startsWith("seg-")) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static int entryNumber(VPNLogItem li) {
+		String msg = li.getMessage();
+		return Integer.parseInt(msg.substring(6, msg.indexOf(' ', 6)));
+	}
+
+	@Test
+	public void tailIsNewestEntriesOldestFirst() {
+		writeEntries(mDir, 0, 40000);
+		assertTrue(segmentCount() > 1);
+
+		ArrayList<VPNLogItem> items = new LogJournal(mDir, new Handler()).readTail(5000);
+		assertEquals(5000, items.size());
+		for (int i = 0; i < items.size(); i++) {
+			assertEquals(35000 + i, entryNumber(items.get(i)));
+		}
+	}
+
+	@Test
+	public void tailSmallerThanJournal() {
+		writeEntries(mDir, 0, 100);
+		ArrayList<VPNLogItem> items = new LogJournal(mDir, new Handler()).readTail(5000);
+		assertEquals(100, items.size());
+		assertEquals(0, entryNumber(items.get(0)));
+		assertEquals(99, entryNumber(items.get(99)));
+	}
+
+	@Test
+	public void emptyJournal() {
+		assertEquals(0, new LogJournal(mDir, new Handler()).readTail(5000).size());
+	}
+
+	@Test
+	public void tornRecordIsDroppedAndAppendingMovesOn() throws IOException {
+		writeEntries(mDir, 0, 10);
+		assertEquals(1, segmentCount());
+
+		// length 0x40, timestamp, then only part of the record
+		FileOutputStream out = new FileOutputStream(new File(mDir, "seg-0.bin"), true);
+		out.write(new byte[] { 0x40, 0x01, 0x00, 'x' });
+		out.close();
+
+		writeEntries(mDir, 10, 5);
+		assertEquals(2, segmentCount());
+
+		ArrayList<VPNLogItem> items = new LogJournal(mDir, new Handler()).readTail(5000);
+		assertEquals(15, items.size());
+		for (int i = 0; i < items.size(); i++) {
+			assertEquals(i, entryNumber(items.get(i)));
+		}
+	}
+
+	@Test
+	public void restoredEntriesGoInFrontOfLiveOnes() {
+		VPNLog log = new VPNLog(10);
+		log.add(VPNLog.LEVEL_INFO, "entry 100 live");
+		log.add(VPNLog.LEVEL_ERR, "entry 101 live");
+		long lastSeq = log.getSeq(1);
+
+		ArrayList<VPNLogItem> restored = new ArrayList<VPNLogItem>();
+		for (int i = 0; i < 20; i++) {
+			restored.add(new VPNLogItem(VPNLog.LEVEL_INFO, "entry " + i + " restored"));
+		}
+		log.restore(restored);
+
+		// the ring keeps the newest: 8 restored entries, then the live ones
+		assertEquals(10, log.size());
+		for (int i = 0; i < 8; i++) {
+			assertEquals(12 + i, entryNumber(log.get(i)));
+		}
+		assertEquals(100, entryNumber(log.get(8)));
+		assertEquals(101, entryNumber(log.get(9)));
+
+		// ids are never reused, and the indexes were rebuilt
+		assertTrue(log.getSeq(0) > lastSeq);
+		assertEquals(1, log.levelCount(VPNLog.LEVEL_ERR));
+		assertEquals(101, entryNumber(log.getAtLevel(VPNLog.LEVEL_ERR, 0)));
+	}
+}
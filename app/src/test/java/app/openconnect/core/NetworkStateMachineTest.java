@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.net.ConnectivityManager;
+
+/*
+ * Drives NetworkStateMachine and DeviceStateReceiver from a virtual clock,
+ * so the debounce windows can be checked to the millisecond without sleeping.
+ */
+public class NetworkStateMachineTest {
+
+	private static final int WIFI = ConnectivityManager.TYPE_WIFI;
+	private static final int MOBILE = ConnectivityManager.TYPE_MOBILE;
+
+	static class FakeClock implements NetworkStateMachine.Clock {
+		final FakeHandler mHandler = new FakeHandler();
+
+		@Override
+		public long now() {
+			return mHandler.now();
+		}
+
+		@Override
+		public void postDelayed(Runnable r, long delayMs) {
+			mHandler.postDelayed(r, delayMs);
+		}
+
+		@Override
+		public void cancel(Runnable r) {
+			mHandler.removeCallbacks(r);
+		}
+
+		void advance(long ms) {
+			mHandler.advance(ms);
+		}
+	}
+
+	/* "up", "down" or "handover", each with the virtual time it settled at */
+	private static class Recorder implements NetworkStateMachine.Listener {
+		final ArrayList<String> mEvents = new ArrayList<String>();
+		private final FakeClock mClock;
+
+		Recorder(FakeClock clock) {
+			mClock = clock;
+		}
+
+		@Override
+		public void onNetworkSettled(boolean connected, boolean typeChanged) {
+			mEvents.add((!connected ? "down" : typeChanged ? "handover" : "up") + "@" + mClock.now());
+		}
+	}
+
+	private static class Management implements OpenVPNManagement {
+		final ArrayList<String> mCalls = new ArrayList<String>();
+
+		@Override
+		public void reconnect() {
+			mCalls.add("reconnect");
+		}
+
+		@Override
+		public void pause() {
+			mCalls.add("pause");
+		}
+
+		@Override
+		public void resume() {
+			mCalls.add("resume");
+		}
+
+		@Override
+		public boolean stopVPN() {
+			return true;
+		}
+
+		@Override
+		public void prefChanged() {
+		}
+	}
+
+	private FakeClock mClock;
+	private Recorder mRecorder;
+	private NetworkStateMachine mMachine;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock();
+		mRecorder = new Recorder(mClock);
+		mMachine = new NetworkStateMachine(mClock, mRecorder);
+
+		// the sticky broadcast on registration settles at once
+		mMachine.onEvent(true, WIFI);
+		assertEquals("[up@0]", mRecorder.mEvents.toString());
+		mRecorder.mEvents.clear();
+	}
+
+	@Test
+	public void shortDropIsIgnored() {
+		mClock.advance(100);
+		mMachine.onEvent(false, NetworkStateMachine.TYPE_NONE);
+		mClock.advance(NetworkStateMachine.DOWN_DELAY_MS - 1);
+		mMachine.onEvent(true, WIFI);
+		mClock.advance(NetworkStateMachine.MAX_SETTLE_MS * 2);
+
+		assertEquals("[]", mRecorder.mEvents.toString());
+		assertTrue(mMachine.isConnected());
+		assertEquals(0, mMachine.getTransitions());
+		assertEquals(2, mMachine.getSuppressed());
+	}
+
+	@Test
+	public void longDropSettles() {
+		mMachine.onEvent(false, NetworkStateMachine.TYPE_NONE);
+		mClock.advance(NetworkStateMachine.DOWN_DELAY_MS - 1);
+		assertEquals("[]", mRecorder.mEvents.toString());
+		mClock.advance(1);
+		assertEquals("[down@" + NetworkStateMachine.DOWN_DELAY_MS + "]", mRecorder.mEvents.toString());
+
+		// the same network coming back uses the shorter window
+		mMachine.onEvent(true, WIFI);
+		mClock.advance(NetworkStateMachine.UP_DELAY_MS);
+		assertEquals(2, mRecorder.mEvents.size());
+		assertEquals("up@" + (NetworkStateMachine.DOWN_DELAY_MS + NetworkStateMachine.UP_DELAY_MS),
+				mRecorder.mEvents.get(1));
+	}
+
+	@Test
+	public void handoverBurstSettlesOnce() {
+		// Wi-Fi goes, nothing for half a second, then LTE
+		mMachine.onEvent(false, NetworkStateMachine.TYPE_NONE);
+		mClock.advance(500);
+		mMachine.onEvent(true, MOBILE);
+		mClock.advance(NetworkStateMachine.TYPE_CHANGE_DELAY_MS - 1);
+		assertEquals("[]", mRecorder.mEvents.toString());
+		mClock.advance(1);
+
+		assertEquals("[handover@" + (500 + NetworkStateMachine.TYPE_CHANGE_DELAY_MS) + "]",
+				mRecorder.mEvents.toString());
+		assertEquals(1, mMachine.getTransitions());
+		assertEquals(1, mMachine.getSuppressed());
+	}
+
+	@Test
+	public void endlessBurstIsForcedAfterMaxSettle() {
+		// events every second never let a timer run out
+		long t = 0;
+		for (int i = 0; t < NetworkStateMachine.MAX_SETTLE_MS * 2; i++, t += 1000) {
+			if (i % 2 == 0) {
+				mMachine.onEvent(false, NetworkStateMachine.TYPE_NONE);
+			} else {
+				mMachine.onEvent(true, MOBILE);
+			}
+			mClock.advance(1000);
+			if (!mRecorder.mEvents.isEmpty()) {
+				break;
+			}
+		}
+
+		assertEquals(1, mRecorder.mEvents.size());
+		assertTrue(mRecorder.mEvents.get(0), mRecorder.mEvents.get(0).endsWith("@" + NetworkStateMachine.MAX_SETTLE_MS));
+		assertTrue(mMachine.dump(), mMachine.dump().contains("1 forced"));
+	}
+
+	@Test
+	public void handoverReconnectsAreSpaced() {
+		mMachine.onEvent(true, MOBILE);
+		mClock.advance(NetworkStateMachine.TYPE_CHANGE_DELAY_MS);
+		long first = NetworkStateMachine.TYPE_CHANGE_DELAY_MS;
+		assertEquals("[handover@" + first + "]", mRecorder.mEvents.toString());
+
+		// straight back to Wi-Fi: its own window would end well inside the spacing
+		mClock.advance(1000);
+		mMachine.onEvent(true, WIFI);
+		long due = first + NetworkStateMachine.MIN_RECONNECT_INTERVAL_MS;
+		mClock.advance(due - mClock.now() - 1);
+		assertEquals(1, mRecorder.mEvents.size());
+		mClock.advance(1);
+		assertEquals("handover@" + due, mRecorder.mEvents.get(1));
+	}
+
+	@Test
+	public void stopDropsPendingTransition() {
+		mMachine.onEvent(false, NetworkStateMachine.TYPE_NONE);
+		mMachine.stop();
+		mClock.advance(NetworkStateMachine.MAX_SETTLE_MS);
+		assertEquals("[]", mRecorder.mEvents.toString());
+		assertTrue(mMachine.isConnected());
+	}
+
+	private DeviceStateReceiver newReceiver(Management m, FakePrefs prefs) {
+		DeviceStateReceiver r = new DeviceStateReceiver(m, prefs, mClock);
+		r.onNetworkEvent(true, WIFI);
+		return r;
+	}
+
+	@Test
+	public void receiverReconnectsOnceForBurst() {
+		Management m = new Management();
+		DeviceStateReceiver r = newReceiver(m, new FakePrefs());
+
+		r.onNetworkEvent(false, NetworkStateMachine.TYPE_NONE);
+		mClock.advance(500);
+		r.onNetworkEvent(true, MOBILE);
+		r.onNetworkEvent(true, MOBILE);
+		mClock.advance(NetworkStateMachine.MAX_SETTLE_MS);
+
+		assertEquals("[reconnect]", m.mCalls.toString());
+	}
+
+	@Test
+	public void receiverPausesOnlyForLastingDrop() {
+		Management m = new Management();
+		DeviceStateReceiver r = newReceiver(m, new FakePrefs());
+
+		r.onNetworkEvent(false, NetworkStateMachine.TYPE_NONE);
+		mClock.advance(NetworkStateMachine.DOWN_DELAY_MS / 2);
+		r.onNetworkEvent(true, WIFI);
+		mClock.advance(NetworkStateMachine.MAX_SETTLE_MS);
+		assertEquals("[]", m.mCalls.toString());
+
+		r.onNetworkEvent(false, NetworkStateMachine.TYPE_NONE);
+		mClock.advance(NetworkStateMachine.DOWN_DELAY_MS);
+		assertEquals("[pause]", m.mCalls.toString());
+
+		// resuming reconnects anyway, so a new network type doesn't add a reconnect
+		r.onNetworkEvent(true, MOBILE);
+		mClock.advance(NetworkStateMachine.MAX_SETTLE_MS);
+		assertEquals("[pause, resume]", m.mCalls.toString());
+	}
+
+	@Test
+	public void receiverHonoursNetchangePref() {
+		FakePrefs prefs = new FakePrefs();
+		prefs.edit().putBoolean("netchangereconnect", false).commit();
+		Management m = new Management();
+		DeviceStateReceiver r = newReceiver(m, prefs);
+
+		r.onNetworkEvent(true, MOBILE);
+		mClock.advance(NetworkStateMachine.MAX_SETTLE_MS);
+		assertEquals("[]", m.mCalls.toString());
+		assertFalse(r.dump().contains(" 0 handovers"));
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/*
+ * Java-side cost of the connection lifecycle, measured against a
+ * FakeVPNSession with no latency, so every microsecond here is ours: thread
+ * startup, preconnect, preferences, routing, state updates, history, and
+ * the control plane.  Timings are printed rather than asserted, since they
+ * depend on the host.
+ */
+public class OpenConnectManagementThreadBenchmark {
+
+	private static final long TIMEOUT_MS = 5000;
+	private static final int WARMUP = 20;
+	private static final int CYCLES = 100;
+	private static final int RECONNECTS = 500;
+
+	private static String summarize(long ns[]) {
+		long sorted[] = ns.clone();
+		Arrays.sort(sorted);
+		return "p50=" + sorted[sorted.length / 2] / 1000 + "us p90=" +
+				sorted[sorted.length * 9 / 10] / 1000 + "us max=" +
+				sorted[sorted.length - 1] / 1000 + "us";
+	}
+
+	/* returns { connect, stop } in ns: start() until mainloop(), stopVPN() until threadDone() */
+	private static long[] connectAndStop() throws InterruptedException {
+		ThreadHarness h = new ThreadHarness();
+		try {
+			long start = System.nanoTime();
+			h.start();
+			assertTrue(h.session.waitForCalls(FakeVPNSession.OP_MAINLOOP, 1, TIMEOUT_MS));
+			long connected = System.nanoTime();
+
+			h.vpn.stopVPN();
+			assertTrue(h.service.waitForThreadDone(TIMEOUT_MS));
+			long stopped = System.nanoTime();
+			return new long[] { connected - start, stopped - connected };
+		} finally {
+			h.cleanup();
+		}
+	}
+
+	@Test
+	public void connectStopCycles() throws InterruptedException {
+		for (int i = 0; i < WARMUP; i++) {
+			connectAndStop();
+		}
+		long connect[] = new long[CYCLES], stop[] = new long[CYCLES];
+		for (int i = 0; i < CYCLES; i++) {
+			long t[] = connectAndStop();
+			connect[i] = t[0];
+			stop[i] = t[1];
+		}
+		System.out.println("OpenConnectManagementThreadBenchmark: " + CYCLES + " cycles; connect " +
+				summarize(connect) + "; stop " + summarize(stop));
+	}
+
+	/* drop the link with err over and over, timing each recovery back into mainloop() */
+	private static long[] reconnects(int err, int count) throws InterruptedException {
+		ThreadHarness h = new ThreadHarness();
+		try {
+			h.start();
+			assertTrue(h.session.waitForCalls(FakeVPNSession.OP_MAINLOOP, 1, TIMEOUT_MS));
+
+			long ns[] = new long[count];
+			for (int i = 0; i < count; i++) {
+				long start = System.nanoTime();
+				h.session.dropLink(err);
+				assertTrue(h.session.waitForCalls(FakeVPNSession.OP_MAINLOOP, i + 2, TIMEOUT_MS));
+				ns[i] = System.nanoTime() - start;
+			}
+			h.stop();
+			return ns;
+		} finally {
+			h.cleanup();
+		}
+	}
+
+	@Test
+	public void reconnectCycles() throws InterruptedException {
+		reconnects(-FakeVPNSession.EIO, WARMUP);
+		long link[] = reconnects(-FakeVPNSession.EIO, RECONNECTS);
+		long auth[] = reconnects(-FakeVPNSession.EPERM, RECONNECTS);
+		System.out.println("OpenConnectManagementThreadBenchmark: " + RECONNECTS + " reconnects; link " +
+				summarize(link) + "; reauth " + summarize(auth));
+	}
+}
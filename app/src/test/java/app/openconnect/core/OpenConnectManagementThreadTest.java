@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.infradead.libopenconnect.LibOpenConnect;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app.openconnect.AuthFormHandler;
+
+/*
+ * Connection lifecycle scenarios: the real management thread runs against a
+ * scripted FakeVPNSession, so auth forms, certificate prompts, failures and
+ * dropped links can be injected without a gateway.
+ */
+public class OpenConnectManagementThreadTest {
+
+	private static final long TIMEOUT_MS = 5000;
+
+	private ThreadHarness h;
+	private FakeVPNSession oc;
+
+	@Before
+	public void setUp() {
+		h = new ThreadHarness();
+		oc = h.session;
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		h.cleanup();
+	}
+
+	/* waits until the thread is sitting in its nth mainloop() call */
+	private void assertConnected(int n) throws InterruptedException {
+		assertTrue("never connected", h.service.waitForState(
+				OpenConnectManagementThread.STATE_CONNECTED, n, TIMEOUT_MS));
+		assertTrue(oc.waitForCalls(FakeVPNSession.OP_MAINLOOP, n, TIMEOUT_MS));
+	}
+
+	private void assertConnected() throws InterruptedException {
+		assertConnected(1);
+	}
+
+	private void assertFinished() throws InterruptedException {
+		assertTrue("VPN thread is still running", h.join(TIMEOUT_MS));
+		assertTrue(h.service.waitForThreadDone(TIMEOUT_MS));
+		assertTrue(oc.isDestroyed());
+		assertEquals(0, oc.getUseAfterDestroy());
+		ArrayList<Integer> states = h.service.getStates();
+		assertEquals(OpenConnectManagementThread.STATE_DISCONNECTED, (int)states.get(states.size() - 1));
+	}
+
+	private int countDialogs(Class<?> type) {
+		int n = 0;
+		for (UserDialog d : h.service.getDialogs()) {
+			if (type.isInstance(d)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/* answers every dialog the same way */
+	private static FakeService.Responder answer(final int certResult, final int formResult) {
+		return new FakeService.Responder() {
+			@Override
+			public Object respond(UserDialog dialog) {
+				if (dialog instanceof CertWarningDialog) {
+					return certResult;
+				} else if (dialog instanceof AuthFormHandler) {
+					return formResult;
+				}
+				return true;
+			}
+		};
+	}
+
+	@Test
+	public void connectThenStop() throws InterruptedException {
+		h.start();
+		assertConnected();
+		assertEquals(1, oc.getCalls(FakeVPNSession.OP_OBTAIN_COOKIE));
+		assertEquals(1, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+		assertEquals(1, oc.getCalls(FakeVPNSession.OP_SETUP_TUN_FD));
+		assertEquals(1, oc.getCalls(FakeVPNSession.OP_SETUP_DTLS));
+
+		h.vpn.stopVPN();
+		assertFinished();
+		assertEquals(1, oc.getCancelCount());
+		assertEquals(0, h.service.getDialogs().size());
+
+		ArrayList<Integer> states = h.service.getStates();
+		assertEquals(OpenConnectManagementThread.STATE_CONNECTING, (int)states.get(0));
+		assertTrue(states.indexOf(OpenConnectManagementThread.STATE_AUTHENTICATED) <
+				states.indexOf(OpenConnectManagementThread.STATE_CONNECTED));
+		assertTrue(h.service.logContains("STAT: connect phases"));
+	}
+
+	@Test
+	public void authFormsGoToTheUser() throws InterruptedException {
+		oc.addAuthForm(FakeVPNSession.makeForm("username", "password"));
+		oc.addAuthForm(FakeVPNSession.makeForm("token"));
+		h.service.setResponder(answer(CertWarningDialog.RESULT_NO, LibOpenConnect.OC_FORM_RESULT_OK));
+		h.start();
+		assertConnected();
+
+		assertEquals(2, countDialogs(AuthFormHandler.class));
+		assertEquals(2, oc.getSubmittedForms().size());
+		ArrayList<Integer> states = h.service.getStates();
+		assertTrue(states.contains(OpenConnectManagementThread.STATE_USER_PROMPT));
+		assertTrue(states.contains(OpenConnectManagementThread.STATE_AUTHENTICATING));
+	}
+
+	@Test
+	public void cancelledAuthFormEndsQuietly() throws InterruptedException {
+		oc.addAuthForm(FakeVPNSession.makeForm("username", "password"));
+		h.service.setResponder(answer(CertWarningDialog.RESULT_NO, LibOpenConnect.OC_FORM_RESULT_CANCELLED));
+		h.start();
+		assertFinished();
+
+		assertFalse(h.service.getStates().contains(OpenConnectManagementThread.STATE_CONNECTED));
+		assertEquals(0, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+		assertEquals(0, countDialogs(ErrorDialog.class));
+		assertTrue(h.service.logContains("User canceled auth dialog"));
+	}
+
+	@Test
+	public void batchModeSubmitsWithoutPrompting() throws InterruptedException {
+		LibOpenConnect.AuthForm form = FakeVPNSession.makeForm();
+		LibOpenConnect.FormOpt hidden = new LibOpenConnect.FormOpt();
+		hidden.type = LibOpenConnect.OC_FORM_OPT_HIDDEN;
+		hidden.name = "csrf";
+		hidden.value = "1234";
+		form.opts.add(hidden);
+		oc.addAuthForm(form);
+
+		h.prefs.edit().putString("batch_mode", "enabled").commit();
+		h.start();
+		assertConnected();
+		assertEquals(0, h.service.getDialogs().size());
+		assertEquals(1, oc.getSubmittedForms().size());
+	}
+
+	@Test
+	public void batchModeStopsOnRepeatedForm() throws InterruptedException {
+		LibOpenConnect.AuthForm form = FakeVPNSession.makeForm();
+		LibOpenConnect.FormOpt hidden = new LibOpenConnect.FormOpt();
+		hidden.type = LibOpenConnect.OC_FORM_OPT_HIDDEN;
+		hidden.name = "csrf";
+		form.opts.add(hidden);
+
+		// the gateway keeps sending the same form back: batch mode must not loop
+		oc.addAuthForm(form);
+		oc.addAuthForm(form);
+		h.prefs.edit().putString("batch_mode", "enabled").commit();
+		h.service.setResponder(answer(CertWarningDialog.RESULT_NO, LibOpenConnect.OC_FORM_RESULT_CANCELLED));
+		h.start();
+		assertFinished();
+		assertEquals(1, countDialogs(AuthFormHandler.class));
+		assertEquals(1, oc.getSubmittedForms().size());
+	}
+
+	@Test
+	public void certAcceptedOnceIsNotSaved() throws InterruptedException {
+		oc.setPeerCertReason("signer not found");
+		h.service.setResponder(answer(CertWarningDialog.RESULT_ONCE, LibOpenConnect.OC_FORM_RESULT_OK));
+		h.start();
+		assertConnected();
+
+		// obtainCookie and makeCSTPConnection both check the cert, but the user is asked once
+		assertEquals(1, countDialogs(CertWarningDialog.class));
+		for (String key : h.prefs.getAll().keySet()) {
+			assertFalse(key, key.startsWith("ACCEPTED-CERT-"));
+		}
+	}
+
+	@Test
+	public void certAcceptedAlwaysIsSaved() throws InterruptedException {
+		oc.setPeerCertReason("signer not found");
+		h.service.setResponder(answer(CertWarningDialog.RESULT_ALWAYS, LibOpenConnect.OC_FORM_RESULT_OK));
+		h.start();
+		assertConnected();
+
+		boolean saved = false;
+		for (String key : h.prefs.getAll().keySet()) {
+			saved |= key.startsWith("ACCEPTED-CERT-");
+		}
+		assertTrue(saved);
+	}
+
+	@Test
+	public void certRejectedEndsWithoutError() throws InterruptedException {
+		oc.setPeerCertReason("signer not found");
+		h.service.setResponder(answer(CertWarningDialog.RESULT_NO, LibOpenConnect.OC_FORM_RESULT_OK));
+		h.start();
+		assertFinished();
+
+		assertEquals(1, countDialogs(CertWarningDialog.class));
+		assertEquals(0, countDialogs(ErrorDialog.class));
+		assertEquals(0, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+	}
+
+	@Test
+	public void cstpFailureShowsError() throws InterruptedException {
+		oc.failNext(FakeVPNSession.OP_MAKE_CSTP, -FakeVPNSession.EIO);
+		h.service.setResponder(answer(CertWarningDialog.RESULT_NO, LibOpenConnect.OC_FORM_RESULT_OK));
+		h.start();
+		assertFinished();
+
+		assertEquals(1, countDialogs(ErrorDialog.class));
+		assertTrue(h.service.logContains("Error establishing CSTP connection"));
+	}
+
+	@Test
+	public void droppedLinkReconnects() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		oc.dropLink(-FakeVPNSession.EIO);
+		assertTrue(h.service.waitForState(OpenConnectManagementThread.STATE_RECONNECTING, TIMEOUT_MS));
+		assertConnected(2);
+		assertEquals(2, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+		assertEquals(2, oc.getCalls(FakeVPNSession.OP_SETUP_DTLS));
+		assertEquals(1, oc.getCalls(FakeVPNSession.OP_OBTAIN_COOKIE));
+
+		h.stop();
+		assertFinished();
+	}
+
+	@Test
+	public void reconnectGivesUp() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		for (int i = 0; i < 3; i++) {
+			oc.failNext(FakeVPNSession.OP_MAKE_CSTP, -FakeVPNSession.EIO);
+		}
+		oc.dropLink(-FakeVPNSession.EIO);
+		assertFinished();
+		assertEquals(4, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+		assertTrue(h.service.logContains("RECONNECT: giving up after 3 attempts"));
+	}
+
+	@Test
+	public void dtlsStateIsQueriedNotParsed() throws InterruptedException {
+		h.start();
+		assertConnected();
+		// the setupDTLS() progress message, plus the check once it returns
+		int queries = oc.getDTLSQueries();
+		assertTrue(queries >= 2);
+
+		oc.dropLink(-FakeVPNSession.EIO);
+		assertConnected(2);
+		assertTrue(oc.getDTLSQueries() >= queries + 2);
+		h.stop();
+		assertFinished();
+	}
+
+	@Test
+	public void rejectedCookieReauthenticates() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		oc.dropLink(-FakeVPNSession.EPERM);
+		assertConnected(2);
+		assertEquals(2, oc.getCalls(FakeVPNSession.OP_OBTAIN_COOKIE));
+		assertEquals(2, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+
+		h.stop();
+		assertFinished();
+	}
+
+	@Test
+	public void rejectedCookieDuringReconnectReauthenticates() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		oc.failNext(FakeVPNSession.OP_MAKE_CSTP, -FakeVPNSession.EPERM);
+		oc.dropLink(-FakeVPNSession.EIO);
+		assertConnected(2);
+		assertEquals(2, oc.getCalls(FakeVPNSession.OP_OBTAIN_COOKIE));
+		assertEquals(3, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+
+		h.stop();
+		assertFinished();
+	}
+
+	@Test
+	public void gatewayLogoutDoesNotReconnect() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		oc.dropLink(-FakeVPNSession.EPIPE);
+		assertFinished();
+		assertEquals(1, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+		assertTrue(h.service.logContains("RECONNECT: gateway ended the session"));
+	}
+
+	@Test
+	public void stopDuringSlowAuth() throws InterruptedException {
+		oc.setLatency(FakeVPNSession.OP_OBTAIN_COOKIE, 60000);
+		h.start();
+		while (oc.getCalls(FakeVPNSession.OP_OBTAIN_COOKIE) == 0) {
+			Thread.sleep(1);
+		}
+
+		long start = System.currentTimeMillis();
+		h.vpn.stopVPN();
+		assertFinished();
+		assertTrue(System.currentTimeMillis() - start < TIMEOUT_MS);
+		assertEquals(0, h.service.getDialogs().size());
+	}
+
+	/* the record for the session that just finished */
+	private SessionHistory.Record lastRecord() {
+		ArrayList<SessionHistory.Record> records = new SessionHistory(h.context).load(null);
+		assertTrue(records.size() > 0);
+		return records.get(records.size() - 1);
+	}
+
+	@Test
+	public void stopRecordsBytesWithoutSubscribers() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		// nothing asked for stats while connected, as with the screen off
+		h.vpn.stopVPN();
+		assertFinished();
+		assertEquals(1, oc.getStatsCount());
+		assertTrue(lastRecord().rxBytes > 0);
+		assertTrue(lastRecord().txBytes > 0);
+	}
+
+	@Test
+	public void pauseSamplesBytes() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		h.vpn.pause();
+		assertTrue(oc.waitForCalls(FakeVPNSession.OP_MAINLOOP, 1, TIMEOUT_MS));
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (h.service.getStats().rxBytes == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1500, h.service.getStats().rxBytes);
+
+		// a stop while paused can't be answered, but the pause already sampled
+		h.stop();
+		assertFinished();
+		assertEquals(1500, lastRecord().rxBytes);
+	}
+
+	@Test
+	public void pauseResumeAndStats() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		h.vpn.pause();
+		h.vpn.resume();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (h.service.getStats().rxBytes == 0 && System.currentTimeMillis() < deadline) {
+			h.vpn.requestStats();
+			Thread.sleep(5);
+		}
+		assertTrue(h.service.getStats().rxBytes > 0);
+		assertEquals(1, oc.getPauseCount());
+
+		h.stop();
+		assertFinished();
+		assertEquals(1, oc.getCalls(FakeVPNSession.OP_MAKE_CSTP));
+	}
+
+	@Test
+	public void interleavedControlsDuringReconnects() throws InterruptedException {
+		h.start();
+		assertConnected();
+
+		Random r = new Random(7);
+		for (int i = 0; i < 500; i++) {
+			switch (r.nextInt(5)) {
+			case 0:
+				h.vpn.pause();
+				break;
+			case 1:
+				h.vpn.resume();
+				break;
+			case 2:
+				h.vpn.reconnect();
+				break;
+			case 3:
+				oc.dropLink(-FakeVPNSession.EIO);
+				break;
+			default:
+				h.vpn.requestStats();
+				break;
+			}
+		}
+		h.vpn.resume();
+		h.stop();
+		assertFinished();
+	}
+}
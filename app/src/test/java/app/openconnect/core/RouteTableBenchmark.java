@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Compares RouteTable against the per-entry CIDRIP parsing that setIPInfo()
+ * used to do, on a concentrator-sized split-include list: 400 IPv4 entries
+ * with plenty of duplicates, covered and adjacent prefixes, plus some IPv6.
+ * Timings are printed rather than asserted, since they depend on the host.
+ */
+public class RouteTableBenchmark {
+
+	private static final int ITERATIONS = 2000;
+	private static final int WARMUP = 500;
+
+	private static ArrayList<String> makeRoutes() {
+		Random rnd = new Random(42);
+		ArrayList<String> out = new ArrayList<String>();
+		for (int i = 0; i < 400; i++) {
+			int len = 16 + rnd.nextInt(13);
+			int ip = (10 << 24) | (rnd.nextInt(64) << 16) | (rnd.nextInt(256) << 8);
+			ip &= (int)(0xffffffffL << (32 - len));
+			String addr = ((ip >>> 24) & 0xff) + "." + ((ip >>> 16) & 0xff) + "." +
+					((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+			out.add(i % 5 == 0 ? addr + "/" + lenToMask(len) : addr + "/" + len);
+		}
+		for (int i = 0; i < 40; i++) {
+			out.add("2001:db8:" + Integer.toHexString(rnd.nextInt(256)) + "::/" + (40 + rnd.nextInt(25)));
+		}
+		return out;
+	}
+
+	private static String lenToMask(int len) {
+		long m = (0xffffffffL << (32 - len)) & 0xffffffffL;
+		return (m >> 24) + "." + ((m >> 16) & 0xff) + "." + ((m >> 8) & 0xff) + "." + (m & 0xff);
+	}
+
+	/* what addSubnetRoutes() did before RouteTable: one addRoute() per entry */
+	private static int cidripPath(ArrayList<String> routes, ArrayList<String> out) {
+		for (String s : routes) {
+			s = s.trim();
+			if (s.contains(":")) {
+				String ss[] = s.split("/");
+				int len = ss.length == 1 ? 128 : Integer.parseInt(ss[1]);
+				out.add(ss[0] + "/" + len);
+			} else {
+				CIDRIP cdr = new CIDRIP(s.contains("/") ? s : s + "/32");
+				out.add(String.format(Locale.ENGLISH, "%s/%d", cdr.mIp, cdr.len));
+			}
+		}
+		return out.size();
+	}
+
+	private static int routeTablePath(ArrayList<String> routes, ArrayList<String> out) {
+		RouteTable t = new RouteTable();
+		for (String s : routes) {
+			t.add(s);
+		}
+		for (RouteTable.Route r : t.getRoutes()) {
+			out.add(r.toString());
+		}
+		return out.size();
+	}
+
+	@Test
+	public void compareWithCIDRIP() {
+		ArrayList<String> routes = makeRoutes();
+		ArrayList<String> out = new ArrayList<String>();
+
+		int sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			out.clear();
+			sink += cidripPath(routes, out);
+			out.clear();
+			sink += routeTablePath(routes, out);
+		}
+
+		long start = System.nanoTime();
+		int oldCount = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			out.clear();
+			oldCount = cidripPath(routes, out);
+		}
+		long oldNs = (System.nanoTime() - start) / ITERATIONS;
+
+		start = System.nanoTime();
+		int newCount = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			out.clear();
+			newCount = routeTablePath(routes, out);
+		}
+		long newNs = (System.nanoTime() - start) / ITERATIONS;
+
+		System.out.println("RouteTableBenchmark: " + routes.size() + " entries; CIDRIP " +
+				oldNs / 1000 + "us -> " + oldCount + " routes, RouteTable " +
+				newNs / 1000 + "us -> " + newCount + " routes (" + sink + ")");
+
+		assertEquals(routes.size(), oldCount);
+		assertTrue(newCount < oldCount);
+	}
+}
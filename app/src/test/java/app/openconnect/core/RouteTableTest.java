@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RouteTableTest {
+
+	private static String routes(RouteTable t) {
+		StringBuilder sb = new StringBuilder();
+		for (RouteTable.Route r : t.getRoutes()) {
+			sb.append(sb.length() == 0 ? "" : " ").append(r);
+		}
+		return sb.toString();
+	}
+
+	private static RouteTable table(String... entries) {
+		RouteTable t = new RouteTable();
+		for (String s : entries) {
+			assertTrue(s, t.add(s));
+		}
+		return t;
+	}
+
+	@Test
+	public void dropsDuplicatesAndCoveredPrefixes() {
+		RouteTable t = table("10.0.0.0/8", "10.0.0.0/8", "10.1.0.0/16", "10.1.2.3");
+		assertEquals("10.0.0.0/8", routes(t));
+		assertEquals(4, t.getInputCount());
+	}
+
+	@Test
+	public void mergesAdjacentPrefixes() {
+		assertEquals("10.0.0.0/8", routes(table("10.0.0.0/9", "10.128.0.0/9")));
+		assertEquals("192.168.1.0/24", routes(table("192.168.1.0/26", "192.168.1.64/26",
+				"192.168.1.128/26", "192.168.1.192/26")));
+		// adjacent but not siblings: nothing to merge
+		assertEquals("10.1.0.0/16 10.2.0.0/16", routes(table("10.1.0.0/16", "10.2.0.0/16")));
+	}
+
+	@Test
+	public void masksHostBits() {
+		assertEquals("10.0.0.0/8", routes(table("10.1.2.3/8")));
+		assertEquals("0.0.0.0/0", routes(table("1.2.3.4/0")));
+	}
+
+	@Test
+	public void parsesIPv4LikeCIDRIP() {
+		assertEquals("192.168.1.0/24", routes(table("192.168.1.7/255.255.255.0")));
+		assertEquals("1.2.3.4/32", routes(table("1.2.3.4")));
+		// non-contiguous netmask: host route, as CIDRIP does
+		assertEquals("1.2.3.4/32", routes(table("1.2.3.4/255.0.255.0")));
+		assertEquals("1.2.3.4/32", routes(table("1.2.3.4/40")));
+		assertEquals("172.16.0.0/12", routes(table("  172.16.0.0/12 ")));
+	}
+
+	@Test
+	public void rejectsGarbage() {
+		RouteTable t = new RouteTable();
+		String bad[] = { "", "10.0.0", "10.0.0.0.0", "256.1.1.1/8", "1.2.3.4/x", "1.2.3.4/", "abc",
+				"1::2::3", ":::", "1:2:3:4:5:6:7:8:9", "12345::/64", "::/129", "1:2:3:4:5:6:7::8",
+				"fe80::/", "2001:db8:/32" };
+		for (String s : bad) {
+			assertFalse(s, t.add(s));
+			assertFalse(s, t.exclude(s));
+		}
+		assertEquals(0, t.getInputCount());
+		assertEquals("", routes(t));
+	}
+
+	@Test
+	public void normalizesIPv6() {
+		assertEquals("2001:db8::/64", routes(table("2001:DB8:0:0::1/64")));
+		assertEquals("2001:db8::/32", routes(table("2001:db8::/32", "2001:db8:8000::/33")));
+		// RFC 5952: longest zero run is compressed, a single zero group is not
+		assertEquals("2001:0:0:1::1/128", routes(table("2001:0:0:1:0:0:0:1")));
+		assertEquals("2001:db8:0:1:1:1:1:1/128", routes(table("2001:db8:0:1:1:1:1:1/128")));
+		assertEquals("::/0", routes(table("::/0")));
+		assertEquals("::1/128", routes(table("::1")));
+		assertEquals("::ffff:a01:203/128", routes(table("::ffff:10.1.2.3")));
+		assertEquals("fe80::/10", routes(table("fe80::/10", "febf:ffff::/32")));
+	}
+
+	@Test
+	public void keepsFamiliesApart() {
+		assertEquals("0.0.0.0/0 ::/0", routes(table("::/0", "0.0.0.0/0")));
+	}
+
+	@Test
+	public void excludeSplitsCoveringPrefix() {
+		RouteTable t = table("10.0.0.0/8");
+		assertTrue(t.exclude("10.0.0.0/24"));
+		ArrayList<RouteTable.Route> r = t.getRoutes();
+		// one prefix per bit between /9 and /24
+		assertEquals(16, r.size());
+		assertEquals("10.0.1.0/24", r.get(0).toString());
+		assertEquals("10.128.0.0/9", r.get(r.size() - 1).toString());
+		assertEquals(1, t.getExcludeCount());
+	}
+
+	@Test
+	public void excludeFromDefaultRoute() {
+		RouteTable t = table("0.0.0.0/0");
+		t.exclude("192.168.0.0/16");
+		assertEquals(16, t.getRoutes().size());
+		assertFalse(covers(t, 0xc0a80101L));
+		assertTrue(covers(t, 0xc0a90101L));
+		assertTrue(covers(t, 0x0a000001L));
+	}
+
+	@Test
+	public void excludeIPv6() {
+		RouteTable t = table("::/0");
+		t.exclude("2001:db8::/32");
+		ArrayList<RouteTable.Route> r = t.getRoutes();
+		assertEquals(32, r.size());
+		// 2001:db8:: starts with binary 001
+		assertEquals("::/3", r.get(0).toString());
+		assertEquals("8000::/1", r.get(r.size() - 1).toString());
+
+		t = table("2001:db8::/32");
+		t.exclude("2001:db8::/32");
+		assertEquals("", routes(t));
+	}
+
+	@Test
+	public void excludeOnlyAffectsEarlierAdds() {
+		RouteTable t = new RouteTable();
+		t.exclude("10.0.0.0/8");
+		assertEquals(0, t.getExcludeCount());
+		t.add("10.1.0.0/16");
+		assertEquals("10.1.0.0/16", routes(t));
+
+		t.exclude("192.168.0.0/16");
+		assertEquals(0, t.getExcludeCount());
+		t.exclude("10.1.2.0/24");
+		t.add("10.1.2.0/24");
+		assertEquals("10.1.0.0/16", routes(t));
+	}
+
+	@Test
+	public void overlaps() {
+		assertTrue(RouteTable.overlaps("10.0.0.0/8", "10.5.0.2"));
+		assertTrue(RouteTable.overlaps("10.0.0.0/8", "10.5.0.2/255.255.255.0"));
+		assertTrue(RouteTable.overlaps("10.1.0.0/16", "10.0.0.0/8"));
+		assertTrue(RouteTable.overlaps("0.0.0.0/0", "192.168.1.1"));
+		assertFalse(RouteTable.overlaps("172.16.0.0/12", "172.32.0.0/16"));
+		assertFalse(RouteTable.overlaps("192.168.0.0/16", "192.169.0.1"));
+
+		assertTrue(RouteTable.overlaps("fe80::/10", "fe80::1/64"));
+		assertTrue(RouteTable.overlaps("fe80::/10", " febf::/16 "));
+		assertFalse(RouteTable.overlaps("fe80::/10", "fec0::/10"));
+		assertFalse(RouteTable.overlaps("fe80::/10", "2001:db8::1/64"));
+
+		// different families and garbage never overlap
+		assertFalse(RouteTable.overlaps("0.0.0.0/0", "::/0"));
+		assertFalse(RouteTable.overlaps("10.0.0.0/8", "10.0.0"));
+		assertFalse(RouteTable.overlaps("bogus", "10.0.0.0/8"));
+	}
+
+	/* what auto_lan_bypass does to a full tunnel */
+	@Test
+	public void lanBypassComplement() {
+		RouteTable t = table("0.0.0.0/0", "::/0");
+		String lan[] = { "10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16", "169.254.0.0/16", "fe80::/10" };
+		for (String s : lan) {
+			assertTrue(t.exclude(s));
+		}
+		assertEquals(5, t.getExcludeCount());
+
+		assertFalse(covers(t, 0x0a010203L));
+		assertFalse(covers(t, 0xac1f0001L));
+		assertTrue(covers(t, 0xac200001L));
+		assertFalse(covers(t, 0xa9fe0101L));
+		assertTrue(covers(t, 0x08080808L));
+
+		int v6 = 0;
+		for (RouteTable.Route r : t.getRoutes()) {
+			if (r.isIPv6) {
+				v6++;
+				assertFalse(r.toString(), RouteTable.overlaps(r.toString(), "fe80::/10"));
+			}
+		}
+		assertEquals(10, v6);
+
+		// pushed includes added afterward still go through the tunnel
+		t.add("10.20.0.0/16");
+		assertTrue(covers(t, 0x0a140001L));
+		assertFalse(covers(t, 0x0a150001L));
+	}
+
+	@Test
+	public void thousandsOfExcludes() {
+		Random rnd = new Random(7);
+		RouteTable t = table("0.0.0.0/0");
+		long excluded[] = new long[5000];
+		long start = System.nanoTime();
+		for (int i = 0; i < excluded.length; i++) {
+			excluded[i] = (rnd.nextLong() & 0xffffff00L);
+			assertTrue(t.exclude(RouteTable.formatIPv4(excluded[i] << 32) + "/24"));
+		}
+		ArrayList<RouteTable.Route> r = t.getRoutes();
+		long ms = (System.nanoTime() - start) / 1000000;
+		assertTrue("took " + ms + "ms", ms < 2000);
+
+		Coverage c = coverage(t);
+		for (long ip : excluded) {
+			assertFalse(c.contains(ip | 0x7f));
+		}
+		for (int i = 0; i < 1000; i++) {
+			long ip = rnd.nextLong() & 0xffffffffL;
+			boolean hit = false;
+			for (long e : excluded) {
+				hit |= (ip & 0xffffff00L) == e;
+			}
+			assertEquals(!hit, c.contains(ip));
+		}
+		assertTrue(r.size() > excluded.length);
+	}
+
+	/* the IPv4 part of the table, evaluated for one address */
+	private static boolean covers(RouteTable t, long ip) {
+		return coverage(t).contains(ip);
+	}
+
+	/* IPv4 routes keyed by (network << 6 | len), for quick lookups */
+	private static class Coverage {
+		private final HashSet<Long> mRoutes = new HashSet<Long>();
+
+		boolean contains(long ip) {
+			for (int len = 0; len <= 32; len++) {
+				long mask = len == 0 ? 0 : (0xffffffffL << (32 - len)) & 0xffffffffL;
+				if (mRoutes.contains(((ip & mask) << 6) | len)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static Coverage coverage(RouteTable t) {
+		Coverage c = new Coverage();
+		for (RouteTable.Route r : t.getRoutes()) {
+			if (!r.isIPv6) {
+				c.mRoutes.add((RouteTable.parseIPv4(r.addr, 0, r.addr.length()) << 6) | r.len);
+			}
+		}
+		return c;
+	}
+
+	/*
+	 * Random adds and excludes inside 10.0.0.0/16, checked against a bitmap of
+	 * all 65536 addresses: same coverage, no overlapping output prefixes, and
+	 * no mergeable siblings left over.
+	 */
+	@Test
+	public void matchesBruteForce() {
+		Random rnd = new Random(1);
+		for (int round = 0; round < 50; round++) {
+			RouteTable t = new RouteTable();
+			boolean bitmap[] = new boolean[65536];
+
+			for (int i = 0; i < 40; i++) {
+				int len = 16 + rnd.nextInt(17);
+				int host = rnd.nextInt(65536) & (int)((0xffffL << (32 - len)) & 0xffff);
+				int size = 1 << (32 - len);
+				String s = "10.0." + (host >> 8) + "." + (host & 0xff) + "/" + len;
+				boolean add = rnd.nextInt(4) != 0;
+				if (add) {
+					assertTrue(t.add(s));
+				} else {
+					assertTrue(t.exclude(s));
+				}
+				for (int j = host; j < host + size; j++) {
+					bitmap[j] = add;
+				}
+			}
+
+			ArrayList<RouteTable.Route> r = t.getRoutes();
+			boolean seen[] = new boolean[65536];
+			for (RouteTable.Route route : r) {
+				long net = RouteTable.parseIPv4(route.addr, 0, route.addr.length()) & 0xffff;
+				for (long j = net; j < net + (1L << (32 - route.len)); j++) {
+					assertFalse("overlap at " + route, seen[(int)j]);
+					seen[(int)j] = true;
+				}
+			}
+			for (int j = 0; j < 65536; j++) {
+				assertEquals("address " + j + " in round " + round, bitmap[j], seen[j]);
+			}
+
+			for (int i = 0; i + 1 < r.size(); i++) {
+				RouteTable.Route a = r.get(i), b = r.get(i + 1);
+				if (a.len != b.len || a.len == 16) {
+					continue;
+				}
+				long na = RouteTable.parseIPv4(a.addr, 0, a.addr.length());
+				long nb = RouteTable.parseIPv4(b.addr, 0, b.addr.length());
+				long size = 1L << (32 - a.len);
+				assertFalse("unmerged siblings " + a + " " + b, (na & size) == 0 && nb == na + size);
+			}
+		}
+	}
+}
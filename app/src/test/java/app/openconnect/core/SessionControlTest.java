@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class SessionControlTest {
+
+	private static final int CALLERS = 4;
+	private static final int COMMANDS_PER_CALLER = 5000;
+
+	/* the VPN thread's mainloop, reduced to its use of SessionControl */
+	private static class Owner extends Thread {
+		final SessionControl control;
+		final FakeVPNSession oc;
+
+		Owner(SessionControl control, FakeVPNSession oc) {
+			this.control = control;
+			this.oc = oc;
+		}
+
+		@Override
+		public void run() {
+			control.setOwner(this);
+			while (true) {
+				if (oc.mainloop(60, 10) < 0) {
+					control.drain();
+					if (control.isStopping()) {
+						break;
+					}
+					continue;
+				}
+				control.drain();
+				control.parkWhilePaused();
+			}
+			control.drain();
+			control.close().destroy();
+		}
+	}
+
+	/* these mirror the public controls in OpenConnectManagementThread */
+
+	private static void pause(SessionControl control) {
+		VPNSession oc = control.acquire();
+		if (oc == null) {
+			return;
+		}
+		if (control.pause()) {
+			oc.pause();
+		}
+		control.release();
+	}
+
+	private static void reconnect(SessionControl control) {
+		VPNSession oc = control.acquire();
+		if (oc != null) {
+			control.post(SessionControl.CMD_RECONNECT);
+			oc.pause();
+			control.release();
+		}
+	}
+
+	private static void requestStats(SessionControl control) {
+		VPNSession oc = null;
+		if (control.getState() == SessionControl.CTL_RUNNING) {
+			oc = control.acquire();
+		}
+		if (oc == null) {
+			return;
+		}
+		control.statsRequested();
+		oc.requestStats();
+		control.release();
+	}
+
+	private static void stop(SessionControl control) {
+		VPNSession oc = control.acquire();
+		if (oc == null) {
+			return;
+		}
+		if (control.stop()) {
+			oc.cancel();
+			control.post(SessionControl.CMD_STOP);
+		}
+		control.release();
+	}
+
+	private static void runStress(long seed) throws InterruptedException {
+		final SessionControl control = new SessionControl();
+		final FakeVPNSession oc = new FakeVPNSession();
+		control.setSession(oc);
+		Owner owner = new Owner(control, oc);
+		owner.start();
+
+		final CountDownLatch halfway = new CountDownLatch(CALLERS);
+		Thread callers[] = new Thread[CALLERS];
+		for (int i = 0; i < CALLERS; i++) {
+			final Random r = new Random(seed + i);
+			callers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < COMMANDS_PER_CALLER; j++) {
+						if (j == COMMANDS_PER_CALLER / 2) {
+							halfway.countDown();
+						}
+						switch (r.nextInt(4)) {
+						case 0:
+							pause(control);
+							break;
+						case 1:
+							control.resume();
+							break;
+						case 2:
+							reconnect(control);
+							break;
+						default:
+							requestStats(control);
+							break;
+						}
+					}
+				}
+			};
+			callers[i].start();
+		}
+
+		// stop while the callers are still going, so some of them race with close()
+		halfway.await();
+		stop(control);
+
+		owner.join(5000);
+		assertFalse("VPN thread missed the stop", owner.isAlive());
+		for (Thread t : callers) {
+			t.join();
+		}
+
+		assertTrue(oc.isDestroyed());
+		assertEquals(0, oc.getUseAfterDestroy());
+		assertEquals(1, oc.getCancelCount());
+		assertNull(control.acquire());
+		assertEquals(1, control.getLatency(SessionControl.CMD_STOP).getCount());
+	}
+
+	@Test
+	public void interleavedCommands() throws InterruptedException {
+		for (int i = 0; i < 20; i++) {
+			runStress(i * 1000);
+		}
+	}
+
+	@Test
+	public void stopWhilePaused() throws InterruptedException {
+		SessionControl control = new SessionControl();
+		FakeVPNSession oc = new FakeVPNSession();
+		control.setSession(oc);
+		Owner owner = new Owner(control, oc);
+		owner.start();
+
+		pause(control);
+		assertTrue(control.isPaused());
+		stop(control);
+
+		owner.join(5000);
+		assertFalse(owner.isAlive());
+		assertTrue(oc.isDestroyed());
+	}
+
+	@Test
+	public void pauseResumeNeverLosesWakeup() throws InterruptedException {
+		SessionControl control = new SessionControl();
+		FakeVPNSession oc = new FakeVPNSession();
+		control.setSession(oc);
+		Owner owner = new Owner(control, oc);
+		owner.start();
+
+		for (int i = 0; i < 10000; i++) {
+			pause(control);
+			control.resume();
+		}
+		stop(control);
+
+		owner.join(5000);
+		assertFalse(owner.isAlive());
+		assertEquals(control.getLatency(SessionControl.CMD_PAUSE).getCount(),
+				control.getLatency(SessionControl.CMD_RESUME).getCount());
+	}
+
+	@Test
+	public void closeWaitsForBorrowers() throws InterruptedException {
+		final SessionControl control = new SessionControl();
+		final FakeVPNSession oc = new FakeVPNSession();
+		control.setSession(oc);
+
+		VPNSession borrowed = control.acquire();
+		assertTrue(borrowed == oc);
+
+		Thread closer = new Thread() {
+			@Override
+			public void run() {
+				control.close().destroy();
+			}
+		};
+		closer.start();
+		closer.join(200);
+		assertTrue("close() returned while the session was still borrowed", closer.isAlive());
+		assertNull(control.acquire());
+
+		borrowed.requestStats();
+		control.release();
+		closer.join(5000);
+		assertFalse(closer.isAlive());
+		assertTrue(oc.isDestroyed());
+		assertEquals(0, oc.getUseAfterDestroy());
+	}
+
+	/* command-to-effect time for STOP, i.e. until the VPN thread has left its mainloop */
+	@Test
+	public void stopLatency() throws InterruptedException {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < 200; i++) {
+			SessionControl control = new SessionControl();
+			FakeVPNSession oc = new FakeVPNSession();
+			control.setSession(oc);
+			Owner owner = new Owner(control, oc);
+			owner.start();
+
+			long start = System.nanoTime();
+			stop(control);
+			owner.join(5000);
+			assertFalse(owner.isAlive());
+			h.add((System.nanoTime() - start) / 1000000);
+		}
+		System.out.println("SessionControl: STOP -> VPN thread exit: " + h.summarize());
+	}
+}
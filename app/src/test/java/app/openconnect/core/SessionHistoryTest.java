@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionHistoryTest {
+
+	private static final String A = "00000000-0000-0000-0000-00000000000a";
+	private static final String B = "00000000-0000-0000-0000-00000000000b";
+
+	private FakeContext mContext;
+	private SessionHistory mHistory;
+	private File mCur;
+
+	@Before
+	public void setUp() {
+		mContext = new FakeContext();
+		mHistory = new SessionHistory(mContext);
+		mCur = new File(new File(mContext.getFilesDir(), "sessions"), "current.bin");
+	}
+
+	@After
+	public void tearDown() {
+		mContext.cleanup();
+	}
+
+	private void add(String uuid, String reason) {
+		SessionHistory.Record r = new SessionHistory.Record(uuid);
+		r.start = 1000;
+		r.end = 2000;
+		r.reason = reason;
+		mHistory.append(r);
+	}
+
+	private static ArrayList<String> reasons(ArrayList<SessionHistory.Record> records) {
+		ArrayList<String> out = new ArrayList<String>();
+		for (SessionHistory.Record r : records) {
+			out.add(r.reason);
+		}
+		return out;
+	}
+
+	@Test
+	public void roundTrip() {
+		SessionHistory.Record r = new SessionHistory.Record(A);
+		r.start = 1000;
+		r.end = 4000;
+		r.outcome = SessionHistory.OUTCOME_CONNECTED;
+		r.rxBytes = 1 << 20;
+		r.txBytes = 4096;
+		r.reconnects = 2;
+		r.dtlsMs = 2500;
+		r.cstpMs = 500;
+		r.phases[ConnectTracer.PHASE_TOTAL] = 850;
+		mHistory.append(r);
+
+		ArrayList<SessionHistory.Record> out = mHistory.load(A);
+		assertEquals(1, out.size());
+		SessionHistory.Record got = out.get(0);
+		assertEquals(4000, got.end);
+		assertEquals(SessionHistory.OUTCOME_CONNECTED, got.outcome);
+		assertEquals(1 << 20, got.rxBytes);
+		assertEquals(2, got.reconnects);
+		assertEquals(2500, got.dtlsMs);
+		assertEquals(500, got.cstpMs);
+		assertEquals(850, got.phases[ConnectTracer.PHASE_TOTAL]);
+		assertEquals(-1, got.phases[0]);
+		assertEquals(0, mHistory.load(B).size());
+	}
+
+	@Test
+	public void dtlsTimeIsMovedOutOfCstp() {
+		SessionHistory.Record r = new SessionHistory.Record(A);
+		r.dtlsUp(500);				// ignored: the tunnel isn't up yet
+		r.tunnelUp(1000);
+		r.dtlsUp(1100);
+		r.dtlsUp(1200);				// repeated state checks change nothing
+		r.dtlsDown(1600);
+		r.dtlsDown(1700);
+		r.dtlsUp(1800);
+		r.tunnelDown(2000);			// takes DTLS down with it
+		r.dtlsDown(2100);
+
+		assertEquals(500 + 200, r.dtlsMs);
+		assertEquals(1000 - 700, r.cstpMs);
+	}
+
+	@Test
+	public void corruptRecordInTheMiddleIsSkipped() throws IOException {
+		add(A, "first");
+		long firstEnd = mCur.length();
+		add(A, "second");
+		long secondEnd = mCur.length();
+		add(A, "third");
+
+		// keep the second record's length prefix, but make its body undecodable
+		RandomAccessFile f = new RandomAccessFile(mCur, "rw");
+		for (long pos = firstEnd + 1; pos < secondEnd; pos++) {
+			f.seek(pos);
+			f.write(0xff);
+		}
+		f.close();
+
+		ArrayList<String> got = reasons(mHistory.load(A));
+		assertEquals(2, got.size());
+		assertEquals("first", got.get(0));
+		assertEquals("third", got.get(1));
+	}
+
+	@Test
+	public void tornLastRecordIsIgnored() throws IOException {
+		add(A, "first");
+		FileOutputStream out = new FileOutputStream(mCur, true);
+		out.write(new byte[] { 0x40, 0x01, 0x02 });
+		out.close();
+
+		assertEquals(1, mHistory.load(null).size());
+
+		// a purge rewrites the file without the torn bytes
+		long len = mCur.length();
+		SessionHistory.purge(mContext, B);
+		assertEquals(len - 3, mCur.length());
+		add(B, "after purge");
+		assertEquals(2, mHistory.load(null).size());
+	}
+
+	@Test
+	public void appendAfterTornTailKeepsEveryRecord() throws IOException {
+		add(A, "first");
+		long clean = mCur.length();
+		FileOutputStream out = new FileOutputStream(mCur, true);
+		out.write(new byte[] { 0x7f, 0x01, 0x02 });
+		out.close();
+
+		// no purge: the next append itself must cut the torn record off
+		for (int i = 0; i < 5; i++) {
+			add(B, "b" + i);
+		}
+		ArrayList<String> got = reasons(mHistory.load(null));
+		assertEquals("[first, b0, b1, b2, b3, b4]", got.toString());
+		assertEquals(5, mHistory.load(B).size());
+
+		mHistory.clear();
+		add(A, "again");
+		assertEquals(clean, mCur.length());
+	}
+
+	@Test
+	public void purgeDropsOnlyThatProfile() {
+		add(A, "a1");
+		add(B, "b1");
+		add(A, "a2");
+		add(B, "b2");
+
+		SessionHistory.purge(mContext, A);
+		assertEquals(0, mHistory.load(A).size());
+		ArrayList<String> got = reasons(mHistory.load(null));
+		assertEquals(2, got.size());
+		assertEquals("b1", got.get(0));
+		assertEquals("b2", got.get(1));
+
+		// nothing to do is fine, and so is a missing file
+		long len = mCur.length();
+		SessionHistory.purge(mContext, A);
+		assertEquals(len, mCur.length());
+		mHistory.clear();
+		SessionHistory.purge(mContext, B);
+		assertEquals(0, mHistory.load(null).size());
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StatsHistoryTest {
+
+	private static final int RX = StatsHistory.RX_BYTES;
+	private static final int TX = StatsHistory.TX_BYTES;
+
+	@Test
+	public void samplesEverySecond() {
+		StatsHistory h = new StatsHistory();
+		h.add(0, 0, 0, 0, 0);
+		h.add(1000, 500, 50, 5, 1);
+		h.add(2000, 1500, 100, 10, 2);
+
+		assertEquals(3, h.getSeconds());
+		assertEquals(1000, h.getSecond(RX, 0));
+		assertEquals(500, h.getSecond(RX, 1));
+		assertEquals(500, h.getRate(RX));
+		assertEquals(1500, h.getTotal(RX, 60));
+		assertEquals(100, h.getTotal(TX, 60));
+		assertEquals(1000, h.getPeak(RX, 60));
+	}
+
+	@Test
+	public void shortGapIsSpreadEvenly() {
+		StatsHistory h = new StatsHistory();
+		h.add(0, 0, 0, 0, 0);
+		h.add(10000, 1005, 0, 0, 0);
+
+		// the newest second also gets the remainder
+		assertEquals(105, h.getSecond(RX, 0));
+		for (int ago = 1; ago < 10; ago++) {
+			assertEquals(100, h.getSecond(RX, ago));
+		}
+		assertEquals(0, h.getSecond(RX, 10));
+		assertEquals(1005, h.getTotal(RX, 60));
+	}
+
+	@Test
+	public void multiHourGapFillsMinutesItCovers() {
+		StatsHistory h = new StatsHistory();
+		long gap = 3 * 3600;
+		h.add(0, 0, 0, 0, 0);
+		h.add(gap * 1000, gap * 10 + 7, gap, 0, 0);
+
+		// the last hour of seconds only holds the last hour's share
+		assertEquals(StatsHistory.SECONDS, h.getSeconds());
+		assertEquals(10 + 7, h.getSecond(RX, 0));
+		assertEquals(10, h.getSecond(RX, StatsHistory.SECONDS - 1));
+		assertEquals(3600 * 10 + 7, h.getTotal(RX, StatsHistory.SECONDS));
+
+		// minutes before that hour get their share too, not nothing
+		assertEquals(181, h.getMinutes());
+		assertEquals(10 + 7, h.getMinute(RX, 0));
+		assertEquals(600, h.getMinute(RX, 1));
+		assertEquals(600, h.getMinute(RX, 60));
+		assertEquals(600, h.getMinute(RX, 150));
+		assertEquals(590, h.getMinute(RX, 180));
+		assertEquals(gap * 10 + 7, h.getTotal(RX, 4 * 3600));
+		assertEquals(gap, h.getTotal(TX, 4 * 3600));
+	}
+
+	@Test
+	public void gapLongerThanTheMinuteRing() {
+		StatsHistory h = new StatsHistory();
+		long gap = 2 * 24 * 3600;
+		h.add(0, 0, 0, 0, 0);
+		h.add(gap * 1000, gap * 2, 0, 0, 0);
+
+		// only the last day is kept, at the same rate
+		assertEquals(StatsHistory.MINUTES, h.getMinutes());
+		assertEquals(120, h.getMinute(RX, 1));
+		assertEquals(120, h.getMinute(RX, StatsHistory.MINUTES - 1));
+		assertEquals(2, h.getRate(RX));
+	}
+
+	@Test
+	public void counterResetCountsFromZero() {
+		StatsHistory h = new StatsHistory();
+		h.add(0, 5000, 0, 0, 0);
+		h.add(1000, 300, 0, 0, 0);
+		assertEquals(300, h.getSecond(RX, 0));
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class TCPProbeTest {
+
+	private static final int DEFAULT_PORT = 80;
+
+	private static void assertParsed(String s, String host, int port) {
+		TCPProbe p = TCPProbe.parse(s, DEFAULT_PORT);
+		assertNotNull(s, p);
+		assertEquals(s, host, p.getHost());
+		assertEquals(s, port, p.getPort());
+	}
+
+	@Test
+	public void parseHostAndPort() {
+		assertParsed("intranet.example.com", "intranet.example.com", DEFAULT_PORT);
+		assertParsed("intranet.example.com:8080", "intranet.example.com", 8080);
+		assertParsed("10.1.2.3", "10.1.2.3", DEFAULT_PORT);
+		assertParsed("10.1.2.3:22", "10.1.2.3", 22);
+	}
+
+	@Test
+	public void parseIPv6() {
+		assertParsed("[2001:db8::1]:443", "2001:db8::1", 443);
+		assertParsed("[2001:db8::1]", "2001:db8::1", DEFAULT_PORT);
+		assertParsed("[::1]:22", "::1", 22);
+
+		// without brackets, the last group is part of the address, not a port
+		assertParsed("2001:db8::1", "2001:db8::1", DEFAULT_PORT);
+		assertParsed("fe80::443", "fe80::443", DEFAULT_PORT);
+	}
+
+	@Test
+	public void parseRejectsBadInput() {
+		assertNull(TCPProbe.parse("", DEFAULT_PORT));
+		assertNull(TCPProbe.parse("[]:80", DEFAULT_PORT));
+		assertNull(TCPProbe.parse("host:http", DEFAULT_PORT));
+		assertNull(TCPProbe.parse("host:0", DEFAULT_PORT));
+		assertNull(TCPProbe.parse("host:65536", DEFAULT_PORT));
+		assertNull(TCPProbe.parse("[2001:db8::1]:x", DEFAULT_PORT));
+	}
+
+	private static void waitResolved(TCPProbe p) throws InterruptedException {
+		for (int i = 0; i < 500 && p.getAddress() == null; i++) {
+			Thread.sleep(10);
+		}
+		assertNotNull(p.getAddress());
+	}
+
+	private static TunnelHealth newHealth(TCPProbe p) {
+		ArrayList<HealthProbe> probes = new ArrayList<HealthProbe>();
+		probes.add(p);
+		return new TunnelHealth(probes);
+	}
+
+	@Test
+	public void connectAndRefusedBothCount() throws IOException, InterruptedException {
+		ServerSocket server = new ServerSocket(0, 5, InetAddress.getLoopbackAddress());
+		int port = server.getLocalPort();
+
+		TCPProbe p = new TCPProbe("127.0.0.1", port);
+		waitResolved(p);
+		TunnelHealth h = newHealth(p);
+		assertTrue(h.probeAll(2000));
+
+		// the RST came back through the tunnel, so the path works
+		server.close();
+		assertTrue(h.probeAll(2000));
+		assertEquals(0, h.getBest().getLossPercent());
+		h.close();
+	}
+
+	@Test
+	public void lookupNeverRunsOnTheProbeThread() throws InterruptedException {
+		TCPProbe p = new TCPProbe("health-check.invalid", DEFAULT_PORT);
+		TunnelHealth h = newHealth(p);
+
+		// whether or not the lookup has finished, a probe without an address fails at once
+		long start = System.nanoTime();
+		assertFalse(h.probeAll(5000));
+		long ms = (System.nanoTime() - start) / 1000000L;
+		assertTrue("returned after " + ms + "ms", ms < 1000);
+		h.close();
+	}
+}
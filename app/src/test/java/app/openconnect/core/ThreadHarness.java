@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import java.util.Random;
+
+import android.content.SharedPreferences;
+
+import app.openconnect.VpnProfile;
+
+/*
+ * One OpenConnectManagementThread wired to a FakeVPNSession, FakeService and
+ * FakeContext.  The profile points at 127.0.0.1 so the preconnect DNS lookup
+ * never leaves the host, and the default reconnect policy retries
+ * immediately, three times.
+ */
+public class ThreadHarness {
+
+	public static final String UUID = "00000000-0000-0000-0000-000000000001";
+
+	public final FakeContext context = new FakeContext();
+	public final FakePrefs appPrefs = new FakePrefs();
+	public final FakeService service = new FakeService();
+	public final FakeVPNSession session = new FakeVPNSession();
+	public final SharedPreferences prefs;
+	public final VpnProfile profile;
+	public OpenConnectManagementThread vpn;
+
+	private Thread mThread;
+
+	public ThreadHarness() {
+		prefs = context.getSharedPreferences("profile-" + UUID, 0);
+		profile = new VpnProfile(prefs, UUID, "test");
+		prefs.edit()
+			.putString("server_address", "127.0.0.1")
+			.putString("reported_os", "linux")
+			.commit();
+	}
+
+	public void start(ReconnectPolicy policy) {
+		vpn = new OpenConnectManagementThread(context, profile, service, session.factory(),
+				appPrefs, policy);
+		mThread = new Thread(vpn, "OpenVPNManagementThread");
+		mThread.start();
+	}
+
+	public void start() {
+		start(new BackoffReconnectPolicy(0, 0, 3, new Random(1)));
+	}
+
+	/* returns true if the thread has exited */
+	public boolean join(long timeoutMs) throws InterruptedException {
+		mThread.join(timeoutMs);
+		return !mThread.isAlive();
+	}
+
+	public void stop() throws InterruptedException {
+		vpn.stopVPN();
+		join(5000);
+	}
+
+	/* makes sure the thread is gone, then deletes the temporary files */
+	public void cleanup() throws InterruptedException {
+		if (mThread != null && mThread.isAlive()) {
+			stop();
+		}
+		context.cleanup();
+	}
+}
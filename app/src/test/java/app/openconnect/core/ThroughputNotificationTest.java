@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ThroughputNotificationTest {
+
+	@Test
+	public void smallChangesAreIgnored() {
+		assertFalse(ThroughputNotification.rateChanged(1000000, 1050000));
+		assertFalse(ThroughputNotification.rateChanged(1000000, 950000));
+		assertFalse(ThroughputNotification.rateChanged(2000, 2900));
+		assertFalse(ThroughputNotification.rateChanged(5000, 5000));
+	}
+
+	@Test
+	public void bigChangesCount() {
+		assertTrue(ThroughputNotification.rateChanged(1000000, 1200000));
+		assertTrue(ThroughputNotification.rateChanged(1000000, 800000));
+		assertTrue(ThroughputNotification.rateChanged(2000, 4000));
+	}
+
+	@Test
+	public void goingIdleOrWakingUpCounts() {
+		assertTrue(ThroughputNotification.rateChanged(300, 0));
+		assertTrue(ThroughputNotification.rateChanged(0, 1));
+		assertFalse(ThroughputNotification.rateChanged(0, 0));
+	}
+}
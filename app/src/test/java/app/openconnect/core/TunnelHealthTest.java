@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class TunnelHealthTest {
+
+	private static class NullProbe implements HealthProbe {
+		@Override
+		public String getName() {
+			return "null";
+		}
+
+		@Override
+		public boolean start(Selector sel) {
+			return false;
+		}
+
+		@Override
+		public int onReady() {
+			return RESULT_ERROR;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static TunnelHealth.Target newTarget() {
+		return new TunnelHealth.Target(new NullProbe());
+	}
+
+	@Test
+	public void lossCoversPartialWindow() {
+		TunnelHealth.Target t = newTarget();
+		assertEquals(0, t.getLossPercent());
+
+		t.record(false, 0);
+		t.record(true, 50);
+		t.record(true, 50);
+		t.record(true, 50);
+		assertEquals(25, t.getLossPercent());
+	}
+
+	@Test
+	public void lossesAgeOutOfWindow() {
+		TunnelHealth.Target t = newTarget();
+		for (int i = 0; i < 8; i++) {
+			t.record(false, 0);
+		}
+		for (int i = 0; i < 24; i++) {
+			t.record(true, 50);
+		}
+		assertEquals(25, t.getLossPercent());
+
+		t.record(true, 50);
+		assertEquals(21, t.getLossPercent());
+		for (int i = 0; i < 7; i++) {
+			t.record(true, 50);
+		}
+		assertEquals(0, t.getLossPercent());
+
+		t.record(false, 0);
+		assertEquals(3, t.getLossPercent());
+	}
+
+	@Test
+	public void jitterFollowsRFC3550() {
+		TunnelHealth.Target t = newTarget();
+		t.record(true, 100);
+		assertEquals(0, t.getJitterMs());
+
+		// J += (|D| - J) / 16
+		t.record(true, 132);
+		assertEquals(2, t.getJitterMs());
+		t.record(true, 132);
+		assertEquals(2, t.getJitterMs());
+
+		// lost probes don't reset the previous RTT
+		t.record(false, 0);
+		t.record(true, 132);
+		assertEquals(2, t.getJitterMs());
+
+		TunnelHealth.Target u = newTarget();
+		for (int i = 0; i < 200; i++) {
+			u.record(true, i % 2 == 0 ? 100 : 200);
+		}
+		assertEquals(100, u.getJitterMs());
+	}
+
+	@Test
+	public void smoothedRtt() {
+		TunnelHealth.Target t = newTarget();
+		assertEquals(-1, t.getSmoothedRttMs());
+		t.record(true, 100);
+		assertEquals(100, t.getSmoothedRttMs());
+		t.record(true, 200);
+		assertEquals(112, t.getSmoothedRttMs());
+	}
+
+	@Test
+	public void score() {
+		TunnelHealth.Target t = newTarget();
+		assertEquals(-1, t.getScore());
+
+		// probed, but never answered
+		t.record(false, 0);
+		assertEquals(0, t.getScore());
+
+		TunnelHealth.Target fast = newTarget();
+		for (int i = 0; i < 4; i++) {
+			fast.record(true, 50);
+		}
+		assertEquals(100, fast.getScore());
+
+		// each percent lost costs two points
+		fast.record(false, 0);
+		fast.record(false, 0);
+		assertEquals(100 - 33 * 2, fast.getScore());
+
+		TunnelHealth.Target slow = newTarget();
+		slow.record(true, 150);
+		assertEquals(90, slow.getScore());
+
+		// latency and jitter penalties are capped
+		TunnelHealth.Target awful = newTarget();
+		for (int i = 0; i < 200; i++) {
+			awful.record(true, i % 2 == 0 ? 1000 : 2000);
+		}
+		assertTrue(awful.getJitterMs() >= 80);
+		assertEquals(100 - 40 - 20, awful.getScore());
+	}
+
+	@Test
+	public void unprobedTunnelHasNoScore() {
+		ArrayList<HealthProbe> probes = new ArrayList<HealthProbe>();
+		probes.add(new NullProbe());
+		TunnelHealth h = new TunnelHealth(probes);
+		assertEquals(-1, h.getScore());
+
+		// a probe that can't even be sent is a loss
+		assertTrue(!h.probeAll(100));
+		assertEquals(100, h.getBest().getLossPercent());
+		assertEquals(0, h.getScore());
+		h.close();
+	}
+}
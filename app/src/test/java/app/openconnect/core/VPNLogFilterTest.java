@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013, Kevin Cernekee
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with the
+ * OpenSSL library.
+ */
+
+package app.openconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * VPNLog's filtered view.  Text filters are matched on the scanner thread
+ * and the results posted back; a FakeHandler stands in for the UI thread so
+ * the test decides when they land.
+ */
+public class VPNLogFilterTest {
+
+	private FakeHandler mHandler;
+	private VPNLog mLog;
+
+	@Before
+	public void setUp() {
+		mHandler = new FakeHandler();
+		mLog = new VPNLog(100, mHandler);
+	}
+
+	@After
+	public void tearDown() {
+		mLog.close();
+	}
+
+	/* lets the background scan finish and publishes its result */
+	private void finishScan() throws InterruptedException {
+		assertTrue(mHandler.waitForPost(5000));
+		mHandler.runPending();
+	}
+
+	private ArrayList<String> view() {
+		ArrayList<String> out = new ArrayList<String>();
+		for (int i = 0; i < mLog.filteredCount(); i++) {
+			out.add(mLog.getFiltered(i).getMessage());
+		}
+		return out;
+	}
+
+	private void fill() {
+		mLog.add(VPNLog.LEVEL_INFO, "AUTH: got form");
+		mLog.add(VPNLog.LEVEL_ERR, "AUTH: bad password");
+		mLog.add(VPNLog.LEVEL_INFO, "ROUTE: 10.0.0.0/8");
+		mLog.add(VPNLog.LEVEL_DEBUG, "LIB: DTLS handshake");
+		mLog.add(VPNLog.LEVEL_ERR, "LIB: DTLS handshake failed");
+		mLog.add(VPNLog.LEVEL_INFO, "DNS: 10.1.1.1");
+	}
+
+	@Test
+	public void noFilterShowsEverything() {
+		fill();
+		assertEquals(6, mLog.filteredCount());
+		mLog.setFilter(new LogFilter(-1, -1, "", false));
+		assertEquals(6, mLog.filteredCount());
+		assertEquals(mLog.getSeq(3), mLog.getFilteredSeq(3));
+		assertEquals(0, mHandler.pendingCount());
+	}
+
+	@Test
+	public void levelFilterUsesIndexWithoutScan() {
+		fill();
+		mLog.setFilter(new LogFilter(VPNLog.LEVEL_ERR, -1, null, false));
+		assertEquals(0, mHandler.pendingCount());
+		assertEquals(2, mLog.filteredCount());
+		assertEquals("AUTH: bad password", mLog.getFiltered(0).getMessage());
+		assertEquals("LIB: DTLS handshake failed", mLog.getFiltered(1).getMessage());
+
+		// the index keeps up with new entries
+		mLog.add(VPNLog.LEVEL_ERR, "ROUTE: failed");
+		mLog.add(VPNLog.LEVEL_INFO, "ROUTE: ok");
+		assertEquals(3, mLog.filteredCount());
+		assertEquals("ROUTE: failed", mLog.getFiltered(2).getMessage());
+		assertNull(mLog.getFiltered(3));
+		assertEquals(-1, mLog.getFilteredSeq(3));
+	}
+
+	@Test
+	public void tagFilter() {
+		fill();
+		mLog.setFilter(new LogFilter(-1, LogFilter.TAG_LIB, null, false));
+		assertEquals(2, mLog.filteredCount());
+		assertEquals("LIB: DTLS handshake", mLog.getFiltered(0).getMessage());
+
+		mLog.setFilter(new LogFilter(-1, LogFilter.TAG_STAT, null, false));
+		assertEquals(0, mLog.filteredCount());
+	}
+
+	@Test
+	public void levelAndTagScans() throws InterruptedException {
+		fill();
+		mLog.setFilter(new LogFilter(VPNLog.LEVEL_ERR, LogFilter.TAG_AUTH, null, false));
+		assertEquals(0, mLog.filteredCount());
+		finishScan();
+		assertEquals(1, mLog.filteredCount());
+		assertEquals("AUTH: bad password", mLog.getFiltered(0).getMessage());
+	}
+
+	@Test
+	public void textFilterBackfillsAndFollowsAppends() throws InterruptedException {
+		fill();
+		mLog.setFilter(new LogFilter(-1, -1, "dtls", false));
+
+		// entries logged before the scan lands are matched by append() and stay at the end
+		mLog.add(VPNLog.LEVEL_INFO, "DTLS rekey");
+		assertEquals(1, mLog.filteredCount());
+		finishScan();
+
+		ArrayList<String> v = view();
+		assertEquals(3, v.size());
+		assertEquals("LIB: DTLS handshake", v.get(0));
+		assertEquals("LIB: DTLS handshake failed", v.get(1));
+		assertEquals("DTLS rekey", v.get(2));
+	}
+
+	@Test
+	public void regexFilter() throws InterruptedException {
+		fill();
+		mLog.setFilter(new LogFilter(-1, -1, "^(route|dns): 10\\.", true));
+		finishScan();
+		ArrayList<String> v = view();
+		assertEquals(2, v.size());
+		assertEquals("ROUTE: 10.0.0.0/8", v.get(0));
+		assertEquals("DNS: 10.1.1.1", v.get(1));
+	}
+
+	@Test
+	public void staleScanIsDropped() throws InterruptedException {
+		fill();
+		mLog.setFilter(new LogFilter(-1, -1, "auth", false));
+		mLog.setFilter(new LogFilter(-1, -1, "route", false));
+
+		// the first scan may or may not post before noticing; either way it must not show
+		while (mLog.filteredCount() == 0) {
+			finishScan();
+			for (int i = 0; i < mLog.filteredCount(); i++) {
+				assertTrue(mLog.getFiltered(i).getMessage().startsWith("ROUTE"));
+			}
+		}
+		ArrayList<String> v = view();
+		assertEquals(1, v.size());
+		assertEquals("ROUTE: 10.0.0.0/8", v.get(0));
+	}
+
+	@Test
+	public void evictedMatchesLeaveTheView() throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			mLog.add(VPNLog.LEVEL_INFO, (i % 10 == 0 ? "match " : "other ") + i);
+		}
+		mLog.setFilter(new LogFilter(-1, -1, "match", false));
+		finishScan();
+		assertEquals(10, mLog.filteredCount());
+
+		// push the oldest 25 entries out of the ring
+		for (int i = 100; i < 125; i++) {
+			mLog.add(VPNLog.LEVEL_INFO, "other " + i);
+		}
+		assertEquals(100, mLog.size());
+		ArrayList<String> v = view();
+		assertEquals(7, v.size());
+		assertEquals("match 30", v.get(0));
+
+		// level and tag indexes drop evicted entries too
+		mLog.setFilter(new LogFilter(VPNLog.LEVEL_INFO, -1, null, false));
+		assertEquals(100, mLog.filteredCount());
+	}
+
+	@Test
+	public void clearEmptiesTheView() throws InterruptedException {
+		fill();
+		mLog.setFilter(new LogFilter(-1, -1, "dtls", false));
+		finishScan();
+		assertEquals(2, mLog.filteredCount());
+
+		mLog.clear();
+		assertEquals(0, mLog.filteredCount());
+		mLog.add(VPNLog.LEVEL_INFO, "DTLS again");
+		assertEquals(1, mLog.filteredCount());
+		assertEquals("DTLS again", mLog.getFiltered(0).getMessage());
+	}
+
+	@Test
+	public void restoreRescans() throws InterruptedException {
+		mLog.add(VPNLog.LEVEL_INFO, "live DTLS");
+		mLog.setFilter(new LogFilter(-1, -1, "dtls", false));
+		finishScan();
+		assertEquals(1, mLog.filteredCount());
+
+		ArrayList<VPNLogItem> restored = new ArrayList<VPNLogItem>();
+		restored.add(new VPNLogItem(VPNLog.LEVEL_INFO, "old DTLS"));
+		restored.add(new VPNLogItem(VPNLog.LEVEL_INFO, "old other"));
+		mLog.restore(restored);
+		finishScan();
+
+		ArrayList<String> v = view();
+		assertEquals(2, v.size());
+		assertEquals("old DTLS", v.get(0));
+		assertEquals("live DTLS", v.get(1));
+	}
+}